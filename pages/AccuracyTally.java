@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package pages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Counts the pages that a model classified correctly, grouped by the true genre
+ * of each page. A prediction counts as correct if MapPages.genresAreEqual accepts
+ * it, so we don't penalize confusions between genres we treat as equivalent.
+ *
+ * Tallies from different volumes, or different folds of crossvalidation, can be
+ * combined with merge.
+ *
+ */
+public class AccuracyTally {
+	private HashMap<String, Integer> pagesInGenre;
+	private HashMap<String, Integer> correctInGenre;
+	private int totalPages;
+	private int totalCorrect;
+
+	public AccuracyTally() {
+		pagesInGenre = new HashMap<String, Integer>();
+		correctInGenre = new HashMap<String, Integer>();
+		totalPages = 0;
+		totalCorrect = 0;
+	}
+
+	public void addPage(String predictedGenre, String actualGenre) {
+		pagesInGenre.put(actualGenre, pagesInGenre.getOrDefault(actualGenre, 0) + 1);
+		totalPages += 1;
+		if (MapPages.genresAreEqual(predictedGenre, actualGenre)) {
+			correctInGenre.put(actualGenre, correctInGenre.getOrDefault(actualGenre, 0) + 1);
+			totalCorrect += 1;
+		}
+	}
+
+	/**
+	 * Adds a volume's worth of predictions. The two lists are matched purely by
+	 * sequence, as pages are everywhere else in the package.
+	 */
+	public void addVolume(ArrayList<String> predictions, ArrayList<String> actualGenres) {
+		int numPages = Math.min(predictions.size(), actualGenres.size());
+		for (int i = 0; i < numPages; ++i) {
+			addPage(predictions.get(i), actualGenres.get(i));
+		}
+	}
+
+	/**
+	 * Smooths held-out pages volume by volume and adds the resulting predictions.
+	 * Pages of a volume are contiguous in a corpus, so we recover volumes by grouping
+	 * consecutive pages with the same volume ID.
+	 * 
+	 * @param pages		Labeled held-out pages, in corpus order.
+	 * @param rawProbs	Unsmoothed probabilities, one row per page and one column per genre.
+	 * @param markov	Genre transitions learned from the training set.
+	 * @param genres	The training set's genre list, which defines the columns of rawProbs.
+	 */
+	public void addSmoothedPages(ArrayList<DataPoint> pages, double[][] rawProbs, MarkovTable markov, GenreList genres) {
+		int numGenres = genres.getSize();
+		int start = 0;
+		while (start < pages.size()) {
+			String volID = pages.get(start).volume;
+			int end = start;
+			while (end < pages.size() && pages.get(end).volume.equals(volID)) {
+				end += 1;
+			}
+			int numPoints = end - start;
+			ArrayList<double[]> volumeProbs = new ArrayList<double[]>(numPoints);
+			ArrayList<String> actualGenres = new ArrayList<String>(numPoints);
+			double[] wordLengths = new double[numPoints];
+			for (int j = 0; j < numPoints; ++j) {
+				DataPoint aPage = pages.get(start + j);
+				volumeProbs.add(rawProbs[start + j]);
+				actualGenres.add(aPage.genre);
+				wordLengths[j] = aPage.wordcount;
+			}
+			ArrayList<double[]> smoothedProbs = ForwardBackward.smooth(volumeProbs, markov, wordLengths);
+			ClassificationResult smoothedResult = new ClassificationResult(smoothedProbs, numGenres, genres.genreLabels);
+			addVolume(smoothedResult.predictions, actualGenres);
+			start = end;
+		}
+	}
+	
+	public synchronized void merge(AccuracyTally other) {
+		for (String genre : other.pagesInGenre.keySet()) {
+			pagesInGenre.put(genre, pagesInGenre.getOrDefault(genre, 0) + other.pagesInGenre.get(genre));
+		}
+		for (String genre : other.correctInGenre.keySet()) {
+			correctInGenre.put(genre, correctInGenre.getOrDefault(genre, 0) + other.correctInGenre.get(genre));
+		}
+		totalPages += other.totalPages;
+		totalCorrect += other.totalCorrect;
+	}
+
+	public int pagesInGenre(String genre) {
+		return pagesInGenre.getOrDefault(genre, 0);
+	}
+
+	public double accuracy(String genre) {
+		int pages = pagesInGenre.getOrDefault(genre, 0);
+		if (pages == 0) return 0d;
+		return correctInGenre.getOrDefault(genre, 0) / (double) pages;
+	}
+
+	public int totalPages() {
+		return totalPages;
+	}
+
+	public double overallAccuracy() {
+		if (totalPages == 0) return 0d;
+		return totalCorrect / (double) totalPages;
+	}
+
+	/**
+	 * @return The true genres that have been seen, in alphabetical order.
+	 */
+	public ArrayList<String> genresSeen() {
+		ArrayList<String> genres = new ArrayList<String>(pagesInGenre.keySet());
+		Collections.sort(genres);
+		return genres;
+	}
+
+}
@@ -42,19 +42,12 @@ public class ClassificationResult {
 		double sumOfGaps = 0d;
 	
 		for (int i = 0; i < numPages; ++i) {
-			double maxprob = 0d;
-			double gapBetweenTopAndNext = 0d;
-			for (int j = 0; j < numGenres; ++j) {
-				double probabilityPageIsGenreJ = probabilitiesPerPageAndGenre.get(i)[j];
-				if (probabilityPageIsGenreJ > maxprob) {
-					gapBetweenTopAndNext = probabilityPageIsGenreJ - maxprob;
-					maxprob = probabilityPageIsGenreJ;
-					predictions.set(i, genres.get(j));
-				}
-			}
-			
-			sumOfMaxProbs += maxprob;
-			sumOfGaps += gapBetweenTopAndNext;
+			double[] probs = probabilitiesPerPageAndGenre.get(i);
+			int top = topGenre(probs, numGenres);
+			if (top >= 0) predictions.set(i, genres.get(top));
+			double[] measures = confidence(probs, numGenres);
+			sumOfMaxProbs += measures[0];
+			sumOfGaps += measures[1];
 		}
 		
 		this.averageMaxProb = sumOfMaxProbs / numPages;
@@ -82,22 +75,50 @@ public class ClassificationResult {
 		double sumOfGaps = 0d;
 		
 		for (int i = 0; i < numPages; ++i) {
-			double maxprob = 0d;
-			double gapBetweenTopAndNext = 0d;
-			for (int j = 0; j < numGenres; ++j) {
-				double probabilityPageIsGenreJ = probabilities.get(i)[j];
-				if (probabilityPageIsGenreJ > maxprob) {
-					gapBetweenTopAndNext = probabilityPageIsGenreJ - maxprob;
-					maxprob = probabilityPageIsGenreJ;
-				}
-			}
-			
-			sumOfMaxProbs += maxprob;
-			sumOfGaps += gapBetweenTopAndNext;
+			double[] measures = confidence(probabilities.get(i), numGenres);
+			sumOfMaxProbs += measures[0];
+			sumOfGaps += measures[1];
 		}
 		
 		this.averageMaxProb = sumOfMaxProbs / numPages;
 		this.averageGap = sumOfGaps / numPages;
 	}
+	
+	/**
+	 * The two measures of confidence this class averages, for a single page: the
+	 * probability of the most probable genre, and its gap over the runner-up (as seen
+	 * scanning genres in order). The ensemble cascade uses them to decide which pages
+	 * need more than one model.
+	 * 
+	 * @return {maxprob, gap}
+	 */
+	public static double[] confidence(double[] probs, int numGenres) {
+		double maxprob = 0d;
+		double gapBetweenTopAndNext = 0d;
+		for (int j = 0; j < numGenres; ++j) {
+			double probabilityPageIsGenreJ = probs[j];
+			if (probabilityPageIsGenreJ > maxprob) {
+				gapBetweenTopAndNext = probabilityPageIsGenreJ - maxprob;
+				maxprob = probabilityPageIsGenreJ;
+			}
+		}
+		double[] measures = {maxprob, gapBetweenTopAndNext};
+		return measures;
+	}
+	
+	/**
+	 * @return The index of the most probable genre, or -1 if none has a positive probability.
+	 */
+	private static int topGenre(double[] probs, int numGenres) {
+		double maxprob = 0d;
+		int top = -1;
+		for (int j = 0; j < numGenres; ++j) {
+			if (probs[j] > maxprob) {
+				maxprob = probs[j];
+				top = j;
+			}
+		}
+		return top;
+	}
 
 }
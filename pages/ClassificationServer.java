@@ -0,0 +1,217 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import json.JSONObject;
+
+/**
+ * A process that keeps models loaded and classifies volumes on request, started with
+ * -serve. Each run of MapPages pays for starting a JVM, deserializing its model and
+ * warming up the JIT before it classifies anything, which makes small batches of
+ * volumes expensive; a server pays those costs once.
+ *
+ * It listens on a port on the loopback interface only, and speaks lines of UTF-8 text.
+ * Each request is one line:
+ *
+ *     volume (path)	Classify the .pg.tsv file at this path on the server's disk.
+ *     htid (id)		Classify this volume in the pairtree under -pairtreeroot.
+ *     pages (id)		Classify the volume whose feature lines (as in a .pg.tsv file)
+ *     					follow, up to a line holding only a period.
+ *     quit			Close the connection.
+ *
+ * For each request the server replies with one line of JSON per model, the same record
+ * JSONResultWriter writes to a .predict file, followed by an empty line. If the volume
+ * can't be classified, the reply is instead a single {"error": ...} line and an empty line.
+ *
+ * Each connection is read by a thread of its own, but volumes are classified on the
+ * shared pool (ResourceGovernor.pool()), so no more volumes are classified at once
+ * than there are cores in the budget, however many clients connect.
+ *
+ * The models can be replaced while the server runs (see ModelWatcher). Each request
+ * takes the current set when it starts and uses it throughout, so a swap never mixes
+ * old and new models in one reply; the label in each record says which model made it.
+ *
+ * @param current	The models to apply, already frozen.
+ * @param pairtreeRoot	Root of the pairtree for htid requests, or null.
+ */
+public class ClassificationServer {
+	private int port;
+	private final AtomicReference<ModelSet> current;
+	private String pairtreeRoot;
+
+	public ClassificationServer(int port, ModelSet models, String pairtreeRoot) {
+		this.port = port;
+		this.current = new AtomicReference<ModelSet>(models);
+		this.pairtreeRoot = pairtreeRoot;
+	}
+
+	/**
+	 * Replaces the models for every request that starts from now on.
+	 */
+	public void swap(ModelSet models) {
+		ModelSet old = current.getAndSet(models);
+		System.out.println("Now serving " + models + " in place of " + old + ".");
+	}
+
+	/**
+	 * Accepts connections until the process is killed.
+	 */
+	public void serve() {
+		ServerSocket server;
+		try {
+			server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		}
+		catch (IOException e) {
+			System.out.println("Classification server could not listen on port " + port + ": " + e.getMessage());
+			return;
+		}
+		System.out.println("Classification server listening on port " + port + " with models " + current.get() +
+				", classifying on " + ResourceGovernor.pool().getParallelism() + " cores.");
+		while (true) {
+			try {
+				final Socket socket = server.accept();
+				Thread handler = new Thread(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				});
+				handler.start();
+			}
+			catch (IOException e) {
+				System.out.println("Classification server failed to accept a connection: " + e.getMessage());
+			}
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF8"));
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF8"));
+			while (true) {
+				String request = in.readLine();
+				if (request == null || request.trim().equals("quit")) break;
+				request = request.trim();
+				if (request.length() < 1) continue;
+
+				ArrayList<String> reply;
+				String[] parts = request.split("\\s+", 2);
+				if (parts.length < 2) {
+					reply = error("Expected volume, htid or pages, followed by an ID or path: " + request);
+				}
+				else if (parts[0].equals("pages")) {
+					ArrayList<String> filelines = new ArrayList<String>();
+					String line = in.readLine();
+					while (line != null && !line.equals(".")) {
+						filelines.add(line);
+						line = in.readLine();
+					}
+					reply = classify(parts[1], filelines);
+				}
+				else if (parts[0].equals("volume")) {
+					reply = classifyFile(parts[1]);
+				}
+				else if (parts[0].equals("htid")) {
+					reply = classifyHtid(parts[1]);
+				}
+				else {
+					reply = error("Unknown request: " + parts[0]);
+				}
+
+				for (String line : reply) {
+					out.write(line);
+					out.write("\n");
+				}
+				out.write("\n");
+				out.flush();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Lost connection to a client: " + e.getMessage());
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// nothing more to say to this client
+			}
+		}
+	}
+
+	private ArrayList<String> classifyFile(String path) {
+		String volID = new File(path).getName();
+		if (volID.endsWith(".pg.tsv")) volID = volID.substring(0, volID.length() - ".pg.tsv".length());
+		try {
+			return classify(volID, new LineReader(path).readList());
+		}
+		catch (InputFileException e) {
+			return error("Could not read " + path);
+		}
+	}
+
+	private ArrayList<String> classifyHtid(String dirtyID) {
+		if (pairtreeRoot == null) return error("This server was started without a -pairtreeroot.");
+		ArrayList<String> filelines = new PairtreeReader(pairtreeRoot).getVolume(dirtyID);
+		if (filelines.size() < 1) return error("Could not find " + dirtyID + " in the pairtree.");
+		return classify(dirtyID, filelines);
+	}
+
+	/**
+	 * Classifies a volume with every model, on the shared pool.
+	 *
+	 * @return The JSON records, one per model, or an error.
+	 */
+	private ArrayList<String> classify(final String dirtyID, final ArrayList<String> filelines) {
+		final ModelSet set = current.get();
+		Future<ArrayList<String>> result = ResourceGovernor.pool().submit(new Callable<ArrayList<String>>() {
+			public ArrayList<String> call() {
+				ArrayList<String> records = new ArrayList<String>(set.size());
+				for (int m = 0; m < set.size(); ++m) {
+					Model model = set.models.get(m);
+					Corpus thisVolume = new Corpus(filelines, dirtyID, model.vocabulary, model.normalizer);
+					if (thisVolume.numPoints < 1) return error(dirtyID + " has no pages to classify.");
+					ArrayList<double[]> rawProbs = model.scorePages(thisVolume.datapoints);
+					ClassificationResult[] results = ClassifyingExecutor.interpret(model, thisVolume, rawProbs);
+					JSONResultWriter writer = new JSONResultWriter(null, set.names.get(m), model.genreList.genreLabels);
+					records.add(writer.jsonRecord(thisVolume.numPoints, thisVolume.getFirstVolID(), results[0], results[1]).toString());
+				}
+				return records;
+			}
+		});
+		try {
+			return result.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return error("Execution was interrupted.");
+		}
+		catch (ExecutionException e) {
+			return error("Classification failed: " + e.getCause());
+		}
+	}
+
+	private static ArrayList<String> error(String message) {
+		JSONObject object = new JSONObject();
+		object.put("error", message);
+		ArrayList<String> reply = new ArrayList<String>(1);
+		reply.add(object.toString());
+		return reply;
+	}
+
+}
@@ -1,15 +1,33 @@
 package pages;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 /**
  * @author tunder
  *
+ * Classifies volumes, taking their IDs from a VolumeScheduler. The scheduler deals each
+ * thread a share of the volumes, largest first, and a thread that runs out steals from
+ * the one with the most work left. (An older constructor takes IDs from a shared
+ * BlockingQueue instead, ended by "STOP".) A volume is only a few hundred pages, so
+ * rather than score each one alone, the executor gathers the pages of several volumes
+ * into a batch of about batchPages, scores the batch in a single call (which lets a
+ * compiled LinearScorer make one pass over its weights for the whole batch), and then
+ * hands each volume's rows back to it for smoothing and output. A batch is scored early if no more volumes arrive within batchMillis of
+ * the first, so waiting for more doesn't hold volumes back.
+ *
+ * @param batchPages	Pages to gather before scoring; 0 or 1 scores each volume alone.
+ * @param batchMillis	Longest wait for more volumes once a batch has started.
+ * @param splitPages	Batches longer than this (usually one very long volume) are scored
+ * 						in parallel blocks; see Model.scorePages. 0 never splits.
+ * @param scheduler		If not null, where volumes come from instead of jobQueue; the executor
+ * 						stops when the scheduler has none left. See VolumeScheduler.
+ * @param journal		If not null, where each volume is recorded once its results are written.
+ * @param cache			If not null, results for volumes seen before, by this model; volumes
+ * 						found there are written without being parsed or scored. See ResultCache.
  */
 
 public class ClassifyingExecutor implements Runnable {
@@ -18,7 +36,7 @@ public class ClassifyingExecutor implements Runnable {
 	private String outputDir;
 	private int numGenres;
 	private ArrayList<String> genres;
-	private ArrayList<GenrePredictor> classifiers;
+	private Model model;
 	private MarkovTable markov;
 	private Vocabulary vocabulary;
 	private FeatureNormalizer normalizer;
@@ -28,19 +46,51 @@ public class ClassifyingExecutor implements Runnable {
 	public String predictionMetadata;
 	private String modelLabel;
 	private final BlockingQueue<String> jobQueue;
+	private final VolumeScheduler scheduler;
+	private final CompletionJournal journal;
+	private final ResultCache cache;
+	private int batchPages;
+	private long batchMillis;
+	private int splitPages = 0;
 	
-	public ClassifyingExecutor(String inputDir, String outputDir, String modelPath, int threadNumber,
+	/**
+	 * @param model	A frozen model (see Model.freeze), which this executor shares with the
+	 * others; it's only read.
+	 */
+	public ClassifyingExecutor(String inputDir, String outputDir, Model model, int threadNumber,
 			boolean isPairtree, boolean outputJson, String modelLabel, BlockingQueue<String> jobQueue) {
+		this(inputDir, outputDir, model, threadNumber, isPairtree, outputJson, modelLabel, jobQueue, 0, 0);
+	}
+	
+	public ClassifyingExecutor(String inputDir, String outputDir, Model model, int threadNumber,
+			boolean isPairtree, boolean outputJson, String modelLabel, BlockingQueue<String> jobQueue,
+			int batchPages, long batchMillis) {
+		this(inputDir, outputDir, model, threadNumber, isPairtree, outputJson, modelLabel, jobQueue, null,
+				null, null, batchPages, batchMillis);
+	}
+	
+	/**
+	 * @param threadNumber	Also this executor's worker number in the scheduler.
+	 */
+	public ClassifyingExecutor(String inputDir, String outputDir, Model model, int threadNumber,
+			boolean isPairtree, boolean outputJson, String modelLabel, VolumeScheduler scheduler,
+			CompletionJournal journal, ResultCache cache, int batchPages, long batchMillis) {
+		this(inputDir, outputDir, model, threadNumber, isPairtree, outputJson, modelLabel, null, scheduler,
+				journal, cache, batchPages, batchMillis);
+	}
+	
+	private ClassifyingExecutor(String inputDir, String outputDir, Model model, int threadNumber,
+			boolean isPairtree, boolean outputJson, String modelLabel, BlockingQueue<String> jobQueue,
+			VolumeScheduler scheduler, CompletionJournal journal, ResultCache cache, int batchPages, long batchMillis) {
 		this.inputDir = inputDir;
 		this.outputDir = outputDir;
 		
-		// deserialize the Model, and unpack it
-		Model model = deserializeModel(modelPath);
+		// unpack the Model
 		this.vocabulary = model.vocabulary;
 		this.markov = model.markov;
 		this.genres = model.genreList.genreLabels;
 		this.normalizer = model.normalizer;
-		this.classifiers = model.classifiers;
+		this.model = model;
 		this.numGenres = genres.size();
 		
 		this.threadNumber = threadNumber;
@@ -48,121 +98,247 @@ public class ClassifyingExecutor implements Runnable {
 		this.outputJson = outputJson;
 		this.modelLabel = modelLabel;
 		this.jobQueue = jobQueue;
+		this.scheduler = scheduler;
+		this.journal = journal;
+		this.cache = cache;
+		this.batchPages = batchPages;
+		this.batchMillis = batchMillis;
 	}
 
+	/**
+	 * Sets the length above which a batch's pages are scored in parallel blocks.
+	 */
+	public void setSplitPages(int splitPages) {
+		this.splitPages = splitPages;
+	}
+	
 	@Override
 	public void run() {
-		// loop getting tasks until we are interrupted
-     
-		String thisFile = "initial value";
-        while (!Thread.currentThread().isInterrupted()) {
-        	
-        	try {
-        		thisFile = jobQueue.poll(1, TimeUnit.MINUTES);
-        	} catch (InterruptedException e) {
-        		Thread.currentThread().interrupt();
-        	}
-        	
-        	if (thisFile == null) break;
-        	if (thisFile.equals("STOP")) break;
-		
-			// We have a choice of two different corpus constructors, depending on whether we
-			// are running this classification on a local directory, or on the cluster using
-			// files located in a pairtree hierarchy. The reason for the difference is that
-			// we need different i/o routines inside Corpus. This really has nothing to do 
-			// with the "wrapper" business, which is purposeless code inherited from an
-			// older version.
+		// loop getting batches until we are interrupted or told to stop
+		boolean stop = false;
+		while (!stop && !Thread.currentThread().isInterrupted()) {
+			ArrayList<String> batchFiles = new ArrayList<String>();
+			ArrayList<String> batchKeys = new ArrayList<String>();
+			ArrayList<Corpus> batchVolumes = new ArrayList<Corpus>();
+			int pagesGathered = 0;
 			
-			Corpus thisVolume;
-			if (isPairtree) {
-				thisVolume = new Corpus(inputDir, thisFile, vocabulary, normalizer);
-			}
-			else {
-				ArrayList<String> wrapper = new ArrayList<String>();
-				wrapper.add(thisFile);
-				thisVolume = new Corpus(inputDir, wrapper, vocabulary, normalizer);
-			}
+			String thisFile = nextVolume(60000);
+			if (thisFile == null || thisFile.equals("STOP")) break;
 			
-			int numPoints = thisVolume.numPoints;
-			
-			if (numPoints > 0) {
-					
-				ArrayList<DataPoint> thesePages = thisVolume.datapoints;
-				ArrayList<double[]> rawProbs = new ArrayList<double[]>(numPoints);
-				for (int i = 0; i < numPoints; ++i) {
-					double[] probs = new double[numGenres];
-					Arrays.fill(probs, 0);
-					rawProbs.add(probs);
+			long deadline = System.currentTimeMillis() + batchMillis;
+			while (true) {
+				String key = cacheKey(thisFile);
+				ResultCache.Entry cached = null;
+				if (key != null) cached = cache.get(key);
+				if (cached != null) {
+					finishVolume(thisFile, thisFile, cached);
 				}
-				
-				for (int i = 2; i < numGenres; ++i) {
-					GenrePredictor classify = classifiers.get(i);
-					// System.out.println(classify.reportStatus());
-					double[][] probs = classify.testNewInstances(thesePages);
-					for (int j = 0; j < numPoints; ++j) {
-						rawProbs.get(j)[i] = probs[j][0];
+				else {
+					Corpus thisVolume = readVolume(thisFile);
+					if (thisVolume != null) {
+						batchFiles.add(thisFile);
+						batchKeys.add(key);
+						batchVolumes.add(thisVolume);
+						pagesGathered += thisVolume.numPoints;
 					}
 				}
-				double[] wordLengths = new double[numPoints];
-				for (int i = 0; i < numPoints; ++i) {
-					wordLengths[i] = thesePages.get(i).wordcount;
-				}
-				
-				ArrayList<double[]> smoothedProbs = ForwardBackward.smooth(rawProbs, markov, wordLengths);
-				smoothedProbs = ForwardBackward.smooth(smoothedProbs, markov, wordLengths);
-				// This is really silly, but in practice it works: run the Markov smoothing twice!
-		
-				ClassificationResult rawResult = new ClassificationResult(rawProbs, numGenres, genres);
-				ClassificationResult smoothedResult = new ClassificationResult(smoothedProbs, numGenres, genres);
+				if (pagesGathered >= batchPages) break;
 				
-				String outFile = thisFile + ".predict";
-				String outPath = outputDir + "/" + outFile;
-				
-				if (outputJson) {
-					JSONResultWriter writer = new JSONResultWriter(outPath, modelLabel, genres);
-					writer.writeJSON(thisVolume.numPoints, thisVolume.getFirstVolID(), rawResult, smoothedResult);
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) break;
+				thisFile = nextVolume(wait);
+				if (thisFile == null) {
+					stop = (scheduler != null);
+					// From a scheduler, null means there is nothing left for anyone.
+					break;
 				}
-				else {
-					ArrayList<String> rawPredictions = rawResult.predictions;
-					ArrayList<String> predictions = smoothedResult.predictions;
-				
-					LineWriter writer = new LineWriter(outPath, false);
-			
-					String[] outlines = new String[numPoints];
-					for (int i = 0; i < numPoints; ++i) {
-						outlines[i] = thesePages.get(i).label + "\t" + rawPredictions.get(i) + "\t" + predictions.get(i);
-						for (int j = 0; j < genres.size(); ++j) {
-							double[] thisPageProbs = smoothedProbs.get(i);
-							outlines[i] = outlines[i] + "\t" + genres.get(j) + "::" + Double.toString(thisPageProbs[j]);
-						}
-					}
-					writer.send(outlines);
+				if (thisFile.equals("STOP")) {
+					stop = true;
+					break;
 				}
-				
 			}
-        }
-        System.out.println("Thread #" + threadNumber + " ordered to stand down.");
+			
+			try {
+				classifyBatch(batchFiles, batchKeys, batchVolumes, pagesGathered);
+			}
+			catch (RuntimeException e) {
+				WarningLogger.logWarning("Thread #" + threadNumber + " failed to classify " + batchFiles + ": " + e);
+				// Those volumes stay out of the journal, and so end up in failed.txt.
+			}
+		}
+		System.out.println("Thread #" + threadNumber + " ordered to stand down.");
 	}
 	
-	private static Model deserializeModel (String modelPath) {
-		Model m = null;
-	    try {
-	    	FileInputStream fileIn = new FileInputStream(modelPath);
-	        ObjectInputStream in = new ObjectInputStream(fileIn);
-	        m = (Model) in.readObject();
-	        in.close();
-	        fileIn.close();
-	      }
-	    catch(IOException except) {
-	         except.printStackTrace();
-	         return m;
-	      }
-	    catch(ClassNotFoundException c) {
-	         System.out.println("Employee class not found");
-	         c.printStackTrace();
-	         return m;
-	      }
-	   return m;
+	/**
+	 * @return The next volume ID, "STOP", or null if none arrived in time (or, with a
+	 * scheduler, if there are none left).
+	 */
+	private String nextVolume(long waitMillis) {
+		if (scheduler != null) return scheduler.next(threadNumber);
+		try {
+			return jobQueue.poll(waitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	/**
+	 * @return The volume's key in the cache, or null if there's no cache or the volume
+	 * can't be read (in which case readVolume will report it).
+	 */
+	private String cacheKey(String thisFile) {
+		if (cache == null) return null;
+		String path;
+		if (isPairtree) path = new PairtreeReader(inputDir).getPairtreePath(thisFile);
+		else path = inputDir + thisFile + ".pg.tsv";
+		try {
+			return cache.key(Files.readAllBytes(new File(path).toPath()));
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @return The volume, or null if it couldn't be read; it is then left out of the journal.
+	 */
+	private Corpus readVolume(String thisFile) {
+		try {
+			return openVolume(thisFile);
+		}
+		catch (RuntimeException e) {
+			WarningLogger.logWarning("Thread #" + threadNumber + " could not read " + thisFile + ": " + e);
+			return null;
+		}
+	}
+	
+	private Corpus openVolume(String thisFile) {
+		// We have a choice of two different corpus constructors, depending on whether we
+		// are running this classification on a local directory, or on the cluster using
+		// files located in a pairtree hierarchy. The reason for the difference is that
+		// we need different i/o routines inside Corpus. This really has nothing to do 
+		// with the "wrapper" business, which is purposeless code inherited from an
+		// older version.
+		
+		if (isPairtree) {
+			return new Corpus(inputDir, thisFile, vocabulary, normalizer);
+		}
+		else {
+			ArrayList<String> wrapper = new ArrayList<String>();
+			wrapper.add(thisFile);
+			return new Corpus(inputDir, wrapper, vocabulary, normalizer);
+		}
+	}
+	
+	/**
+	 * Scores the pages of every volume in a batch together, then smooths and writes
+	 * each volume separately.
+	 */
+	private void classifyBatch(ArrayList<String> batchFiles, ArrayList<String> batchKeys, ArrayList<Corpus> batchVolumes,
+			int pagesGathered) {
+		ArrayList<DataPoint> allPages = new ArrayList<DataPoint>(pagesGathered);
+		for (Corpus thisVolume : batchVolumes) {
+			if (thisVolume.numPoints > 0) allPages.addAll(thisVolume.datapoints);
+		}
+		ArrayList<double[]> allProbs = new ArrayList<double[]>();
+		if (allPages.size() > 0) allProbs = model.scorePages(allPages, splitPages);
+		
+		int start = 0;
+		for (int v = 0; v < batchVolumes.size(); ++v) {
+			Corpus thisVolume = batchVolumes.get(v);
+			int numPoints = thisVolume.numPoints;
+			if (numPoints < 1) {
+				WarningLogger.logWarning(batchFiles.get(v) + " was found to have zero pages!");
+				if (journal != null) journal.markComplete(batchFiles.get(v));
+				// Nothing to classify, so it's done; otherwise -resume would retry it forever.
+				continue;
+			}
+			ArrayList<double[]> rawProbs = new ArrayList<double[]>(allProbs.subList(start, start + numPoints));
+			start += numPoints;
+			
+			String volID = thisVolume.getFirstVolID();
+			String[] labelSuffixes = new String[numPoints];
+			double[] wordLengths = new double[numPoints];
+			for (int i = 0; i < numPoints; ++i) {
+				DataPoint page = thisVolume.datapoints.get(i);
+				labelSuffixes[i] = page.label.startsWith(volID + ",") ? page.label.substring(volID.length()) : page.label;
+				// Labels are volID,page; keeping only ",page" lets a copy under another ID use the entry.
+				wordLengths[i] = page.wordcount;
+			}
+			ResultCache.Entry result = new ResultCache.Entry(labelSuffixes, wordLengths, rawProbs);
+			if (batchKeys.get(v) != null) cache.put(batchKeys.get(v), result);
+			finishVolume(batchFiles.get(v), volID, result);
+		}
+	}
+	
+	private void finishVolume(String thisFile, String volID, ResultCache.Entry result) {
+		boolean written = writeVolume(thisFile, volID, result);
+		if (written && journal != null) journal.markComplete(thisFile);
+	}
+	
+	/**
+	 * Smooths a volume's page probabilities with the model's Markov table.
+	 * 
+	 * @return The raw result and the smoothed result.
+	 */
+	static ClassificationResult[] interpret(Model model, Corpus thisVolume, ArrayList<double[]> rawProbs) {
+		int numPoints = thisVolume.numPoints;
+		ArrayList<DataPoint> thesePages = thisVolume.datapoints;
+		double[] wordLengths = new double[numPoints];
+		for (int i = 0; i < numPoints; ++i) {
+			wordLengths[i] = thesePages.get(i).wordcount;
+		}
+		return interpret(model, wordLengths, rawProbs);
+	}
+	
+	static ClassificationResult[] interpret(Model model, double[] wordLengths, ArrayList<double[]> rawProbs) {
+		ArrayList<String> genres = model.genreList.genreLabels;
+		int numGenres = genres.size();
+		ArrayList<double[]> smoothedProbs = ForwardBackward.smooth(rawProbs, model.markov, wordLengths);
+		smoothedProbs = ForwardBackward.smooth(smoothedProbs, model.markov, wordLengths);
+		// This is really silly, but in practice it works: run the Markov smoothing twice!
+		
+		ClassificationResult rawResult = new ClassificationResult(rawProbs, numGenres, genres);
+		ClassificationResult smoothedResult = new ClassificationResult(smoothedProbs, numGenres, genres);
+		return new ClassificationResult[] {rawResult, smoothedResult};
+	}
+	
+	/**
+	 * @return Whether the volume's .predict file was written.
+	 */
+	private boolean writeVolume(String thisFile, String volID, ResultCache.Entry result) {
+		int numPoints = result.rawProbs.size();
+		ClassificationResult[] results = interpret(model, result.wordLengths, result.rawProbs);
+		ClassificationResult rawResult = results[0];
+		ClassificationResult smoothedResult = results[1];
+		ArrayList<double[]> smoothedProbs = smoothedResult.probabilities;
+		
+		String outFile = thisFile + ".predict";
+		String outPath = outputDir + "/" + outFile;
+		
+		if (outputJson) {
+			JSONResultWriter writer = new JSONResultWriter(outPath, modelLabel, genres);
+			return writer.writeJSON(numPoints, volID, rawResult, smoothedResult);
+		}
+		else {
+			ArrayList<String> rawPredictions = rawResult.predictions;
+			ArrayList<String> predictions = smoothedResult.predictions;
+			
+			LineWriter writer = new LineWriter(outPath, false);
+			
+			String[] outlines = new String[numPoints];
+			for (int i = 0; i < numPoints; ++i) {
+				String label = result.labelSuffixes[i];
+				if (label.startsWith(",")) label = volID + label;
+				outlines[i] = label + "\t" + rawPredictions.get(i) + "\t" + predictions.get(i);
+				for (int j = 0; j < genres.size(); ++j) {
+					double[] thisPageProbs = smoothedProbs.get(i);
+					outlines[i] = outlines[i] + "\t" + genres.get(j) + "::" + Double.toString(thisPageProbs[j]);
+				}
+			}
+			return writer.replace(outlines);
+		}
 	}
 	
 }
@@ -1,7 +1,6 @@
 package pages;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 
 public class ClassifyingThread implements Runnable {
 	
@@ -11,6 +10,8 @@ public class ClassifyingThread implements Runnable {
 	private int numGenres;
 	private ArrayList<String> genres;
 	private ArrayList<GenrePredictor> classifiers;
+	private Model model;
+	// If not null, pages are scored through the model, which may have compiled its predictors.
 	private MarkovTable markov;
 	private Vocabulary vocabulary;
 	private FeatureNormalizer normalizer;
@@ -34,6 +35,16 @@ public class ClassifyingThread implements Runnable {
 		this.modelLabel = modelLabel;
 	}
 
+	/**
+	 * Classifies with a whole (frozen) model rather than its parts.
+	 */
+	public ClassifyingThread(String thisFile, String inputDir, String outputDir, Model model, 
+			boolean isPairtree, String modelLabel) {
+		this(thisFile, inputDir, outputDir, model.genreList.getSize(), model.classifiers, model.markov,
+				model.genreList.genreLabels, model.vocabulary, model.normalizer, isPairtree, modelLabel);
+		this.model = model;
+	}
+
 	@Override
 	public void run() {
 		// We have a choice of two different corpus constructors, depending on whether we
@@ -58,21 +69,9 @@ public class ClassifyingThread implements Runnable {
 		if (numPoints > 0) {
 				
 			ArrayList<DataPoint> thesePages = thisVolume.datapoints;
-			ArrayList<double[]> rawProbs = new ArrayList<double[]>(numPoints);
-			for (int i = 0; i < numPoints; ++i) {
-				double[] probs = new double[numGenres];
-				Arrays.fill(probs, 0);
-				rawProbs.add(probs);
-			}
-			
-			for (int i = 2; i < numGenres; ++i) {
-				GenrePredictor classify = classifiers.get(i);
-				// System.out.println(classify.reportStatus());
-				double[][] probs = classify.testNewInstances(thesePages);
-				for (int j = 0; j < numPoints; ++j) {
-					rawProbs.get(j)[i] = probs[j][0];
-				}
-			}
+			ArrayList<double[]> rawProbs;
+			if (model != null) rawProbs = model.scorePages(thesePages);
+			else rawProbs = Model.scorePages(classifiers, thesePages);
 			double[] wordLengths = new double[numPoints];
 			for (int i = 0; i < numPoints; ++i) {
 				wordLengths[i] = thesePages.get(i).wordcount;
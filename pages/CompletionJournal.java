@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which volumes a classification run has finished, so that a run that dies
+ * partway (a 600-minute pairtree job, say) can be resumed instead of started over.
+ *
+ * The journal is a file in the output directory, completed.txt, with one clean volume
+ * ID per line. A volume is added only after its .predict file is in place, and each
+ * ID is appended in a single write and flushed to disk before we go on, so after a
+ * crash the journal lists only volumes whose results are complete. (If the crash
+ * came in the middle of that write, the partial line is discarded on resume.)
+ *
+ * Without -resume a run starts a fresh journal; with it, volumes already listed are
+ * skipped. At the end of a run, the volumes that were not completed, whether they
+ * failed or were never reached, are listed in failed.txt in the form they were given,
+ * so that the file can be passed back as a -slice to retry just those. A volume with
+ * no pages counts as completed, since there is nothing to classify in it. If the run
+ * stopped waiting before its threads finished, some of those volumes may still be
+ * running, so they're listed in unfinished.txt instead.
+ *
+ * @param journal	The file of completed IDs.
+ * @param completed	The IDs in it.
+ */
+public class CompletionJournal {
+	private final File journal;
+	private final String failedPath;
+	private final String unfinishedPath;
+	private final Set<String> completed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private int previouslyCompleted = 0;
+
+	/**
+	 * @param outputDir	Where results are written; the journal goes there too.
+	 * @param resume	Whether to keep the volumes an earlier run completed.
+	 */
+	public CompletionJournal(String outputDir, boolean resume) {
+		journal = new File(outputDir, "completed.txt");
+		failedPath = new File(outputDir, "failed.txt").getPath();
+		unfinishedPath = new File(outputDir, "unfinished.txt").getPath();
+		if (resume && journal.exists()) {
+			readJournal();
+		}
+		else if (journal.exists()) {
+			journal.delete();
+		}
+	}
+
+	private void readJournal() {
+		try {
+			RandomAccessFile file = new RandomAccessFile(journal, "rw");
+			try {
+				byte[] contents = new byte[(int) file.length()];
+				file.readFully(contents);
+				int end = contents.length;
+				while (end > 0 && contents[end - 1] != '\n') {
+					end -= 1;
+				}
+				if (end < contents.length) file.setLength(end);
+				// Cut off a line that was only partly written, so the next ID starts a line of its own.
+				for (String line : new String(contents, 0, end, "UTF8").split("\n")) {
+					if (line.length() > 0) completed.add(line);
+				}
+			}
+			finally {
+				file.close();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not read the journal " + journal.getPath() + "; starting over. " + e);
+			completed.clear();
+		}
+		previouslyCompleted = completed.size();
+	}
+
+	/**
+	 * @param volumes	Volume IDs, clean or dirty (see PairtreeReader.cleanID).
+	 * @return The ones not yet completed, in the same order and form.
+	 */
+	public ArrayList<String> remaining(ArrayList<String> volumes) {
+		ArrayList<String> remaining = new ArrayList<String>(volumes.size());
+		for (String volume : volumes) {
+			if (!isComplete(volume)) remaining.add(volume);
+		}
+		return remaining;
+	}
+
+	public boolean isComplete(String volume) {
+		return completed.contains(PairtreeReader.cleanID(volume));
+	}
+
+	/**
+	 * Adds a volume to the journal. Call only once its results are safely written.
+	 */
+	public synchronized void markComplete(String volume) {
+		String cleanID = PairtreeReader.cleanID(volume);
+		if (completed.contains(cleanID)) return;
+		try {
+			FileOutputStream out = new FileOutputStream(journal, true);
+			try {
+				out.write((cleanID + "\n").getBytes("UTF8"));
+				out.getFD().sync();
+			}
+			finally {
+				out.close();
+			}
+			completed.add(cleanID);
+		}
+		catch (IOException e) {
+			System.out.println("Could not record " + cleanID + " in the journal: " + e);
+		}
+	}
+
+	/**
+	 * Writes failed.txt, listing the volumes in this run that were not completed.
+	 *
+	 * @param volumes	Every volume this run was asked to classify, in their original form.
+	 * @return The number of volumes listed.
+	 */
+	public int writeFailed(ArrayList<String> volumes) {
+		return writeRemaining(volumes, failedPath);
+	}
+	
+	/**
+	 * Writes unfinished.txt, listing the volumes in this run that were not completed, for
+	 * a run that stopped waiting while some were still being classified.
+	 *
+	 * @param volumes	Every volume this run was asked to classify, in their original form.
+	 * @return The number of volumes listed.
+	 */
+	public int writeUnfinished(ArrayList<String> volumes) {
+		return writeRemaining(volumes, unfinishedPath);
+	}
+	
+	private int writeRemaining(ArrayList<String> volumes, String path) {
+		ArrayList<String> notDone = remaining(volumes);
+		LineWriter writer = new LineWriter(path, false);
+		writer.replace(notDone.toArray(new String[notDone.size()]));
+		return notDone.size();
+	}
+
+	/**
+	 * @return A line describing the run's progress, for the log.
+	 */
+	public String report() {
+		int thisRun = completed.size() - previouslyCompleted;
+		return "Completed " + thisRun + " volumes in this run" +
+				(previouslyCompleted > 0 ? " and " + previouslyCompleted + " in earlier runs" : "") +
+				"; journal in " + journal.getPath() + ".";
+	}
+
+}
@@ -2,6 +2,7 @@ package pages;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Random;
 
 public class Corpus {
 
@@ -27,6 +28,18 @@ public class Corpus {
 	FeatureNormalizer normalizer;
 
 	public Corpus(ArrayList<String> featurePaths, ArrayList<String> genrePaths, ArrayList<String> trainingVols, Vocabulary vocab) {
+		this(featurePaths, genrePaths, trainingVols, vocab, 0, 0L);
+	}
+	
+	/**
+	 * The training constructor, optionally capping the number of pages drawn from each genre.
+	 * 
+	 * @param pageBudget If greater than zero, at most this many pages of each genre are
+	 * kept, chosen by reservoir sampling before any pages are turned into vectors.
+	 * @param seed Seeds the sampling, so the same budget and seed select the same pages.
+	 */
+	public Corpus(ArrayList<String> featurePaths, ArrayList<String> genrePaths, ArrayList<String> trainingVols, Vocabulary vocab,
+			int pageBudget, long seed) {
 
 		genres = new GenreList();
 		vocabulary = vocab;
@@ -45,6 +58,69 @@ public class Corpus {
 		
 		volumes = readVolumes(featurePaths, trainingVols, featureMap);
 
+		makeLabeledPoints(pageBudget, seed);
+
+		normalizer = new FeatureNormalizer(vocabulary, datapoints);
+		
+		// The normalizer centers all features on the feature mean, and normalizes them by their
+		// standard deviations. Aka, transforms features to z-scores. This is
+		// desirable because I'm using regularized logistic regression, which will
+		// shrink coefficients toward the origin, and shrinkage pressure is
+		// distributed more evenly if the features have been normalized.
+		
+		normalizer.normalizeFeatures(datapoints);
+		
+		System.out.println(genres.genreLabels);
+
+	}
+	
+	/**
+	 * Chooses which pages to keep when each genre is limited to pageBudget pages.
+	 * We stream through the genre sequences of all volumes once, offering each page to
+	 * a reservoir for its genre; a page is identified by its volume and its position
+	 * in the volume, packed into a long. Nothing is featurized at this stage, so the
+	 * budget bounds memory as well as training time.
+	 * 
+	 * @return For each volume, a flag for each page in its genre sequence.
+	 */
+	private boolean[][] selectPages(int pageBudget, long seed) {
+		Random random = new Random(seed);
+		HashMap<String, IndexSampler.Reservoir> reservoirs = new HashMap<String, IndexSampler.Reservoir>();
+		boolean[][] keep = new boolean[numVolumes][];
+		
+		for (int i = 0; i < numVolumes; ++i) {
+			ArrayList<String> genresOfThisVol = volumeGenres.get(i);
+			keep[i] = new boolean[genresOfThisVol.size()];
+			for (int j = 0; j < genresOfThisVol.size(); ++j) {
+				String genre = genresOfThisVol.get(j);
+				IndexSampler.Reservoir reservoir = reservoirs.get(genre);
+				if (reservoir == null) {
+					reservoir = new IndexSampler.Reservoir(pageBudget, random);
+					reservoirs.put(genre, reservoir);
+				}
+				reservoir.offer(((long) i << 32) | j);
+			}
+		}
+		
+		for (String genre : reservoirs.keySet()) {
+			IndexSampler.Reservoir reservoir = reservoirs.get(genre);
+			for (long item : reservoir.sample()) {
+				keep[(int) (item >>> 32)][(int) item] = true;
+			}
+			if (reservoir.seen() > pageBudget) {
+				System.out.println("Kept " + pageBudget + " of " + reservoir.seen() + " pages of " + genre + ".");
+			}
+		}
+		return keep;
+	}
+	
+	/**
+	 * Turns volumes into labeled page vectors.
+	 * 
+	 * @param pageBudget If greater than zero, the maximum number of pages per genre; see selectPages.
+	 * @param seed Seeds the page selection.
+	 */
+	private void makeLabeledPoints(int pageBudget, long seed) {
 		// The Volume objects read the lines associated with a single
 		// HathiTrust volume ID. Then they can produce DataPoints that
 		// either represent volumes or individual pages. I've implemented
@@ -72,14 +148,24 @@ public class Corpus {
 		
 		assert (trainingVols.size() == volumes.size());
 		assert (volumeGenres.size() == volumes.size());
-		System.out.println("We have " + volumes.size() + " volumes in the training set.");
+		if (numVolumes > 1) {
+			System.out.println("We have " + volumes.size() + " volumes in the training set.");
+		}
 		
 		// If either of those things are false, we're in big trouble.
 		
+		boolean[][] keep = null;
+		if (pageBudget > 0) {
+			keep = selectPages(pageBudget, seed);
+		}
+		
 		for (int i = 0; i < numVolumes; ++ i) {
 			Volume thisVol = volumes.get(i);
 			ArrayList<String> genresOfThisVol = volumeGenres.get(i);
 			
+			if (keep != null && !anySelected(keep[i])) continue;
+			// No need to featurize a volume none of whose pages were sampled.
+			
 			ArrayList<DataPoint> newPoints = thisVol.makePagePoints(featureMap);
 			
 			if (genresOfThisVol.size() != newPoints.size()) {
@@ -88,6 +174,7 @@ public class Corpus {
 			}
 			
 			for (int j = 0; j < newPoints.size(); ++j) {
+				if (keep != null && (j >= keep[i].length || !keep[i][j])) continue;
 				String genre = genresOfThisVol.get(j);
 				genre = normalizeGenre(genre);
 				if (!genres.genreLabels.contains(genre)) {
@@ -100,18 +187,160 @@ public class Corpus {
 				numPoints += 1;
 			}
 		}
-		normalizer = new FeatureNormalizer(vocabulary, datapoints);
+	}
+	
+	private static boolean anySelected(boolean[] flags) {
+		for (boolean flag : flags) {
+			if (flag) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * A constructor for labeled volumes that are held out from training, as in the
+	 * test fold of crossvalidation. Genres are read along with features, so predictions
+	 * can be checked, but features are normalized with the normalizer of a model that
+	 * has already been trained rather than with statistics drawn from these volumes.
+	 * 
+	 * @param featurePaths Directories containing feature files, keyed to volumes.
+	 * @param genrePaths Directories containing genre maps, keyed to volumes.
+	 * @param heldOutVols Volume IDs to load.
+	 * @param vocab The vocabulary used to select features.
+	 * @param normalizer Stores feature means and stdevs from the training corpus.
+	 */
+	public Corpus(ArrayList<String> featurePaths, ArrayList<String> genrePaths, ArrayList<String> heldOutVols, 
+			Vocabulary vocab, FeatureNormalizer normalizer) {
 		
-		// The normalizer centers all features on the feature mean, and normalizes them by their
-		// standard deviations. Aka, transforms features to z-scores. This is
-		// desirable because I'm using regularized logistic regression, which will
-		// shrink coefficients toward the origin, and shrinkage pressure is
-		// distributed more evenly if the features have been normalized.
+		genres = new GenreList();
+		vocabulary = vocab;
+		this.normalizer = normalizer;
+		featureMap = vocabulary.getMap();
+		
+		this.trainingVols = heldOutVols;
+		numVolumes = heldOutVols.size();
+		volumeGenres = getVolumeGenres(genrePaths, heldOutVols);
+		volumes = readVolumes(featurePaths, heldOutVols, featureMap);
 		
+		makeLabeledPoints(0, 0L);
 		normalizer.normalizeFeatures(datapoints);
+	}
+	
+	/**
+	 * Reads genre maps and feature files without turning them into DataPoints.
+	 * The result is only useful as a source for the constructor below, which can
+	 * then build normalized corpora for different subsets of volumes (and different
+	 * vocabularies) without returning to disk. Volumes should be read with the
+	 * largest vocabulary that will be needed.
+	 * 
+	 * @param featurePaths Directories containing feature files, keyed to volumes.
+	 * @param genrePaths Directories containing genre maps, keyed to volumes.
+	 * @param vols Volume IDs to read.
+	 * @param vocab The largest vocabulary that will be used with these volumes.
+	 */
+	public static Corpus parseOnly(ArrayList<String> featurePaths, ArrayList<String> genrePaths, ArrayList<String> vols, 
+			Vocabulary vocab) {
+		Corpus parsed = new Corpus();
+		parsed.genres = new GenreList();
+		parsed.vocabulary = vocab;
+		parsed.featureMap = vocab.getMap();
+		parsed.trainingVols = vols;
+		parsed.numVolumes = vols.size();
+		parsed.volumeGenres = parsed.getVolumeGenres(genrePaths, vols);
+		parsed.volumes = parsed.readVolumes(featurePaths, vols, parsed.featureMap);
+		parsed.numPoints = 0;
+		parsed.datapoints = new ArrayList<DataPoint>();
+		return parsed;
+	}
+	
+	private Corpus() {
+		// used only by the static factories
+	}
+	
+	/**
+	 * Reads only the genre maps for a set of volumes. Genre sequences are small even
+	 * when the feature files are not, so this gives a streaming trainer the genre list
+	 * and a source for makeMarkovTable without holding any pages in memory.
+	 */
+	public static Corpus genresOnly(ArrayList<String> genrePaths, ArrayList<String> vols) {
+		Corpus genreSource = new Corpus();
+		genreSource.genres = new GenreList();
+		genreSource.trainingVols = vols;
+		genreSource.numVolumes = vols.size();
+		genreSource.volumeGenres = genreSource.getVolumeGenres(genrePaths, vols);
+		genreSource.volumes = new ArrayList<Volume>();
+		genreSource.datapoints = new ArrayList<DataPoint>();
+		genreSource.numPoints = 0;
+		return genreSource;
+	}
+	
+	/**
+	 * Reads one labeled volume and returns its pages, not yet normalized.
+	 */
+	public static ArrayList<DataPoint> readLabeledPages(String featurePath, String genrePath, String vol, Vocabulary vocab) {
+		ArrayList<String> featurePaths = new ArrayList<String>(1);
+		ArrayList<String> genrePaths = new ArrayList<String>(1);
+		ArrayList<String> vols = new ArrayList<String>(1);
+		featurePaths.add(featurePath);
+		genrePaths.add(genrePath);
+		vols.add(vol);
+		Corpus oneVolume = parseOnly(featurePaths, genrePaths, vols, vocab);
+		oneVolume.makeLabeledPoints(0, 0L);
+		return oneVolume.datapoints;
+	}
+	
+	/**
+	 * Builds a labeled corpus from volumes that were already read by parseOnly. Volumes
+	 * aren't mutated when we make DataPoints from them, so several corpora (for different
+	 * folds, or different configurations of a sweep) can be built from the same parsed
+	 * source at once.
+	 * 
+	 * @param parsed A corpus produced by parseOnly.
+	 * @param vols The subset of its volumes to include.
+	 * @param vocab Vocabulary for this corpus; may be smaller than the one used to parse.
+	 * @param normalizer If null, a new normalizer is fit to these volumes, as in training.
+	 * Otherwise the pages are normalized with this one, as for held-out volumes.
+	 */
+	public Corpus(Corpus parsed, ArrayList<String> vols, Vocabulary vocab, FeatureNormalizer normalizer) {
+		this(parsed, vols, vocab, normalizer, 0, 0L);
+	}
+	
+	/**
+	 * As above, but limits each genre to pageBudget pages (if greater than zero),
+	 * as in the training constructor.
+	 */
+	public Corpus(Corpus parsed, ArrayList<String> vols, Vocabulary vocab, FeatureNormalizer normalizer,
+			int pageBudget, long seed) {
+		genres = new GenreList();
+		vocabulary = vocab;
+		featureMap = vocab.getMap();
+		this.trainingVols = vols;
+		numVolumes = vols.size();
 		
-		System.out.println(genres.genreLabels);
-
+		HashMap<String, Integer> parsedIndex = new HashMap<String, Integer>(parsed.numVolumes * 2);
+		for (int i = 0; i < parsed.numVolumes; ++i) {
+			parsedIndex.put(parsed.trainingVols.get(i), i);
+		}
+		volumes = new ArrayList<Volume>(numVolumes);
+		volumeGenres = new ArrayList<ArrayList<String>>(numVolumes);
+		for (String vol : vols) {
+			int idx = parsedIndex.get(vol);
+			volumes.add(parsed.volumes.get(idx));
+			volumeGenres.add(parsed.volumeGenres.get(idx));
+			for (String genre : parsed.volumeGenres.get(idx)) {
+				genres.addLabel(genre);
+			}
+		}
+		// Genres are added in the same order getVolumeGenres would add them.
+		
+		makeLabeledPoints(pageBudget, seed);
+		
+		if (normalizer == null) {
+			this.normalizer = new FeatureNormalizer(vocabulary, datapoints);
+		}
+		else {
+			this.normalizer = normalizer;
+		}
+		this.normalizer.normalizeFeatures(datapoints);
 	}
 	
 	private ArrayList<Volume> readVolumes(ArrayList<String> featurePaths, ArrayList<String> volumeLabels, HashMap<String, Integer> featureMap) {
@@ -426,14 +655,21 @@ public class Corpus {
 	}
 	
 	public MarkovTable makeMarkovTable(ArrayList<String> volumesToUse, double alpha) {
-		MarkovTable markov = new MarkovTable(alpha, genres);
-		
+		HashMap<String, Integer> volumeIndex = new HashMap<String, Integer>(numVolumes * 2);
+		for (int i = 0; i < numVolumes; ++i) {
+			volumeIndex.put(trainingVols.get(i), i);
+		}
+		ArrayList<ArrayList<String>> sequences = new ArrayList<ArrayList<String>>(volumesToUse.size());
 		for (String volume : volumesToUse) {
-			int idx = trainingVols.indexOf(volume);
-			ArrayList<String> aGenreSequence = volumeGenres.get(idx);
-			markov.trainSequence(aGenreSequence);
+			Integer idx = volumeIndex.get(volume);
+			if (idx == null) {
+				System.out.println("No genre sequence for " + volume + "; leaving it out of the Markov table.");
+				continue;
+			}
+			sequences.add(volumeGenres.get(idx));
 		}
 		
+		MarkovTable markov = MarkovTable.countSequences(alpha, genres, sequences);
 		markov.interpolateProbabilities();
 		markov.writeTable("/Users/tunder/output/markovtable.tsv");
 		return markov;
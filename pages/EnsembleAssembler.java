@@ -5,9 +5,10 @@ package pages;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -21,6 +22,13 @@ import java.util.concurrent.TimeUnit;
  * 						of one-vs-all logistic models.
  * @param 	inQueue		Transports Unknowns from the previous stage of the assembly line.
  * @param 	outQueue	Transports Unknowns to the next stage of the assembly line.
+ * @param	cascade		If true, the first one-vs-all logistic model in the line screens each
+ * 						volume, and multiclass forests further along score only the pages it was
+ * 						unsure of: those whose top probability falls below threshold, or whose
+ * 						gap over the runner-up falls below gapThreshold (the measures of
+ * 						ClassificationResult). On the other pages a forest's raw predictions
+ * 						are the screening model's, normalized; the two are merged before
+ * 						smoothing, so every model still smooths a whole volume.
  *
  */
 
@@ -33,10 +41,25 @@ public class EnsembleAssembler implements Runnable {
 	private int numVolumes;
 	private final BlockingQueue<Unknown> inQueue;
 	private final BlockingQueue<Unknown> outQueue;
+	private boolean cascade;
+	private double threshold;
+	private double gapThreshold;
+	private long pagesSeen = 0;
+	private long pagesEscalated = 0;
+	private long pagesScreened = 0;
 	
 	public EnsembleAssembler(Model model, String modelName, String modelInstruction, int numVolumes, 
 			BlockingQueue<Unknown> inQueue, BlockingQueue<Unknown> outQueue) {
+		this(model, modelName, modelInstruction, numVolumes, inQueue, outQueue, false, 0d, 0d);
+	}
+	
+	public EnsembleAssembler(Model model, String modelName, String modelInstruction, int numVolumes, 
+			BlockingQueue<Unknown> inQueue, BlockingQueue<Unknown> outQueue, boolean cascade, 
+			double threshold, double gapThreshold) {
 		
+		this.cascade = cascade;
+		this.threshold = threshold;
+		this.gapThreshold = gapThreshold;
 		this.model = model;
 		this.name = modelName;
 		this.modelType = modelInstruction;
@@ -74,6 +97,13 @@ public class EnsembleAssembler implements Runnable {
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
 		}
+		if (pagesScreened > 0) {
+			System.out.println("Cascade: model " + name + " escalated " + pagesEscalated + " of " + pagesScreened + 
+					" pages (" + String.format("%.1f", 100d * pagesEscalated / pagesScreened) + "%).");
+		}
+		else if (cascade && modelType.equals("-multiclassforest")) {
+			System.out.println("Cascade: model " + name + " scored " + pagesEscalated + " of " + pagesSeen + " pages.");
+		}
 		System.out.println("Terminated loop, model " + name);
 	}
 	
@@ -98,9 +128,17 @@ public class EnsembleAssembler implements Runnable {
 		
 		ArrayList<DataPoint> thesePages = thisVolume.datapoints;
 		ArrayList<double[]> rawProbs;
+		boolean[] escalated = null;
+		if (cascade) escalated = beingClassified.getEscalated();
+		
 		if (modelType.equals("-multiclassforest")) {
 			GenrePredictorMulticlass forest = (GenrePredictorMulticlass) classifiers.get(0);
-			rawProbs = forest.getRawProbabilities(thisVolume, numPoints);
+			if (escalated == null) {
+				rawProbs = forest.getRawProbabilities(thisVolume, numPoints);
+			}
+			else {
+				rawProbs = scoreEscalated(forest, thesePages, escalated, beingClassified.getScreeningProbs());
+			}
 		}
 		else {
 			// We assume model type is -onevsalllogistic.
@@ -114,24 +152,27 @@ public class EnsembleAssembler implements Runnable {
 			
 			// The logistic approach I use builds separate classifiers for each
 			// genre in a one-vs-all fashion. We speed up this embarrassingly
-			// parallel problem with an executor service.
-			final ExecutorService executor = Executors.newFixedThreadPool(4);
-			
-			ArrayList<Future<double[][]>> summaries = new ArrayList<Future<double[][]>>(numGenres-2);
+			// parallel problem by scoring genres on the shared pool, which every
+			// stage of the ensemble uses for every volume; it is sized to the CPU
+			// budget, so the four assemblers together never occupy more cores than that.
+			ExecutorService pool = ResourceGovernor.pool();
+			ArrayList<Callable<double[][]>> genreTasks = new ArrayList<Callable<double[][]>>(numGenres-2);
 			for (int i = 2; i < numGenres; ++i) {
 				GenrePredictor classify = classifiers.get(i);
-				AtomicClassifyingThread oneGenre = new AtomicClassifyingThread(classify, thesePages);
-				Future<double[][]> summary = executor.submit(oneGenre);
-				summaries.add(summary);
+				genreTasks.add(new AtomicClassifyingThread(classify, thesePages));
 			}
 			
-			executor.shutdown();
+			List<Future<double[][]>> summaries;
 			try {
-				executor.awaitTermination(600, TimeUnit.SECONDS);
+				summaries = pool.invokeAll(genreTasks);
 			} catch (InterruptedException e) {
 				System.out.println("Helpful error message: Execution was interrupted.");
+				Thread.currentThread().interrupt();
+				WarningLogger.logWarning("Model " + name + " was interrupted while scoring " + volLabel + "; it is not classified.");
+				return beingClassified;
+				// Without this model's result the volume isn't written, rather than written with zero probabilities.
 			}
-			// block until all threads are completed
+			// block until all genres are scored
 			
 			for (int i = 2; i < numGenres; ++i) {
 				Future<double[][]> aFuture = summaries.get(i-2);
@@ -144,6 +185,8 @@ public class EnsembleAssembler implements Runnable {
 					System.out.println("Sophisticated error handling.");
 				}
 			}
+			
+			if (cascade && escalated == null) screen(beingClassified, rawProbs);
 		}
 		
 		double[] wordLengths = new double[numPoints];
@@ -164,4 +207,61 @@ public class EnsembleAssembler implements Runnable {
 		return beingClassified;	
 	}
 	
+	/**
+	 * Marks the pages this model is unsure of, for costlier models further down the line,
+	 * and keeps its predictions for the rest.
+	 */
+	private void screen(Unknown beingClassified, ArrayList<double[]> rawProbs) {
+		int numPoints = rawProbs.size();
+		boolean[] escalated = new boolean[numPoints];
+		ArrayList<double[]> screeningProbs = new ArrayList<double[]>(numPoints);
+		for (int i = 0; i < numPoints; ++i) {
+			double[] probs = rawProbs.get(i);
+			double[] measures = ClassificationResult.confidence(probs, numGenres);
+			escalated[i] = measures[0] < threshold || measures[1] < gapThreshold;
+			if (escalated[i]) pagesEscalated += 1;
+			
+			double total = 0d;
+			for (double p : probs) {
+				total += p;
+			}
+			double[] normalized = new double[numGenres];
+			for (int g = 0; g < numGenres; ++g) {
+				if (total > 0) normalized[g] = probs[g] / total;
+			}
+			screeningProbs.add(normalized);
+		}
+		pagesScreened += numPoints;
+		beingClassified.putScreening(escalated, screeningProbs);
+	}
+	
+	/**
+	 * Runs the forest on escalated pages only, and fills in the rest from the screening model.
+	 */
+	private ArrayList<double[]> scoreEscalated(GenrePredictorMulticlass forest, ArrayList<DataPoint> thesePages,
+			boolean[] escalated, ArrayList<double[]> screeningProbs) {
+		int numPoints = thesePages.size();
+		ArrayList<DataPoint> uncertain = new ArrayList<DataPoint>();
+		for (int i = 0; i < numPoints; ++i) {
+			if (escalated[i]) uncertain.add(thesePages.get(i));
+		}
+		double[][] forestProbs = new double[0][];
+		if (uncertain.size() > 0) forestProbs = forest.testNewInstances(uncertain);
+		pagesSeen += numPoints;
+		pagesEscalated += uncertain.size();
+		
+		ArrayList<double[]> rawProbs = new ArrayList<double[]>(numPoints);
+		int next = 0;
+		for (int i = 0; i < numPoints; ++i) {
+			if (escalated[i]) {
+				rawProbs.add(forestProbs[next].clone());
+				next += 1;
+			}
+			else {
+				rawProbs.add(screeningProbs.get(i).clone());
+			}
+		}
+		return rawProbs;
+	}
+	
 }
@@ -10,6 +10,8 @@ import java.util.HashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import json.JSONObject;
+
 /**
  * @author tunder
  *
@@ -24,9 +26,24 @@ public class EnsembleOutput implements Runnable {
 	private ArrayList<String> genreLabels;
 	private int numGenres;
 	private HashMap<String, Integer> genreIndex;
+	private CompletionJournal journal;
+	private ArrayList<String> allVolumes;
 	
 	public EnsembleOutput(String outputDir, BlockingQueue<Unknown> inQueue, int numVolumes, int numModels, 
 			ArrayList<String> modelNames, ArrayList<String> genreLabels, HashMap<String, Integer> genreIndex) {
+		this(outputDir, inQueue, numVolumes, numModels, modelNames, genreLabels, genreIndex, null, null);
+	}
+	
+	/**
+	 * @param journal		Where each volume is recorded once its results are written.
+	 * @param allVolumes	Every volume in the run, including any skipped on resuming; those
+	 * 						not completed by the end are listed in failed.txt.
+	 */
+	public EnsembleOutput(String outputDir, BlockingQueue<Unknown> inQueue, int numVolumes, int numModels, 
+			ArrayList<String> modelNames, ArrayList<String> genreLabels, HashMap<String, Integer> genreIndex,
+			CompletionJournal journal, ArrayList<String> allVolumes) {
+		this.journal = journal;
+		this.allVolumes = allVolumes;
 		this.outputDir = outputDir;
 		this.inQueue = inQueue;
 		this.numVolumes = numVolumes;
@@ -43,6 +60,8 @@ public class EnsembleOutput implements Runnable {
 		for (int i = 0; i < numVolumes; ++i) {
 			try {
 				Unknown volume = inQueue.poll(10, TimeUnit.MINUTES);
+				if (volume == null) continue;
+				// A volume that couldn't be read never arrives.
 				
 				// We need to check that this volume has a result associated with each model.
 				// Otherwise don't print anything.
@@ -53,15 +72,23 @@ public class EnsembleOutput implements Runnable {
 					String outFile = thisFile + ".predict";
 					String outPath = outputDir + "/" + outFile;
 					
+					// All the models' records are written together, in one replacement of the file.
+					ArrayList<JSONObject> records = new ArrayList<JSONObject>(numModels + 1);
 					for (int j = 0; j < numModels; ++j) {
 						String name = modelNames.get(j);
 						JSONResultWriter writer = new JSONResultWriter(outPath, name, genreLabels);
-						writer.writeJSON(numPoints, thisFile, volume.getRaw(j), volume.getSmooth(j));
+						records.add(writer.jsonRecord(numPoints, thisFile, volume.getRaw(j), volume.getSmooth(j)));
 					}
 				
 					ClassificationResult consensus = reconcilePredictions(volume.rawResults, volume.smoothResults, numPoints);
 					JSONResultWriter writer = new JSONResultWriter(outPath, "ensemble", genreLabels);
-					writer.writeConsensus(thisFile, consensus, numPoints);
+					records.add(writer.consensusRecord(thisFile, consensus, numPoints));
+					boolean written = JSONResultWriter.replaceRecords(outPath, records);
+					if (written && journal != null) journal.markComplete(thisFile);
+				}
+				else if (volume.getNumPoints() == 0 && journal != null) {
+					journal.markComplete(volume.getLabel());
+					// No model had pages to classify, so there's nothing to write; the volume is done.
 				}
 				volume = null;
 				// Here we are freeing up the object at the end of the assembly line to avoid
@@ -70,6 +97,11 @@ public class EnsembleOutput implements Runnable {
 				Thread.currentThread().interrupt();
 			}
 		}
+		if (journal != null) {
+			System.out.println(journal.report());
+			int failed = journal.writeFailed(allVolumes);
+			if (failed > 0) System.out.println(failed + " volumes were not classified; they are listed in failed.txt.");
+		}
 		System.out.println("Terminated output loop.");
 	}
 	
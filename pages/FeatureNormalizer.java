@@ -20,6 +20,34 @@ public class FeatureNormalizer implements Serializable {
 	// because it will include the STRUCTURALFEATURES contained in Global.
 	public ArrayList<Double> stdevOfFeatures;
 	public ArrayList<Double> meansOfFeatures;
+	private transient double[] meanArray;
+	private transient double[] stdevArray;
+	
+	/**
+	 * Builds a normalizer from statistics computed elsewhere, e.g. accumulated one
+	 * volume at a time by StreamingTrainer.
+	 * 
+	 * @param means		Mean of each feature, in the order of the vocabulary followed by
+	 * 					the structural features.
+	 * @param stdevs	Population standard deviation of each feature, in the same order.
+	 */
+	public FeatureNormalizer(Vocabulary vocabulary, double[] means, double[] stdevs) {
+		String[] vocabularyArray = vocabulary.vocabularyArray;
+		featureCount = vocabularyArray.length + Global.FEATURESADDED;
+		features = new ArrayList<String>(featureCount);
+		meansOfFeatures = new ArrayList<Double>(featureCount);
+		stdevOfFeatures = new ArrayList<Double>(featureCount);
+		for (String word : vocabularyArray) {
+			features.add(word);
+		}
+		for (String aFeature : Global.STRUCTURALFEATURES) {
+			features.add(aFeature);
+		}
+		for (int i = 0; i < featureCount; ++i) {
+			meansOfFeatures.add(means[i]);
+			stdevOfFeatures.add(stdevs[i]);
+		}
+	}
 	
 	public FeatureNormalizer(Vocabulary vocabulary, ArrayList<DataPoint> datapoints) {
 		int numPoints = datapoints.size();
@@ -76,15 +104,45 @@ public class FeatureNormalizer implements Serializable {
 	public ArrayList<DataPoint> normalizeFeatures(ArrayList<DataPoint> datapoints) {
 		
 		double[] vector = new double[featureCount];
+		double[] means = meanArray();
+		double[] stdevs = stdevArray();
+		ScoringKernels kernels = ScoringKernels.get();
 		// now normalize ALL the points!
 		for (DataPoint aPoint : datapoints) {
 			vector = aPoint.vector;
-			for (int i = 0; i < featureCount; ++i) {
-				vector[i] = (vector[i] - meansOfFeatures.get(i))
-						/ stdevOfFeatures.get(i);
-			}
+			kernels.normalize(vector, means, stdevs);
 			aPoint.setVector(vector);
 		}
 		return datapoints;
 	}
+	
+	/**
+	 * The means and standard deviations as arrays, unboxed once rather than for every
+	 * feature of every page. Not serialized; rebuilt when a model is loaded.
+	 */
+	private double[] meanArray() {
+		double[] means = meanArray;
+		if (means == null) {
+			means = unbox(meansOfFeatures);
+			meanArray = means;
+		}
+		return means;
+	}
+	
+	private double[] stdevArray() {
+		double[] stdevs = stdevArray;
+		if (stdevs == null) {
+			stdevs = unbox(stdevOfFeatures);
+			stdevArray = stdevs;
+		}
+		return stdevs;
+	}
+	
+	private double[] unbox(ArrayList<Double> values) {
+		double[] unboxed = new double[featureCount];
+		for (int i = 0; i < featureCount; ++i) {
+			unboxed[i] = values.get(i);
+		}
+		return unboxed;
+	}
 }
@@ -0,0 +1,276 @@
+/**
+ *
+ */
+package pages;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A trained Weka RandomForest flattened into arrays, for scoring pages in bulk.
+ *
+ * Weka evaluates a forest one instance at a time: each of its trees (500 of them in a
+ * -multiclassforest model) is a graph of node objects, walked by recursive calls that
+ * allocate a fresh distribution array at every leaf. Here every node of every tree gets
+ * an index into parallel arrays: the feature it splits on, the threshold, the indexes
+ * of its two children, and its class distribution (already normalized, as Weka would
+ * normalize it on the way out). A batch of pages is then scored one tree at a time, so
+ * that a tree's nodes are fetched into cache once for the batch rather than once per
+ * page, and the walk from root to leaf is a loop over array indexes.
+ *
+ * The result follows Weka's RandomTree and Bagging exactly, including their handling of
+ * missing (NaN) values, which are split across both children in proportion to the
+ * training data, and of empty nodes, which defer to their nearest non-empty ancestor.
+ *
+ * Weka doesn't expose a tree's structure, so we read it by reflection from the fields
+ * RandomForest, Bagging and RandomTree have used through the 3.7 and 3.8 releases.
+ * If any of them is missing, or the forest uses something we don't handle (nominal
+ * splits, a ZeroR fallback), compile returns null and the forest is scored by Weka.
+ *
+ * @param attribute		For each node, the feature it splits on, or -1 for a leaf.
+ * @param split			For each node, the threshold: values below it go left.
+ * @param left			For each node, the index of its left child.
+ * @param right			For each node, the index of its right child.
+ * @param leftShare	For each node, the share of training data that went left, which
+ * 						weights the left child when the feature is missing.
+ * @param rightShare	Likewise for the right child.
+ * @param distribution	For each node, its normalized class distribution, or null if no
+ * 						training data reached it.
+ * @param roots			The root node of each tree.
+ */
+public class FlatForest {
+	private int numClasses;
+	private int[] attribute;
+	private double[] split;
+	private int[] left;
+	private int[] right;
+	private double[] leftShare;
+	private double[] rightShare;
+	private double[][] distribution;
+	private int[] roots;
+	private int numNodes;
+
+	private FlatForest(int numClasses, int numTrees) {
+		this.numClasses = numClasses;
+		roots = new int[numTrees];
+		int capacity = 1024;
+		attribute = new int[capacity];
+		split = new double[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+		leftShare = new double[capacity];
+		rightShare = new double[capacity];
+		distribution = new double[capacity][];
+	}
+
+	/**
+	 * @param forest		A trained weka.classifiers.trees.RandomForest.
+	 * @param numClasses	Number of values of its class attribute.
+	 * @return The forest flattened, or null if its structure can't be read.
+	 */
+	public static FlatForest compile(Object forest, int numClasses) {
+		try {
+			Object bagger = forest;
+			Field baggerField = findField(forest.getClass(), "m_bagger");
+			// Through 3.7.11 a RandomForest holds a Bagging; later, it is one.
+			if (baggerField != null) bagger = baggerField.get(forest);
+			Object[] trees = (Object[]) fieldValue(bagger, "m_Classifiers");
+			if (trees == null || trees.length < 1) return null;
+
+			FlatForest flat = new FlatForest(numClasses, trees.length);
+			for (int t = 0; t < trees.length; ++t) {
+				Object tree = trees[t];
+				if (tree == null || !tree.getClass().getName().equals("weka.classifiers.trees.RandomTree")) return null;
+				Field zeroR = findField(tree.getClass(), "m_zeroR");
+				if (zeroR != null && zeroR.get(tree) != null) return null;
+				Field allowField = findField(tree.getClass(), "m_AllowUnclassifiedInstances");
+				boolean allowUnclassified = allowField != null && allowField.getBoolean(tree);
+				Object root = tree;
+				Field rootField = findField(tree.getClass(), "m_Tree");
+				// Since 3.7.10 the nodes are a RandomTree.Tree held by the RandomTree; before, they were RandomTrees.
+				if (rootField != null) root = rootField.get(tree);
+				if (root == null) return null;
+				int rootIndex = flat.addTree(root, allowUnclassified);
+				if (rootIndex < 0) return null;
+				flat.roots[t] = rootIndex;
+			}
+			System.out.println("Flattened a forest of " + trees.length + " trees into " + flat.numNodes + " nodes.");
+			return flat;
+		}
+		catch (IllegalAccessException e) {
+			return null;
+		}
+		catch (RuntimeException e) {
+			// Fields of an unexpected type, or inaccessible in this JVM.
+			return null;
+		}
+	}
+
+	/**
+	 * Adds a tree's nodes, depth-first.
+	 *
+	 * @return The index of the root, or -1 if the tree has a node we can't flatten.
+	 */
+	private int addTree(Object root, boolean allowUnclassified) throws IllegalAccessException {
+		ArrayList<Object> pending = new ArrayList<Object>();
+		ArrayList<Integer> slots = new ArrayList<Integer>();
+		int rootIndex = newNode();
+		pending.add(root);
+		slots.add(rootIndex);
+		while (pending.size() > 0) {
+			Object node = pending.remove(pending.size() - 1);
+			int index = slots.remove(slots.size() - 1);
+
+			double[] counts = (double[]) fieldValue(node, "m_ClassDistribution");
+			if (counts == null) {
+				if (allowUnclassified) distribution[index] = new double[numClasses];
+			}
+			else {
+				if (counts.length != numClasses) return -1;
+				double sum = 0d;
+				for (double count : counts) {
+					sum += count;
+				}
+				if (sum == 0 || Double.isNaN(sum)) return -1;
+				// Weka would refuse to normalize this when it reached it.
+				double[] normalized = new double[numClasses];
+				for (int c = 0; c < numClasses; ++c) {
+					normalized[c] = counts[c] / sum;
+				}
+				distribution[index] = normalized;
+			}
+
+			int splitOn = ((Integer) fieldValue(node, "m_Attribute")).intValue();
+			attribute[index] = splitOn;
+			if (splitOn < 0) continue;
+
+			Object[] successors = (Object[]) fieldValue(node, "m_Successors");
+			double[] props = (double[]) fieldValue(node, "m_Prop");
+			if (successors == null || successors.length != 2 || props == null || props.length != 2) return -1;
+			// Two successors means a numeric split; a nominal one would have one per value.
+			split[index] = ((Double) fieldValue(node, "m_SplitPoint")).doubleValue();
+			leftShare[index] = props[0];
+			rightShare[index] = props[1];
+			int leftIndex = newNode();
+			int rightIndex = newNode();
+			left[index] = leftIndex;
+			right[index] = rightIndex;
+			pending.add(successors[1]);
+			slots.add(rightIndex);
+			pending.add(successors[0]);
+			slots.add(leftIndex);
+		}
+		return rootIndex;
+	}
+
+	private int newNode() {
+		if (numNodes == attribute.length) {
+			int capacity = attribute.length * 2;
+			attribute = Arrays.copyOf(attribute, capacity);
+			split = Arrays.copyOf(split, capacity);
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+			leftShare = Arrays.copyOf(leftShare, capacity);
+			rightShare = Arrays.copyOf(rightShare, capacity);
+			distribution = Arrays.copyOf(distribution, capacity);
+		}
+		int index = numNodes;
+		numNodes += 1;
+		return index;
+	}
+
+	/**
+	 * Scores a batch of pages, tree by tree.
+	 *
+	 * @return For each page, the forest's distribution over classes: the sum of its
+	 * trees' distributions, normalized unless it is zero (as Bagging does).
+	 */
+	public double[][] distributions(ArrayList<DataPoint> pages) {
+		int numPages = pages.size();
+		double[][] vectors = new double[numPages][];
+		for (int p = 0; p < numPages; ++p) {
+			vectors[p] = pages.get(p).vector;
+		}
+		double[][] sums = new double[numPages][numClasses];
+		for (int root : roots) {
+			for (int p = 0; p < numPages; ++p) {
+				double[] treeProbs = descend(root, vectors[p]);
+				if (treeProbs == null) continue;
+				double[] pageSums = sums[p];
+				for (int c = 0; c < numClasses; ++c) {
+					pageSums[c] += treeProbs[c];
+				}
+			}
+		}
+		for (double[] pageSums : sums) {
+			double total = 0d;
+			for (double value : pageSums) {
+				total += value;
+			}
+			if (Math.abs(total) < 1e-6) continue;
+			// Weka's Utils.eq(sum, 0): leave a forest that abstained as all zeros.
+			for (int c = 0; c < numClasses; ++c) {
+				pageSums[c] = pageSums[c] / total;
+			}
+		}
+		return sums;
+	}
+
+	/**
+	 * @return One tree's distribution for a page, or null where Weka's would be null. Not
+	 * a copy; callers mustn't change it.
+	 */
+	private double[] descend(int node, double[] page) {
+		double[] found = null;
+		// A node whose subtree returns nothing answers with its own distribution, so the
+		// answer is the distribution of the deepest node on the path that has one.
+		while (true) {
+			if (distribution[node] != null) found = distribution[node];
+			int splitOn = attribute[node];
+			if (splitOn < 0) return found;
+			double value = page[splitOn];
+			if (value != value) return splitMissing(node, page);
+			// That's true only for NaN, which Weka treats as missing.
+			node = (value < split[node]) ? left[node] : right[node];
+		}
+	}
+
+	private double[] splitMissing(int node, double[] page) {
+		double[] combined = new double[numClasses];
+		double[] fromLeft = descend(left[node], page);
+		if (fromLeft != null) {
+			for (int c = 0; c < numClasses; ++c) {
+				combined[c] += leftShare[node] * fromLeft[c];
+			}
+		}
+		double[] fromRight = descend(right[node], page);
+		if (fromRight != null) {
+			for (int c = 0; c < numClasses; ++c) {
+				combined[c] += rightShare[node] * fromRight[c];
+			}
+		}
+		return combined;
+	}
+
+	private static Field findField(Class<?> type, String name) {
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			try {
+				Field field = c.getDeclaredField(name);
+				field.setAccessible(true);
+				return field;
+			}
+			catch (NoSuchFieldException e) {
+				// try the superclass
+			}
+		}
+		return null;
+	}
+
+	private static Object fieldValue(Object target, String name) throws IllegalAccessException {
+		Field field = findField(target.getClass(), name);
+		if (field == null) throw new IllegalStateException("No field " + name + " in " + target.getClass().getName());
+		return field.get(target);
+	}
+
+}
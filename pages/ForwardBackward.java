@@ -27,6 +27,12 @@ public class ForwardBackward {
 		// These are not v. determinative; they just define regions of the volume where we consider
 		// blank pages informative.
 		
+		double[][] transitions = new double[numGenres][];
+		for (int j = 0; j < numGenres; ++j) {
+			transitions[j] = markov.transitionProbs(j);
+		}
+		ScoringKernels kernels = ScoringKernels.get();
+		
 		// Forward.
 		ArrayList<double[]> forward = new ArrayList<double[]>();
 		// stores the normalized state probability for each step
@@ -53,15 +59,8 @@ public class ForwardBackward {
 			nextstep = new double[numGenres];
 			sum = 0d;
 			
-			for (int j = 0; j < numGenres; ++j) {
-				// j iterates over possible previous states
-				double[] fromStateJ = markov.transitionProbs(j);
-				double inStateJ = forward.get(i-1)[j];
-				for (int k = 0; k < numGenres; ++k) {
-					// k iterates over possible following states
-					nextstep[k] +=  inStateJ * fromStateJ[k];
-				}	
-			}
+			// Sum over possible previous states j of P(j) * P(k | j), for each following state k.
+			kernels.multiplyLeft(forward.get(i-1), transitions, nextstep);
 			// Now nextstep contains the one-step-ahead predictive density.
 			if (wordLengths[i] > 5 | i < frontmatter | i > backmatter) {
 				// We only consider the evidence vector if there are some words on
@@ -102,7 +101,7 @@ public class ForwardBackward {
 		
 		sum = 0d;
 		for (int i = 0; i < numGenres; ++i) {
-			nextstep[i] = markov.transitionProbs(i)[ending] * evidenceVectors.get(time-1)[i];
+			nextstep[i] = transitions[i][ending] * evidenceVectors.get(time-1)[i];
 			// that's the chance that i would produce an ending times the evidence for i on the page itself.
 			sum += nextstep[i];
 		}
@@ -113,14 +112,9 @@ public class ForwardBackward {
 			nextstep = new double[numGenres];
 			sum = 0d;
 			
+			// Sum over possible following states k of P(k | j) * backward(k), for each previous state j.
+			kernels.multiplyRight(transitions, backward.get(i+1), nextstep);
 			for (int j = 0; j < numGenres; ++j) {
-				// j iterates over possible previous states
-				double[] fromStateJ = markov.transitionProbs(j);
-				for (int k = 0; k < numGenres; ++k) {
-					// k iterates over possible following states
-					double inStateK = backward.get(i+1)[k];
-					nextstep[j] += inStateK * fromStateJ[k];
-				}
 				if (wordLengths[i] > 5 | i < frontmatter | i > backmatter) {
 					nextstep[j] = nextstep[j] * evidenceVectors.get(i)[j];
 				}
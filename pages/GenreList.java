@@ -1,29 +1,47 @@
 package pages;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 public class GenreList implements java.io.Serializable {
 	public ArrayList<String> genreLabels;
 	private static final long serialVersionUID = 114L;
-	public HashMap<String, Integer> genreIndex;
+	public volatile HashMap<String, Integer> genreIndex;
+	// Never changed once published: addLabel and makeIndex build a new map and swap it in,
+	// so threads that look genres up need no lock.
 	
 	public GenreList() {
 		genreLabels = new ArrayList<String>();
 		genreLabels.add("begin");
 		genreLabels.add("end");
+		makeIndex();
 		// Whenever you create a new GenreList, it must have entries for the "begin" and "end" genres,
 		// because every Markov sequence has these as endposts.
 	}
 	
 	public void addLabel(String newLabel) {
-		if (!genreLabels.contains(newLabel)) {
+		if (getIndex(newLabel) < 0) {
 			genreLabels.add(newLabel);
+			HashMap<String, Integer> index = new HashMap<String, Integer>(genreIndex);
+			index.put(newLabel, genreLabels.size() - 1);
+			genreIndex = index;
 		}
 	}
 	
+	/**
+	 * Looks a genre up in the hash index rather than searching the list, since this is
+	 * called for every page we read. The index is kept current by addLabel and rebuilt
+	 * when a list is read from disk, so this only reads it. (Labels added to genreLabels
+	 * directly aren't indexed until makeIndex is called.)
+	 * 
+	 * @return The genre's position in genreLabels, or -1 if it isn't there.
+	 */
 	public int getIndex(String genre) {
-		return genreLabels.indexOf(genre);
+		Integer idx = genreIndex.get(genre);
+		if (idx == null) return -1;
+		else return idx;
 	}
 	
 	public int getSize() {
@@ -67,10 +85,20 @@ public class GenreList implements java.io.Serializable {
 	
 	public void makeIndex() {
 		int numGenres = genreLabels.size();
-		genreIndex = new HashMap<String, Integer>(numGenres);
+		HashMap<String, Integer> index = new HashMap<String, Integer>(numGenres * 2);
 		for (int i = 0; i < numGenres; ++ i) {
-			genreIndex.put(genreLabels.get(i), i);
+			index.put(genreLabels.get(i), i);
 		}
+		genreIndex = index;
+		// Built before it's published, so a thread reading the old index never sees a partial one.
+	}
+	
+	/**
+	 * Lists saved before the index was kept up to date may hold none, or a stale one.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		makeIndex();
 	}
 
 }
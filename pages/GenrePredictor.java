@@ -17,7 +17,6 @@ import java.util.ArrayList;
 public class GenrePredictor implements Serializable {
 	private static final long serialVersionUID = 121L;
 	public String genre;
-	public String predictionMetadata;
 	
 	public GenrePredictor() {
 		// purely for subclassing
@@ -36,12 +35,37 @@ public class GenrePredictor implements Serializable {
 		return "Placeholder.";
 	}
 	
-	public void classify(String thisFile, String inputDir, String outputDir, MarkovTable markov, ArrayList<String> genres, 
+	/**
+	 * Classifies a volume and writes its predictions. Predictors don't keep anything
+	 * from one call to the next, so several volumes can be classified at once.
+	 * 
+	 * @return A line for predictionMetadata.tsv: the volume, its average maximum
+	 * probability, and its average gap.
+	 */
+	public String classify(String thisFile, String inputDir, String outputDir, MarkovTable markov, ArrayList<String> genres, 
 			Vocabulary vocabulary, FeatureNormalizer normalizer, boolean isPairtree) {
-		
+		return thisFile + "\tNA\tNA";
 	}
 	
 	public void recreateDataset(GenreList genres, ArrayList<String> features) {
 	}
+	
+	/**
+	 * Discards anything kept only for training, before the predictor is shared by
+	 * threads that classify. Subclasses that wrap Weka models pass this on to them.
+	 */
+	public void freeze() {
+	}
+	
+	/**
+	 * For predictors whose log-odds are a linear function of the features, the weights
+	 * of that function, so LinearScorer can score them without going through Weka.
+	 * 
+	 * @return One weight per feature followed by the intercept, or null if this predictor
+	 * isn't linear in that way.
+	 */
+	public double[] linearWeights() {
+		return null;
+	}
 
 }
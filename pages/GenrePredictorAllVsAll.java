@@ -5,8 +5,21 @@ package pages;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
+ * Predicts one genre by comparing it to every other genre in turn, and averaging
+ * the probabilities from those pairwise models.
+ * 
+ * Models trained by trainAll are shared between the two genres of each pair: the model
+ * for A vs. B is trained once, and B's predictor reads it with the columns reversed.
+ * Predictors built that way also know the index of each opponent, so a whole set of
+ * them can be scored in one pass with scoreAll.
+ * 
  * @author tunder
  *
  */
@@ -15,6 +28,11 @@ public class GenrePredictorAllVsAll extends GenrePredictor implements
 	private static final long serialVersionUID = 122L;
 	private ArrayList<WekaDriver> classifiers;
 	public String genreToIdentify;
+	private int[] opponents;
+	// For each classifier, the index of the genre it distinguishes genreToIdentify from.
+	// Null in models trained one predictor at a time.
+	private boolean[] reversed;
+	// True where the classifier's "positive" class is the opponent rather than genreToIdentify.
 	
 	public GenrePredictorAllVsAll(String dummyString) {
 		classifiers = new ArrayList<WekaDriver>();
@@ -25,6 +43,17 @@ public class GenrePredictorAllVsAll extends GenrePredictor implements
 	
 	public GenrePredictorAllVsAll(GenreList genres, ArrayList<String> features, String genreToIdentify, 
 			ArrayList<DataPoint> datapoints, String ridgeParameter, boolean verbose) {
+		this(genres, features, genreToIdentify, datapoints, null, ridgeParameter, verbose);
+	}
+	
+	/**
+	 * @param indices	Positions in datapoints to train on; if null, every page is used.
+	 */
+	public GenrePredictorAllVsAll(GenreList genres, ArrayList<String> features, String genreToIdentify, 
+			ArrayList<DataPoint> datapoints, int[] indices, String ridgeParameter, boolean verbose) {
+		if (indices == null) {
+			indices = IndexSampler.range(datapoints.size());
+		}
 		this.genreToIdentify = genreToIdentify;
 		
 		int genreCount = genres.getSize() - 3;
@@ -34,29 +63,147 @@ public class GenrePredictorAllVsAll extends GenrePredictor implements
 			if (genreToDistinguish.equals("begin") | genreToDistinguish.equals("end")) continue;
 			if (genreToDistinguish.equals(genreToIdentify)) continue;
 			
-			ArrayList<DataPoint> subsetForThisDistinction = new ArrayList<DataPoint>();
-			for (DataPoint aPoint: datapoints) {
+			int subsetSize = 0;
+			int[] subsetForThisDistinction = new int[indices.length];
+			for (int index : indices) {
+				DataPoint aPoint = datapoints.get(index);
 				if (aPoint.genre.equals(genreToIdentify) | aPoint.genre.equals(genreToDistinguish)) {
-					subsetForThisDistinction.add(aPoint);
+					subsetForThisDistinction[subsetSize] = index;
+					subsetSize += 1;
 				}
 			}
-			WekaDriver aClassifier = new WekaDriver(genres, features, genreToIdentify, subsetForThisDistinction, 
+			subsetForThisDistinction = Arrays.copyOf(subsetForThisDistinction, subsetSize);
+			WekaDriver aClassifier = new WekaDriver(genres, features, genreToIdentify, datapoints, subsetForThisDistinction, 
 					ridgeParameter, verbose);
 			classifiers.add(aClassifier);
 		}
 	}
 	
+	/**
+	 * Assembles a predictor from pairwise models trained elsewhere (see trainAll).
+	 */
+	private GenrePredictorAllVsAll(String genreToIdentify, ArrayList<WekaDriver> classifiers, int[] opponents, 
+			boolean[] reversed) {
+		super(genreToIdentify);
+		this.genreToIdentify = genreToIdentify;
+		this.classifiers = classifiers;
+		this.opponents = opponents;
+		this.reversed = reversed;
+	}
+	
+	/**
+	 * Trains every pairwise model for a corpus, each unordered pair once, as separate
+	 * tasks on the shared pool. Each genre's pages are located once, as an array of
+	 * indices; the subset for a pair is the merge of two of those arrays, and the pages
+	 * themselves are never copied.
+	 * 
+	 * @return One predictor per genre, in the order of the genre list; the first two
+	 * (for the dummy genres "begin" and "end") are placeholders.
+	 */
+	public static ArrayList<GenrePredictor> trainAll(final GenreList genres, final ArrayList<String> features, 
+			final ArrayList<DataPoint> datapoints, final String ridgeParameter, final boolean verbose) {
+		int genreCount = genres.getSize();
+		final ArrayList<String> labels = genres.genreLabels;
+		
+		int[] pagesInGenre = new int[genreCount];
+		for (DataPoint aPoint : datapoints) {
+			int g = genres.getIndex(aPoint.genre);
+			if (g >= 0) pagesInGenre[g] += 1;
+		}
+		final int[][] pagesOfGenre = new int[genreCount][];
+		for (int g = 0; g < genreCount; ++g) {
+			pagesOfGenre[g] = new int[pagesInGenre[g]];
+		}
+		int[] filled = new int[genreCount];
+		for (int i = 0; i < datapoints.size(); ++i) {
+			int g = genres.getIndex(datapoints.get(i).genre);
+			if (g < 0) continue;
+			pagesOfGenre[g][filled[g]] = i;
+			filled[g] += 1;
+		}
+		
+		ExecutorService pool = ResourceGovernor.pool();
+		ArrayList<ArrayList<Future<WekaDriver>>> pairs = new ArrayList<ArrayList<Future<WekaDriver>>>(genreCount);
+		// Row a holds the model for a and b at column b, for each b after a; the rest is null.
+		for (int a = 0; a < genreCount; ++a) {
+			pairs.add(new ArrayList<Future<WekaDriver>>(Collections.<Future<WekaDriver>>nCopies(genreCount, null)));
+		}
+		for (int a = 2; a < genreCount; ++a) {
+			for (int b = a + 1; b < genreCount; ++b) {
+				final int first = a;
+				final int second = b;
+				pairs.get(a).set(b, pool.submit(new Callable<WekaDriver>() {
+					public WekaDriver call() {
+						int granted = ResourceGovernor.acquire(1);
+						try {
+							int[] subset = mergeIndices(pagesOfGenre[first], pagesOfGenre[second]);
+							return new WekaDriver(genres, features, labels.get(first), datapoints, subset, 
+									ridgeParameter, verbose);
+						}
+						finally {
+							ResourceGovernor.release(granted);
+						}
+					}
+				}));
+			}
+		}
+		
+		ArrayList<GenrePredictor> predictors = new ArrayList<GenrePredictor>(genreCount);
+		predictors.add(new GenrePredictor("dummy"));
+		predictors.add(new GenrePredictor("dummy"));
+		for (int g = 2; g < genreCount; ++g) {
+			ArrayList<WekaDriver> drivers = new ArrayList<WekaDriver>(genreCount - 3);
+			int[] opponents = new int[genreCount - 3];
+			boolean[] reversed = new boolean[genreCount - 3];
+			int k = 0;
+			for (int h = 2; h < genreCount; ++h) {
+				if (h == g) continue;
+				Future<WekaDriver> pair = (g < h) ? pairs.get(g).get(h) : pairs.get(h).get(g);
+				try {
+					drivers.add(pair.get());
+				}
+				catch (Exception e) {
+					System.out.println("Pairwise model for " + labels.get(g) + " and " + labels.get(h) + " failed: " + e);
+					drivers.add(new WekaDriver(labels.get(g)));
+				}
+				opponents[k] = h;
+				reversed[k] = (h < g);
+				k += 1;
+			}
+			predictors.add(new GenrePredictorAllVsAll(labels.get(g), drivers, opponents, reversed));
+			System.out.println("Construction worked " + labels.get(g));
+		}
+		return predictors;
+	}
+	
+	/**
+	 * Merges two sorted arrays of page indices, so the pair subset keeps corpus order.
+	 */
+	private static int[] mergeIndices(int[] first, int[] second) {
+		int[] merged = new int[first.length + second.length];
+		int i = 0;
+		int j = 0;
+		int k = 0;
+		while (i < first.length && j < second.length) {
+			if (first[i] < second[j]) merged[k++] = first[i++];
+			else merged[k++] = second[j++];
+		}
+		while (i < first.length) merged[k++] = first[i++];
+		while (j < second.length) merged[k++] = second[j++];
+		return merged;
+	}
+	
 	public double[][] testNewInstances(ArrayList<DataPoint> pointsToTest) {
 		int testSize = pointsToTest.size();
 		double[][] testProbs = new double[testSize][2];
 		
-		
-		for (WekaDriver thisClassifier : classifiers) {
-			
+		for (int k = 0; k < classifiers.size(); ++k) {
+			WekaDriver thisClassifier = classifiers.get(k);
+			int positive = (reversed != null && reversed[k]) ? 1 : 0;
 			double[][] thisComparison = thisClassifier.testNewInstances(pointsToTest);
 			for (int i = 0; i < testSize; ++i) {
-				testProbs[i][0] += thisComparison[i][0];
-				testProbs[i][1] += thisComparison[i][1];
+				testProbs[i][0] += thisComparison[i][positive];
+				testProbs[i][1] += thisComparison[i][1 - positive];
 			}
 		}
 		
@@ -70,5 +217,54 @@ public class GenrePredictorAllVsAll extends GenrePredictor implements
 		
 		return testProbs;
 	}
-
+	
+	/**
+	 * Scores a volume against every genre at once. Each shared pairwise model is
+	 * evaluated a single time, and its probability is credited to both genres of
+	 * the pair, so this does half the work of calling testNewInstances on each
+	 * predictor. The result is the same: for each genre, the mean probability of
+	 * that genre across its comparisons.
+	 * 
+	 * @return Probabilities indexed [page][genre], or null if these predictors weren't
+	 * built by trainAll and have to be scored one by one.
+	 */
+	public static double[][] scoreAll(ArrayList<GenrePredictor> predictors, ArrayList<DataPoint> pages) {
+		int numGenres = predictors.size();
+		int numPages = pages.size();
+		for (int g = 2; g < numGenres; ++g) {
+			GenrePredictor predictor = predictors.get(g);
+			if (!(predictor instanceof GenrePredictorAllVsAll)) return null;
+			if (((GenrePredictorAllVsAll) predictor).opponents == null) return null;
+		}
+		
+		double[][] sums = new double[numPages][numGenres];
+		for (int g = 2; g < numGenres; ++g) {
+			GenrePredictorAllVsAll predictor = (GenrePredictorAllVsAll) predictors.get(g);
+			for (int k = 0; k < predictor.classifiers.size(); ++k) {
+				if (predictor.reversed[k]) continue;
+				// Each pair is scored once, from the side of the genre it was trained to identify.
+				int h = predictor.opponents[k];
+				double[][] probs = predictor.classifiers.get(k).testNewInstances(pages);
+				for (int j = 0; j < numPages; ++j) {
+					sums[j][g] += probs[j][0];
+					sums[j][h] += probs[j][1];
+				}
+			}
+		}
+		for (int g = 2; g < numGenres; ++g) {
+			int comparisons = ((GenrePredictorAllVsAll) predictors.get(g)).classifiers.size();
+			for (int j = 0; j < numPages; ++j) {
+				sums[j][g] = sums[j][g] / comparisons;
+			}
+		}
+		return sums;
+	}
+	
+	@Override
+	public void freeze() {
+		// Pairwise models are shared with other genres' predictors, but freezing twice is harmless.
+		for (WekaDriver classifier : classifiers) {
+			classifier.freeze();
+		}
+	}
 }
@@ -6,9 +6,22 @@ package pages;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.Math;
 
 /**
+ * Averages several logistic models for one genre, each trained on a bootstrap
+ * sample of the pages with its own ridge parameter.
+ * 
+ * A bootstrap sample is drawn as a vector of weights over page indices: a page drawn
+ * three times is included once, with weight 3, so no pages are copied. All samples are
+ * drawn up front from a single seeded Random, which makes the ensemble reproducible
+ * regardless of the order in which bags finish. The bags then train in parallel:
+ * the calling thread trains bags itself, helped by as many tasks on the shared pool
+ * as the ResourceGovernor has idle cores for.
+ * 
  * @author tunder
  *
  */
@@ -19,6 +32,35 @@ public class GenrePredictorBagged extends GenrePredictor implements
 	private ArrayList<WekaDriver> classifiers;
 	public String genreToIdentify;
 	
+	public static final String[] DEFAULT_RIDGES = {"0.1", "10", "50"};
+	
+	/**
+	 * Parses a comma-separated schedule of ridge values, as given to -bagridges. Spaces
+	 * around values are dropped, and values that aren't numbers are reported and skipped;
+	 * unlike RidgePath.parseRidgeValues, the order is kept, since it's the order of the bags.
+	 * 
+	 * @return The ridges, or DEFAULT_RIDGES if none of them parse.
+	 */
+	public static String[] parseRidges(String commaSeparated) {
+		ArrayList<String> ridges = new ArrayList<String>();
+		for (String value : commaSeparated.split(",")) {
+			value = value.trim();
+			if (value.length() < 1) continue;
+			try {
+				Double.parseDouble(value);
+				ridges.add(value);
+			}
+			catch (NumberFormatException e) {
+				System.out.println("Bag ridge " + value + " does not parse as a number and will be ignored.");
+			}
+		}
+		if (ridges.size() < 1) {
+			System.out.println("No usable bag ridges in " + commaSeparated + "; using the defaults.");
+			return DEFAULT_RIDGES;
+		}
+		return ridges.toArray(new String[ridges.size()]);
+	}
+	
 	public GenrePredictorBagged(String dummyString) {
 		classifiers = new ArrayList<WekaDriver>();
 		WekaDriver dummyClassifier = new WekaDriver(dummyString);
@@ -28,27 +70,98 @@ public class GenrePredictorBagged extends GenrePredictor implements
 	
 	public GenrePredictorBagged(GenreList genres, ArrayList<String> features, String genreToIdentify, 
 			ArrayList<DataPoint> datapoints, String ridgeParameter, boolean verbose) {
+		this(genres, features, genreToIdentify, datapoints, null, DEFAULT_RIDGES.length, DEFAULT_RIDGES, 
+				new TrainingSettings().seed, verbose);
+	}
+	
+	/**
+	 * @param indices	Positions in datapoints to sample from; if null, every page.
+	 * @param bags		Number of bootstrap models to train.
+	 * @param ridges	Ridge parameter for each bag; if there are fewer ridges than bags,
+	 * 					the schedule repeats.
+	 * @param seed		Seeds the bootstrap samples.
+	 */
+	public GenrePredictorBagged(final GenreList genres, final ArrayList<String> features, final String genreToIdentify, 
+			final ArrayList<DataPoint> datapoints, int[] indices, final int bags, final String[] ridges, long seed, 
+			final boolean verbose) {
+		super(genreToIdentify);
 		this.genreToIdentify = genreToIdentify;
+		if (indices == null) {
+			indices = IndexSampler.range(datapoints.size());
+		}
 		
-		int repetitions = 3;
-		String[] ridgeoptions = {"0.1", "10", "50"};
-		classifiers = new ArrayList<WekaDriver>(repetitions);
+		final int[][] bagIndices = new int[bags][];
+		final double[][] bagWeights = new double[bags][];
+		Random coin = new Random(seed);
+		int subsetSize = (int) Math.ceil(indices.length * 0.66);
+		for (int b = 0; b < bags; ++b) {
+			// bootstrap sample with replacement, recorded as a count for each position
+			int[] counts = new int[indices.length];
+			int distinct = 0;
+			for (int j = 0; j < subsetSize; ++j) {
+				int k = coin.nextInt(indices.length);
+				if (counts[k] == 0) distinct += 1;
+				counts[k] += 1;
+			}
+			bagIndices[b] = new int[distinct];
+			bagWeights[b] = new double[distinct];
+			int filled = 0;
+			for (int k = 0; k < indices.length; ++k) {
+				if (counts[k] == 0) continue;
+				bagIndices[b][filled] = indices[k];
+				bagWeights[b][filled] = counts[k];
+				filled += 1;
+			}
+		}
 		
-		Random coin = new Random(System.currentTimeMillis());
-		int subsetSize = (int) Math.ceil(datapoints.size() * 0.66);
+		final WekaDriver[] trained = new WekaDriver[bags];
+		final AtomicInteger nextBag = new AtomicInteger(0);
+		final CountDownLatch finished = new CountDownLatch(bags);
+		Runnable trainer = new Runnable() {
+			public void run() {
+				int b;
+				while ((b = nextBag.getAndIncrement()) < bags) {
+					try {
+						trained[b] = new WekaDriver(genres, features, genreToIdentify, datapoints, bagIndices[b], 
+								bagWeights[b], ridges[b % ridges.length], verbose);
+					}
+					catch (RuntimeException e) {
+						System.out.println("Bag " + b + " for " + genreToIdentify + " failed: " + e);
+						// Left null, and dropped below; the other bags still count.
+					}
+					finally {
+						finished.countDown();
+					}
+				}
+			}
+		};
 		
-		for (int i = 0; i < repetitions; ++i) {
-			// bootstrap sample with replacement
-			ArrayList<DataPoint> subsetForThisDistinction = new ArrayList<DataPoint>();
-			for (int j = 0; j < subsetSize; ++ j) {
-				int idx = coin.nextInt(datapoints.size());
-				DataPoint aPoint = datapoints.get(idx);
-				subsetForThisDistinction.add(aPoint);
+		int helpers = ResourceGovernor.acquireExtra(bags - 1);
+		// The calling thread already holds a core; helpers run only on cores that are idle.
+		try {
+			ExecutorService pool = ResourceGovernor.pool();
+			for (int h = 0; h < helpers; ++h) {
+				pool.execute(trainer);
 			}
-			String ridge = ridgeoptions[i];
-			WekaDriver aClassifier = new WekaDriver(genres, features, genreToIdentify, subsetForThisDistinction, 
-					ridge, verbose);
-			classifiers.add(aClassifier);
+			trainer.run();
+			// Once the calling thread runs out of bags to claim, every bag is either finished
+			// or in progress on a helper, so this wait can't depend on a helper still queued.
+			finished.await();
+		}
+		catch (InterruptedException e) {
+			System.out.println("Helpful error message: Execution was interrupted.");
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			ResourceGovernor.release(helpers);
+		}
+		
+		classifiers = new ArrayList<WekaDriver>(bags);
+		for (int b = 0; b < bags; ++b) {
+			if (trained[b] != null) classifiers.add(trained[b]);
+		}
+		if (classifiers.size() < 1) {
+			throw new IllegalStateException("Every bag failed to train for " + genreToIdentify + ".");
 		}
 	}
 	
@@ -76,4 +189,10 @@ public class GenrePredictorBagged extends GenrePredictor implements
 		return testProbs;
 	}
 	
+	@Override
+	public void freeze() {
+		for (WekaDriver classifier : classifiers) {
+			classifier.freeze();
+		}
+	}
 }
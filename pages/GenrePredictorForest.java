@@ -18,7 +18,13 @@ public class GenrePredictorForest extends GenrePredictor implements
 	public GenrePredictorForest (GenreList genres, ArrayList<String> features, String genreToIdentify, 
 			ArrayList<DataPoint> datapoints, String ridgeParameter, boolean verbose) {
 		super(genreToIdentify);
-		theClassifier = new WekaDriverForest(genres, features, genreToIdentify, datapoints, verbose);
+		theClassifier = new WekaDriverForest(genres, features, genreToIdentify, datapoints, null, verbose);
+	}
+	
+	public GenrePredictorForest (GenreList genres, ArrayList<String> features, String genreToIdentify, 
+			ArrayList<DataPoint> datapoints, int[] indices, String ridgeParameter, boolean verbose) {
+		super(genreToIdentify);
+		theClassifier = new WekaDriverForest(genres, features, genreToIdentify, datapoints, indices, verbose);
 	}
 	
 	public GenrePredictorForest (String dummyString) {
@@ -31,4 +37,9 @@ public class GenrePredictorForest extends GenrePredictor implements
 		double[][] probabilities = theClassifier.testNewInstances(pointsToTest);
 		return probabilities;
 	}
+	
+	@Override
+	public void freeze() {
+		if (theClassifier != null) theClassifier.freeze();
+	}
 }
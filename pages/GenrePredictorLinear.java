@@ -0,0 +1,99 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A genre predictor backed by plain weight vectors, as produced by StreamingTrainer.
+ * All the genres of a model share one weight matrix, with a row (weights, then bias)
+ * per genre. One-vs-all predictors read only their own row; softmax predictors need
+ * every row to normalize, and report their own genre's share.
+ *
+ * @param weights	Shared weight matrix, indexed [genre][feature]; the final column is the bias.
+ * @param genreIndex	This predictor's row in weights.
+ * @param softmax	Whether the rows were trained jointly as a multinomial model.
+ */
+public class GenrePredictorLinear extends GenrePredictor implements Serializable {
+	private static final long serialVersionUID = 191L;
+	private double[][] weights;
+	private int genreIndex;
+	private boolean softmax;
+
+	public GenrePredictorLinear(String genreToIdentify, double[][] weights, int genreIndex, boolean softmax) {
+		super(genreToIdentify);
+		this.weights = weights;
+		this.genreIndex = genreIndex;
+		this.softmax = softmax;
+	}
+
+	/**
+	 * The linear score of a page for one row. Features that came out of normalization
+	 * as NaN or infinite (those with zero variance in training) contribute nothing.
+	 */
+	static double logit(double[] row, double[] x) {
+		int dimensions = row.length - 1;
+		return ScoringKernels.get().finiteDot(row, x, dimensions, row[dimensions]);
+	}
+
+	static double sigmoid(double z) {
+		if (z >= 0) return 1.0 / (1.0 + Math.exp(-z));
+		double e = Math.exp(z);
+		return e / (1.0 + e);
+	}
+
+	/**
+	 * Fills probs (indexed by genre) with softmax probabilities over rows 2 and up; the
+	 * dummy genres "begin" and "end" get zero.
+	 */
+	static void softmax(double[][] weights, double[] x, double[] probs) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int g = 2; g < weights.length; ++g) {
+			probs[g] = logit(weights[g], x);
+			if (probs[g] > max) max = probs[g];
+		}
+		double sum = 0;
+		for (int g = 2; g < weights.length; ++g) {
+			probs[g] = Math.exp(probs[g] - max);
+			sum += probs[g];
+		}
+		for (int g = 2; g < weights.length; ++g) {
+			probs[g] = probs[g] / sum;
+		}
+	}
+
+	@Override
+	public double[][] testNewInstances(ArrayList<DataPoint> pointsToTest) {
+		int testSize = pointsToTest.size();
+		double[][] testProbs = new double[testSize][2];
+		double[] allProbs = new double[weights.length];
+		for (int i = 0; i < testSize; ++i) {
+			double[] x = pointsToTest.get(i).vector;
+			double p;
+			if (softmax) {
+				softmax(weights, x, allProbs);
+				p = allProbs[genreIndex];
+			}
+			else {
+				p = sigmoid(logit(weights[genreIndex], x));
+			}
+			testProbs[i][0] = p;
+			testProbs[i][1] = 1 - p;
+		}
+		return testProbs;
+	}
+
+	@Override
+	public String reportStatus() {
+		return "Status: " + genre + (softmax ? " (softmax)" : " (one-vs-all)");
+	}
+	
+	@Override
+	public double[] linearWeights() {
+		if (softmax) return null;
+		// A softmax genre's probability depends on every row, so it isn't one logistic function.
+		return weights[genreIndex];
+	}
+}
@@ -21,6 +21,12 @@ public class GenrePredictorLogistic extends GenrePredictor implements
 		theClassifier = new WekaDriver(genres, features, genreToIdentify, datapoints, ridgeParameter, verbose);
 	}
 	
+	public GenrePredictorLogistic (GenreList genres, ArrayList<String> features, String genreToIdentify, 
+			ArrayList<DataPoint> datapoints, int[] indices, String ridgeParameter, boolean verbose) {
+		super(genreToIdentify);
+		theClassifier = new WekaDriver(genres, features, genreToIdentify, datapoints, indices, ridgeParameter, verbose);
+	}
+	
 	public GenrePredictorLogistic (String dummyString) {
 		super(dummyString);
 		theClassifier = new WekaDriver(dummyString);
@@ -35,5 +41,15 @@ public class GenrePredictorLogistic extends GenrePredictor implements
 	public void recreateDataset(GenreList genres, ArrayList<String> features) {
 		theClassifier.recreateDataset(genres, features);
 	}
-
+	
+	@Override
+	public void freeze() {
+		if (theClassifier != null) theClassifier.freeze();
+	}
+	
+	@Override
+	public double[] linearWeights() {
+		if (theClassifier == null) return null;
+		return theClassifier.linearWeights();
+	}
 }
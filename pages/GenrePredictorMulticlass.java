@@ -15,7 +15,6 @@ public class GenrePredictorMulticlass extends GenrePredictor implements
 	private static final long serialVersionUID = 162L;
 	private WekaDriverMulticlass theClassifier;
 	private int numGenres;
-	public String predictionMetadata;
 	
 	public GenrePredictorMulticlass (GenreList genres, ArrayList<String> features, 
 			ArrayList<DataPoint> datapoints, boolean verbose) {
@@ -30,7 +29,8 @@ public class GenrePredictorMulticlass extends GenrePredictor implements
 		return probabilities;
 	}
 
-	public void classify(String thisFile, String inputDir, String outputDir, MarkovTable markov, ArrayList<String> genres, 
+	@Override
+	public String classify(String thisFile, String inputDir, String outputDir, MarkovTable markov, ArrayList<String> genres, 
 			Vocabulary vocabulary, FeatureNormalizer normalizer, boolean isPairtree) {
 		// We have a choice of two different corpus constructors, depending on whether we
 		// are running this classification on a local directory, or on the cluster using
@@ -94,11 +94,11 @@ public class GenrePredictorMulticlass extends GenrePredictor implements
 				writer.send(outlines);
 			}
 			
-			this.predictionMetadata = thisFile + "\t" + Double.toString(smoothedResult.averageMaxProb) + "\t" +
+			return thisFile + "\t" + Double.toString(smoothedResult.averageMaxProb) + "\t" +
 					Double.toString(smoothedResult.averageGap);
 		}
 		else {
-			this.predictionMetadata = thisFile + "\tNA\tNA";
+			return thisFile + "\tNA\tNA";
 			// file not found
 		}
 		
@@ -136,4 +136,8 @@ public class GenrePredictorMulticlass extends GenrePredictor implements
 		theClassifier.recreateDataset(genres, features);
 	}
 	
+	@Override
+	public void freeze() {
+		if (theClassifier != null) theClassifier.freeze();
+	}
 }
@@ -5,52 +5,35 @@ package pages;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Random;
 
 /**
+ * One-vs-all support vector machine for a genre. New models use LinearSVM, which
+ * trains on every page; models serialized before that change hold a Weka SMO
+ * (WekaDriverSVM) instead, and are still scored with it.
+ * 
  * @author tunder
  *
  */
 public class GenrePredictorSVM extends GenrePredictor implements Serializable {
 	private static final long serialVersionUID = 131L;
 	private WekaDriverSVM theClassifier;
+	private LinearSVM linearClassifier;
 	
 	public GenrePredictorSVM (GenreList genres, ArrayList<String> features, String genreToIdentify, 
 			ArrayList<DataPoint> datapoints, String ridgeParameter, boolean verbose) {
+		this(genres, features, genreToIdentify, datapoints, null, new TrainingSettings().seed, verbose);
+	}
+	
+	/**
+	 * @param indices	Positions in datapoints to train on; if null, every page.
+	 * @param seed		Seeds the order of coordinate updates and the calibration folds.
+	 */
+	public GenrePredictorSVM (GenreList genres, ArrayList<String> features, String genreToIdentify, 
+			ArrayList<DataPoint> datapoints, int[] indices, long seed, boolean verbose) {
 		super(genreToIdentify);
-		
-		int inClassCount = 0;
-		int outOfClassCount = 0;
-		ArrayList<DataPoint> inClass = new ArrayList<DataPoint>();
-		ArrayList<DataPoint> outClass = new ArrayList<DataPoint>();
-		
-		for (DataPoint aPoint: datapoints) {
-			if (aPoint.genre.equals(genreToIdentify)) {
-				inClassCount += 1;
-				inClass.add(aPoint);
-			}
-			else {
-				outOfClassCount += 1;
-				outClass.add(aPoint);
-			}
-		}
-		
-		double ratio = outOfClassCount / (double) inClassCount;
-		int ceiling = 8000;
-		int inClassTarget = inClassCount;
-		int outClassTarget = outOfClassCount;
-		if (inClassTarget > ceiling) {
-			inClassTarget = ceiling;
-			outClassTarget = (int) Math.floor(ratio * ceiling);
-		}
-		if (outClassTarget > 100000) outClassTarget = 100000;
-		
-		ArrayList<DataPoint> subset = new ArrayList<DataPoint>();
-		subset.addAll(selectFrom(inClass, inClassTarget));
-		subset.addAll(selectFrom(outClass, outClassTarget));
-		
-		theClassifier = new WekaDriverSVM(genres, features, genreToIdentify, subset, ridgeParameter, verbose);
+		linearClassifier = new LinearSVM(datapoints, indices, genreToIdentify, LinearSVM.DEFAULT_C, 3, seed);
+		System.out.println("SVM: " + genreToIdentify + " trained on " + 
+				(indices == null ? datapoints.size() : indices.length) + " pages.");
 	}
 	
 	public GenrePredictorSVM (String dummyString) {
@@ -60,24 +43,23 @@ public class GenrePredictorSVM extends GenrePredictor implements Serializable {
 	
 	@Override
 	public double[][] testNewInstances(ArrayList<DataPoint> pointsToTest) {
+		if (linearClassifier != null) {
+			return linearClassifier.testNewInstances(pointsToTest);
+		}
 		double[][] probabilities = theClassifier.testNewInstances(pointsToTest);
 		return probabilities;
 	}
 	
 	@Override
 	public String reportStatus() {
+		if (linearClassifier != null) {
+			return "Status: " + linearClassifier.classLabel;
+		}
 		return "Status: " + theClassifier.classLabel;
 	}
 	
-	private ArrayList<DataPoint> selectFrom(ArrayList<DataPoint> source, int k) {
-		assert (k <= source.size());
-		Random coin = new Random(System.currentTimeMillis());
-		Collections.shuffle(source, coin);
-		// We're selecting without replacement.
-		ArrayList<DataPoint> subset = new ArrayList<DataPoint>();
-		for (int i = 0; i < k; ++ i) {
-			subset.add(source.get(i));
-		}
-		return subset;
+	@Override
+	public void freeze() {
+		if (theClassifier != null) theClassifier.freeze();
 	}
 }
@@ -11,7 +11,6 @@ package pages;
  * 
  */
 public class Global {
-	public static boolean allVsAll = false;
 	
 	public static final String[] STRUCTURALFEATURES = { "posInVol", "lineLengthRatio",
 		"capRatio", "wordRatio", "distanceFromMid", "allCapRatio", "maxInitialRatio", "maxPairRatio", 
@@ -60,10 +59,9 @@ public class Global {
 		{"let", "non"}, {"trv", "non"}, {"lyr", "poe"}, {"nar", "poe"}, {"vdr", "dra"}, {"pdr", "dra"},
 		{"clo", "dra"}, {"impri", "front"}, {"libra", "back"} };
 	
-	public static boolean undersample = false;
-	public static boolean multiclassForest = false;
-	public static boolean multipleForests = false;
 	public static boolean outputJSON = false;
+	// Settings that shape a trained model live in TrainingSettings instead, so that
+	// several configurations can be trained in the same run.
 	
 	public static void separateBiography() {
 		for (String[] aPair : CONVERSIONS) {
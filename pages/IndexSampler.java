@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package pages;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Sampling by index rather than by copying. Pages in a corpus are large dense vectors,
+ * so instead of shuffling and copying lists of DataPoints we shuffle arrays of
+ * positions in the corpus, and let the classifiers read the selected pages in place.
+ *
+ * Every method takes a Random supplied by the caller, so a run with the same seed
+ * selects the same pages.
+ */
+public class IndexSampler {
+
+	/**
+	 * @return The indices 0 through n - 1, in order.
+	 */
+	public static int[] range(int n) {
+		int[] indices = new int[n];
+		for (int i = 0; i < n; ++i) {
+			indices[i] = i;
+		}
+		return indices;
+	}
+
+	/**
+	 * Shuffles an array of indices in place. This walks the array exactly as
+	 * Collections.shuffle walks a list, so a given Random produces the same
+	 * permutation it would have produced on a list of the same length.
+	 */
+	public static void shuffle(int[] indices, Random random) {
+		for (int i = indices.length; i > 1; --i) {
+			int j = random.nextInt(i);
+			int temp = indices[i - 1];
+			indices[i - 1] = indices[j];
+			indices[j] = temp;
+		}
+	}
+
+	/**
+	 * Selects every page of genreToIdentify, plus a random subset of other pages.
+	 * The number of other pages grows only logarithmically with the imbalance:
+	 * a ratio of 1:1 remains 1:1, but 10:1 becomes 2.5:1 and 100:1 becomes 4.7:1.
+	 *
+	 * @return Indices into datapoints: the in-class pages in corpus order, followed
+	 * by the sampled out-of-class pages.
+	 */
+	public static int[] undersample(ArrayList<DataPoint> datapoints, String genreToIdentify, Random random) {
+		int total = datapoints.size();
+		int inClassCount = 0;
+		for (DataPoint aPoint : datapoints) {
+			if (aPoint.genre.equals(genreToIdentify)) inClassCount += 1;
+		}
+		int outOfClassCount = total - inClassCount;
+
+		int[] inClass = new int[inClassCount];
+		int[] outClass = new int[outOfClassCount];
+		int in = 0;
+		int out = 0;
+		for (int i = 0; i < total; ++i) {
+			if (datapoints.get(i).genre.equals(genreToIdentify)) {
+				inClass[in] = i;
+				in += 1;
+			}
+			else {
+				outClass[out] = i;
+				out += 1;
+			}
+		}
+
+		double ratio = outOfClassCount / (double) inClassCount;
+		ratio = Math.log(1.73 + ratio);
+		int samplingCeiling = (int) Math.ceil(ratio * inClassCount);
+		if (samplingCeiling > outOfClassCount) samplingCeiling = outOfClassCount;
+
+		System.out.println(genreToIdentify + " against " + Integer.toString(samplingCeiling));
+
+		shuffle(outClass, random);
+		int[] selected = new int[inClassCount + samplingCeiling];
+		System.arraycopy(inClass, 0, selected, 0, inClassCount);
+		System.arraycopy(outClass, 0, selected, inClassCount, samplingCeiling);
+		return selected;
+	}
+
+	/**
+	 * A uniform sample of fixed size from a stream of unknown length (Vitter's
+	 * algorithm R). Items are longs so that callers can pack a pair of positions,
+	 * such as a volume and a page, into each one.
+	 */
+	public static class Reservoir {
+		private long[] sample;
+		private int seen;
+		private Random random;
+
+		public Reservoir(int capacity, Random random) {
+			sample = new long[capacity];
+			seen = 0;
+			this.random = random;
+		}
+
+		public void offer(long item) {
+			if (seen < sample.length) {
+				sample[seen] = item;
+			}
+			else {
+				int j = random.nextInt(seen + 1);
+				if (j < sample.length) sample[j] = item;
+			}
+			seen += 1;
+		}
+
+		public int seen() {
+			return seen;
+		}
+
+		/**
+		 * @return The items retained, in no particular order.
+		 */
+		public long[] sample() {
+			int size = Math.min(seen, sample.length);
+			long[] retained = new long[size];
+			System.arraycopy(sample, 0, retained, 0, size);
+			return retained;
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+/**
+ *
+ */
+package pages;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Turns a page's feature vector into a Weka instance in one step. Setting attributes
+ * one at a time, with setValue, is far slower than it looks: DenseInstance copies its
+ * whole array of values before every change, so building an instance that way takes
+ * time proportional to the square of the number of features. Here the vector is
+ * copied once, with room for the class value at the end, and handed to DenseInstance,
+ * which keeps the array it is given.
+ *
+ * Each driver makes one adapter from its dataset header and reuses it for every page
+ * it scores; it holds only the header, which Weka reads but never changes, so one
+ * adapter can be shared by threads.
+ *
+ * @param header		The dataset definition: one numeric attribute per feature, then the class.
+ * @param numFeatures	Number of features, which is also the index of the class attribute.
+ */
+public class InstanceAdapter {
+	private final Instances header;
+	private final int numFeatures;
+
+	public InstanceAdapter(Instances dataset, int numFeatures) {
+		this.header = new Instances(dataset, 0);
+		this.numFeatures = numFeatures;
+	}
+
+	/**
+	 * @param relation		Name for the dataset.
+	 * @param attributes	The features, then the class attribute.
+	 */
+	public InstanceAdapter(String relation, ArrayList<Attribute> attributes) {
+		this.numFeatures = attributes.size() - 1;
+		this.header = new Instances(relation, attributes, 0);
+		header.setClassIndex(numFeatures);
+	}
+
+	/**
+	 * Wraps a page to be classified. Its class is left missing, which is how Weka expects
+	 * an unlabeled instance to look; every model here ignores the class when scoring.
+	 */
+	public DenseInstance wrap(double[] vector) {
+		return wrap(vector, Utils.missingValue(), 1d);
+	}
+
+	/**
+	 * Wraps a page for training.
+	 *
+	 * @param classValue	Index of the page's class among the class attribute's values.
+	 * @param weight		Weight of the instance, 1 unless the trainer reweights pages.
+	 */
+	public DenseInstance wrap(double[] vector, double classValue, double weight) {
+		double[] values = Arrays.copyOf(vector, numFeatures + 1);
+		values[numFeatures] = classValue;
+		DenseInstance instance = new DenseInstance(weight, values);
+		instance.setDataset(header);
+		return instance;
+	}
+
+}
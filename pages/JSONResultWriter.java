@@ -3,7 +3,9 @@
  */
 package pages;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.text.DecimalFormat;
 import json.JSONArray;
 import json.JSONObject;
@@ -13,6 +15,13 @@ import json.JSONObject;
  *
  */
 public class JSONResultWriter {
+	private static final Object[] FILE_LOCKS = new Object[64];
+	// Rewrites of a .predict file hold the lock its path hashes to (see replaceRecords).
+	static {
+		for (int i = 0; i < FILE_LOCKS.length; ++i) {
+			FILE_LOCKS[i] = new Object();
+		}
+	}
 	private ArrayList<String> genres;
 	private String outPath;
 	private String modelLabel;
@@ -23,7 +32,17 @@ public class JSONResultWriter {
 		this.modelLabel = modelLabel;
 	}
 	
-	public void writeJSON(int numPoints, String volID, ClassificationResult rawResult, ClassificationResult smoothedResult) {
+	/**
+	 * Writes one model's predictions for a volume to its .predict file, replacing any
+	 * earlier record from the same model, so that rerunning a volume doesn't duplicate it.
+	 */
+	public boolean writeJSON(int numPoints, String volID, ClassificationResult rawResult, ClassificationResult smoothedResult) {
+		ArrayList<JSONObject> records = new ArrayList<JSONObject>(1);
+		records.add(jsonRecord(numPoints, volID, rawResult, smoothedResult));
+		return replaceRecords(outPath, records);
+	}
+	
+	public JSONObject jsonRecord(int numPoints, String volID, ClassificationResult rawResult, ClassificationResult smoothedResult) {
 		ArrayList<double[]> smoothedProbs = smoothedResult.probabilities;
 		ArrayList<String> rawPredictions = rawResult.predictions;
 		ArrayList<String> smoothedPredictions = smoothedResult.predictions;
@@ -61,14 +80,16 @@ public class JSONResultWriter {
 		topObject.put("smoothedPredictions", smoothedGenres);
 		topObject.put("avgMaxProb", smoothedResult.averageMaxProb);
 		topObject.put("avgGap", smoothedResult.averageGap);
-		
-		LineWriter writer = new LineWriter(outPath, true);
-		// The boolean flag here sets the writer to append mode.
-		writer.print(topObject.toString());
-		
+		return topObject;
+	}
+	
+	public boolean writeConsensus(String volID, ClassificationResult consensusResult, int numPoints) {
+		ArrayList<JSONObject> records = new ArrayList<JSONObject>(1);
+		records.add(consensusRecord(volID, consensusResult, numPoints));
+		return replaceRecords(outPath, records);
 	}
 	
-	public void writeConsensus(String volID, ClassificationResult consensusResult, int numPoints) {
+	public JSONObject consensusRecord(String volID, ClassificationResult consensusResult, int numPoints) {
 		ArrayList<double[]> smoothedProbs = consensusResult.probabilities;
 		ArrayList<String> smoothedPredictions = consensusResult.predictions;
 		DecimalFormat fourPlaces = new DecimalFormat("0.0###");
@@ -106,10 +127,54 @@ public class JSONResultWriter {
 		topObject.put("smoothedPredictions", smoothedGenres);
 		topObject.put("avgMaxProb", consensusResult.averageMaxProb);
 		topObject.put("avgGap", consensusResult.averageGap);
-		
-		LineWriter writer = new LineWriter(outPath, true);
-		// The boolean flag here sets the writer to append mode.
-		writer.print(topObject.toString());
-		
+		return topObject;
+	}
+	
+	/**
+	 * A .predict file holds one line per model that has classified the volume. This
+	 * rewrites it with the given records in place of any earlier lines from the same
+	 * models, keeping the other models' lines, and replaces it in one step (see
+	 * LineWriter.replace). Lines that can't be parsed, left by a run that died while
+	 * appending to the file, are dropped.
+	 *
+	 * Reading, merging and replacing the file is done under a lock for its path, so
+	 * that two threads of this process writing the same volume (listed twice in a
+	 * slice, say) can't each miss the other's record. The locks
+	 * are a fixed set shared by hashing, so they don't grow with the number of volumes.
+	 *
+	 * @return Whether the file was written.
+	 */
+	public static boolean replaceRecords(String outPath, ArrayList<JSONObject> records) {
+		String path = new File(outPath).toPath().toAbsolutePath().normalize().toString();
+		Object lock = FILE_LOCKS[(path.hashCode() & Integer.MAX_VALUE) % FILE_LOCKS.length];
+		synchronized (lock) {
+			return mergeRecords(outPath, records);
+		}
+	}
+	
+	private static boolean mergeRecords(String outPath, ArrayList<JSONObject> records) {
+		HashSet<String> models = new HashSet<String>();
+		for (JSONObject record : records) {
+			models.add(record.getString("model"));
+		}
+		ArrayList<String> lines = new ArrayList<String>();
+		if (new File(outPath).exists()) {
+			for (String line : new LineReader(outPath).readlines()) {
+				if (line == null || line.length() < 1) continue;
+				try {
+					JSONObject earlier = new JSONObject(line);
+					if (earlier.has("model") && models.contains(earlier.getString("model"))) continue;
+				}
+				catch (RuntimeException e) {
+					continue;
+				}
+				lines.add(line);
+			}
+		}
+		for (JSONObject record : records) {
+			lines.add(record.toString());
+		}
+		LineWriter writer = new LineWriter(outPath, false);
+		return writer.replace(lines.toArray(new String[lines.size()]));
 	}
 }
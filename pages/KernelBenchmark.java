@@ -0,0 +1,275 @@
+/**
+ *
+ */
+package pages;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the scoring kernels (see ScoringKernels) on this machine, so that the choice
+ * of -kernels can be made on evidence. For every backend this JVM can run, it times four
+ * workloads shaped like classification:
+ *
+ *     logistic		Scoring pages one genre at a time, a finiteDot per genre per page
+ *     				(GenrePredictorLinear).
+ *     compiled		Scoring pages against every genre at once, an axpy per feature per
+ *     				page (LinearScorer).
+ *     normalize	Turning raw page vectors into z-scores (FeatureNormalizer).
+ *     smoothing	The forward and backward matrix-vector steps for one page (ForwardBackward).
+ *
+ * Each workload is timed first on one thread, then on one thread per core at once
+ * (cores compete for memory bandwidth, which SIMD is more likely to saturate), and
+ * both are reported in pages per second per core.
+ *
+ * Run with, e.g.:
+ *     java --add-modules jdk.incubator.vector -cp ... pages.KernelBenchmark -features 5000 -genres 12
+ *
+ * -features (int)	Words in the vocabulary; structural features are added. Default 5000.
+ * -genres (int)	Genres scored and smoothed. Default 12.
+ * -seconds (int)	Time spent on each measurement, after an equal warmup. Default 3.
+ * -cpus (int)		Threads for the all-cores measurement. Default: all available.
+ */
+public class KernelBenchmark {
+	private static final int PAGES = 64;
+	// Pages each task works through per call; enough that timing overhead disappears.
+	private static volatile double sink;
+	// Results are written here so the JIT can't discard the work that produced them.
+
+	private int numFeatures;
+	private int numGenres;
+	private long millis;
+	private int cores;
+
+	public KernelBenchmark(int numFeatures, int numGenres, long millis, int cores) {
+		this.numFeatures = numFeatures;
+		this.numGenres = numGenres;
+		this.millis = millis;
+		this.cores = cores;
+	}
+
+	public static void main(String[] args) {
+		ArgumentParser parser = new ArgumentParser(args);
+		int words = 5000;
+		if (parser.getInteger("-features") > 0) words = parser.getInteger("-features");
+		int genres = 12;
+		if (parser.getInteger("-genres") > 0) genres = parser.getInteger("-genres");
+		int seconds = 3;
+		if (parser.getInteger("-seconds") > 0) seconds = parser.getInteger("-seconds");
+		if (parser.getInteger("-cpus") > 0) ResourceGovernor.setBudget(parser.getInteger("-cpus"));
+
+		ArrayList<ScoringKernels> backends = new ArrayList<ScoringKernels>();
+		backends.add(new ScalarKernels());
+		ScoringKernels simd = ScoringKernels.loadSimd();
+		if (simd == null) {
+			System.out.println("SIMD kernels are not available in this JVM (run with --add-modules jdk.incubator.vector); timing scalar only.");
+		}
+		else {
+			backends.add(simd);
+		}
+
+		KernelBenchmark benchmark = new KernelBenchmark(words + Global.FEATURESADDED, genres, seconds * 1000L,
+				ResourceGovernor.budget());
+		benchmark.run(backends);
+	}
+
+	public void run(ArrayList<ScoringKernels> backends) {
+		System.out.println(numFeatures + " features, " + numGenres + " genres, " + cores + " cores.");
+		System.out.println("workload\tbackend\tpages/s on 1 core\tpages/s per core on " + cores + "\tspeedup");
+		for (Workload workload : workloads()) {
+			double baseline = 0d;
+			for (ScoringKernels kernels : backends) {
+				double single = throughput(workload, kernels, 1);
+				double perCore = throughput(workload, kernels, cores) / cores;
+				if (baseline == 0d) baseline = single;
+				System.out.println(String.format("%s\t%s\t%.0f\t%.0f\t%.2fx", workload.name, kernels.name(),
+						single, perCore, single / baseline));
+			}
+		}
+	}
+
+	/**
+	 * One kind of work, which can make a task with its own data for each thread that runs it.
+	 */
+	private static abstract class Workload {
+		final String name;
+
+		Workload(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return A task that works through PAGES pages each time it's called, and returns
+		 * the number of pages.
+		 */
+		abstract Callable<Integer> newTask(ScoringKernels kernels, Random random);
+	}
+
+	private ArrayList<Workload> workloads() {
+		ArrayList<Workload> workloads = new ArrayList<Workload>();
+
+		workloads.add(new Workload("logistic") {
+			Callable<Integer> newTask(final ScoringKernels kernels, Random random) {
+				final double[][] pages = randomPages(random);
+				final double[][] rows = randomMatrix(random, numGenres, numFeatures + 1);
+				return new Callable<Integer>() {
+					public Integer call() {
+						double total = 0d;
+						for (double[] page : pages) {
+							for (double[] row : rows) {
+								total += kernels.finiteDot(row, page, numFeatures, row[numFeatures]);
+							}
+						}
+						sink = total;
+						return PAGES;
+					}
+				};
+			}
+		});
+
+		workloads.add(new Workload("compiled") {
+			Callable<Integer> newTask(final ScoringKernels kernels, Random random) {
+				final double[][] pages = randomPages(random);
+				final double[] weights = randomMatrix(random, 1, numFeatures * numGenres)[0];
+				final double[][] logits = new double[PAGES][numGenres];
+				return new Callable<Integer>() {
+					public Integer call() {
+						for (double[] pageLogits : logits) {
+							Arrays.fill(pageLogits, 0d);
+						}
+						for (int f = 0; f < numFeatures; ++f) {
+							int offset = f * numGenres;
+							for (int b = 0; b < PAGES; ++b) {
+								double value = pages[b][f];
+								if (value - value != 0) continue;
+								kernels.axpy(value, weights, offset, logits[b], numGenres);
+							}
+						}
+						sink = logits[PAGES - 1][numGenres - 1];
+						return PAGES;
+					}
+				};
+			}
+		});
+
+		workloads.add(new Workload("normalize") {
+			Callable<Integer> newTask(final ScoringKernels kernels, Random random) {
+				final double[][] pages = randomPages(random);
+				final double[] means = new double[numFeatures];
+				final double[] stdevs = new double[numFeatures];
+				Arrays.fill(stdevs, 1d);
+				// Normalizing with mean 0 and deviation 1 leaves the pages as they were, so
+				// they can be normalized again and again without drifting toward overflow.
+				return new Callable<Integer>() {
+					public Integer call() {
+						for (double[] page : pages) {
+							kernels.normalize(page, means, stdevs);
+						}
+						sink = pages[PAGES - 1][0];
+						return PAGES;
+					}
+				};
+			}
+		});
+
+		workloads.add(new Workload("smoothing") {
+			Callable<Integer> newTask(final ScoringKernels kernels, Random random) {
+				final double[][] transitions = randomMatrix(random, numGenres, numGenres);
+				final double[] state = new double[numGenres];
+				final double[] next = new double[numGenres];
+				for (int g = 0; g < numGenres; ++g) {
+					state[g] = 1d / numGenres;
+				}
+				return new Callable<Integer>() {
+					public Integer call() {
+						double total = 0d;
+						for (int p = 0; p < PAGES; ++p) {
+							kernels.multiplyLeft(state, transitions, next);
+							total += next[0];
+							kernels.multiplyRight(transitions, state, next);
+							total += next[0];
+						}
+						sink = total;
+						return PAGES;
+					}
+				};
+			}
+		});
+
+		return workloads;
+	}
+
+	/**
+	 * @return Pages per second, summed over threads, after a warmup of the same length.
+	 */
+	private double throughput(Workload workload, ScoringKernels kernels, int threads) {
+		ExecutorService executive = Executors.newFixedThreadPool(threads);
+		ArrayList<Callable<Long>> timers = new ArrayList<Callable<Long>>(threads);
+		for (int t = 0; t < threads; ++t) {
+			final Callable<Integer> task = workload.newTask(kernels, new Random(t));
+			timers.add(new Callable<Long>() {
+				public Long call() throws Exception {
+					repeat(task, millis);
+					return repeat(task, millis);
+				}
+			});
+		}
+		long pages = 0;
+		try {
+			for (Future<Long> result : executive.invokeAll(timers)) {
+				pages += result.get();
+			}
+		}
+		catch (InterruptedException e) {
+			System.out.println("Helpful error message: Execution was interrupted.");
+		}
+		catch (ExecutionException e) {
+			System.out.println("Benchmark failed: " + e.getCause());
+		}
+		executive.shutdown();
+		return pages * 1000d / millis;
+	}
+
+	/**
+	 * @return The pages done by calling task repeatedly for the given time.
+	 */
+	private static long repeat(Callable<Integer> task, long millis) throws Exception {
+		long pages = 0;
+		long deadline = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < deadline) {
+			pages += task.call();
+		}
+		return pages;
+	}
+
+	/**
+	 * Gaussian pages with about one feature in a hundred NaN, as constant features
+	 * come out of normalization.
+	 */
+	private double[][] randomPages(Random random) {
+		double[][] pages = randomMatrix(random, PAGES, numFeatures);
+		for (double[] page : pages) {
+			for (int f = 0; f < numFeatures; ++f) {
+				if (random.nextInt(100) == 0) page[f] = Double.NaN;
+			}
+		}
+		return pages;
+	}
+
+	private static double[][] randomMatrix(Random random, int rows, int columns) {
+		double[][] matrix = new double[rows][columns];
+		for (double[] row : matrix) {
+			for (int c = 0; c < columns; ++c) {
+				row[c] = random.nextGaussian();
+			}
+		}
+		return matrix;
+	}
+
+}
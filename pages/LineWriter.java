@@ -2,8 +2,14 @@ package pages;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
 
 public class LineWriter {
 	File fileName;
@@ -39,4 +45,59 @@ public void print(String line) {
 		System.out.println("Exception: " + e);
 	}
 	}
+
+/**
+ * Replaces the file with these lines, all at once: they are written to a temporary
+ * file beside it, flushed to disk, and renamed over it. A reader, or a run that
+ * dies partway, sees either the old file or the new one, never half of each.
+ * Each call gets a temporary file of its own (see siblingTempFile), so two replacing
+ * the same file at once don't write into one another's; the last rename wins.
+ * Ignores the append flag.
+ *
+ * @return Whether the file was replaced.
+ */
+public boolean replace(String[] lineArray) {
+	File temp = null;
+	try {
+		temp = siblingTempFile(fileName);
+		FileOutputStream stream = new FileOutputStream(temp, false);
+		try {
+			BufferedWriter fileout = new BufferedWriter(new OutputStreamWriter(stream, "UTF8"));
+			for(String line : lineArray) {
+				fileout.write(line + "\n");
+			}
+			fileout.flush();
+			stream.getFD().sync();
+		}
+		finally {
+			stream.close();
+		}
+		try {
+			Files.move(temp.toPath(), fileName.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), fileName.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return true;
+	}
+	catch (IOException e){
+		System.out.println("Exception: " + e);
+		if (temp != null) temp.delete();
+		return false;
+	}
+	}
+
+/**
+ * Creates an empty file beside target, under a name no other thread or process will
+ * choose (the target's name, a random UUID, and .tmp), failing rather than reusing
+ * a file that exists. It's created like any other file, with the permissions the
+ * umask allows; Files.createTempFile would make it readable only by its owner, and
+ * a rename would pass that on to the file it replaces.
+ */
+static File siblingTempFile(File target) throws IOException {
+	File temp = new File(target.getAbsoluteFile().getParentFile(), target.getName() + "." + UUID.randomUUID() + ".tmp");
+	if (!temp.createNewFile()) throw new IOException("Temporary file " + temp.getPath() + " already exists.");
+	return temp;
+}
 }
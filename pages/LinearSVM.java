@@ -0,0 +1,273 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A linear support vector machine for one genre against the rest, trained by dual
+ * coordinate descent (Hsieh et al., "A Dual Coordinate Descent Method for Large-scale
+ * Linear SVM," 2008). Each step optimizes a single example's dual variable in closed
+ * form and updates the weight vector in place, so a pass over the corpus costs one
+ * dot product per page. That scales to the whole training set, where Weka's SMO
+ * had to be fed a subsample.
+ *
+ * Decision values are turned into probabilities with Platt scaling, fit to
+ * decision values from internal crossvalidation (as SMO's -M -V 3 options did),
+ * so the output can be smoothed by ForwardBackward like a logistic model's.
+ *
+ * @param weights	One weight per feature; the bias is kept separately.
+ * @param plattA	Slope of the calibrating sigmoid.
+ * @param plattB	Intercept of the calibrating sigmoid.
+ */
+public class LinearSVM implements Serializable {
+	private static final long serialVersionUID = 181L;
+	public static final double DEFAULT_C = 1.4;
+	// The complexity constant SMO used here.
+	private static final double TOLERANCE = 0.1;
+	private static final int MAXPASSES = 1000;
+
+	String classLabel;
+	double[] weights;
+	double bias;
+	double plattA;
+	double plattB;
+
+	/**
+	 * @param datapoints	Training pages.
+	 * @param indices		Positions in datapoints to train on; if null, every page. Must not be empty.
+	 * @param genreToIdentify	The positive class.
+	 * @param C				Penalty for margin violations; larger values fit the data more closely.
+	 * @param calibrationFolds	Folds of internal crossvalidation used to fit the sigmoid.
+	 * @param seed			Seeds the order of coordinate updates and the calibration folds.
+	 */
+	public LinearSVM(ArrayList<DataPoint> datapoints, int[] indices, String genreToIdentify, double C,
+			int calibrationFolds, long seed) {
+		this.classLabel = genreToIdentify;
+		if (indices == null) {
+			indices = IndexSampler.range(datapoints.size());
+		}
+		int n = indices.length;
+		if (n < 1) throw new IllegalArgumentException("No training pages for " + genreToIdentify + "; can't train an SVM on an empty set.");
+		int dimensions = datapoints.get(indices[0]).vector.length;
+		Random random = new Random(seed);
+
+		byte[] labels = new byte[n];
+		for (int i = 0; i < n; ++i) {
+			labels[i] = (byte) (datapoints.get(indices[i]).genre.equals(genreToIdentify) ? 1 : -1);
+		}
+
+		// Decision values for each page from a model that didn't see it.
+		double[] heldOutDecisions = new double[n];
+		int[] order = IndexSampler.range(n);
+		IndexSampler.shuffle(order, random);
+		for (int fold = 0; fold < calibrationFolds; ++fold) {
+			int[] trainPositions = new int[n - countInFold(n, fold, calibrationFolds)];
+			int[] testPositions = new int[countInFold(n, fold, calibrationFolds)];
+			int trained = 0;
+			int tested = 0;
+			for (int k = 0; k < n; ++k) {
+				if (k % calibrationFolds == fold) testPositions[tested++] = order[k];
+				else trainPositions[trained++] = order[k];
+			}
+			double[] foldModel = solve(datapoints, indices, labels, trainPositions, dimensions, C, random);
+			for (int position : testPositions) {
+				heldOutDecisions[position] = decision(foldModel, datapoints.get(indices[position]).vector);
+			}
+		}
+
+		double[] finalModel = solve(datapoints, indices, labels, IndexSampler.range(n), dimensions, C, random);
+		weights = new double[dimensions];
+		System.arraycopy(finalModel, 0, weights, 0, dimensions);
+		bias = finalModel[dimensions];
+
+		fitSigmoid(heldOutDecisions, labels);
+	}
+
+	private static int countInFold(int n, int fold, int folds) {
+		return n / folds + (fold < n % folds ? 1 : 0);
+	}
+
+	/**
+	 * Dual coordinate descent for the L2-regularized hinge loss, treating the bias as
+	 * the weight of an extra feature that is always 1.
+	 *
+	 * @param positions	Which of the training pages (positions in indices) to use.
+	 * @return The weights, followed by the bias.
+	 */
+	private static double[] solve(ArrayList<DataPoint> datapoints, int[] indices, byte[] labels, int[] positions,
+			int dimensions, double C, Random random) {
+		int n = positions.length;
+		double[] w = new double[dimensions + 1];
+		double[] alpha = new double[n];
+		double[] diagonal = new double[n];
+		for (int k = 0; k < n; ++k) {
+			double[] x = datapoints.get(indices[positions[k]]).vector;
+			double squaredNorm = 1.0;
+			for (int f = 0; f < dimensions; ++f) {
+				squaredNorm += x[f] * x[f];
+			}
+			diagonal[k] = squaredNorm;
+		}
+
+		int[] order = IndexSampler.range(n);
+		for (int pass = 0; pass < MAXPASSES; ++pass) {
+			IndexSampler.shuffle(order, random);
+			double maxGradient = Double.NEGATIVE_INFINITY;
+			double minGradient = Double.POSITIVE_INFINITY;
+
+			for (int k : order) {
+				double[] x = datapoints.get(indices[positions[k]]).vector;
+				int y = labels[positions[k]];
+				double margin = w[dimensions];
+				for (int f = 0; f < dimensions; ++f) {
+					margin += w[f] * x[f];
+				}
+				double gradient = y * margin - 1;
+
+				double projected = gradient;
+				if (alpha[k] == 0) projected = Math.min(gradient, 0);
+				else if (alpha[k] == C) projected = Math.max(gradient, 0);
+				maxGradient = Math.max(maxGradient, projected);
+				minGradient = Math.min(minGradient, projected);
+
+				if (Math.abs(projected) > 1.0e-12) {
+					double old = alpha[k];
+					alpha[k] = Math.min(Math.max(old - gradient / diagonal[k], 0), C);
+					double step = (alpha[k] - old) * y;
+					for (int f = 0; f < dimensions; ++f) {
+						w[f] += step * x[f];
+					}
+					w[dimensions] += step;
+				}
+			}
+			if (maxGradient - minGradient <= TOLERANCE) break;
+		}
+		return w;
+	}
+
+	private static double decision(double[] model, double[] x) {
+		int dimensions = model.length - 1;
+		double sum = model[dimensions];
+		for (int f = 0; f < dimensions; ++f) {
+			sum += model[f] * x[f];
+		}
+		return sum;
+	}
+
+	/**
+	 * Fits P(positive | f) = 1 / (1 + exp(A f + B)) by Newton's method with backtracking,
+	 * following Lin, Lin and Weng's numerically stable version of Platt's algorithm.
+	 */
+	private void fitSigmoid(double[] decisions, byte[] labels) {
+		int n = decisions.length;
+		double positives = 0;
+		for (byte label : labels) {
+			if (label > 0) positives += 1;
+		}
+		double negatives = n - positives;
+		double highTarget = (positives + 1) / (positives + 2);
+		double lowTarget = 1 / (negatives + 2);
+		double[] targets = new double[n];
+		for (int i = 0; i < n; ++i) {
+			targets[i] = labels[i] > 0 ? highTarget : lowTarget;
+		}
+
+		double A = 0;
+		double B = Math.log((negatives + 1) / (positives + 1));
+		double value = sigmoidLoss(decisions, targets, A, B);
+		double sigma = 1.0e-12;
+		double minStep = 1.0e-10;
+
+		for (int iteration = 0; iteration < 100; ++iteration) {
+			double h11 = sigma;
+			double h22 = sigma;
+			double h21 = 0;
+			double g1 = 0;
+			double g2 = 0;
+			for (int i = 0; i < n; ++i) {
+				double fApB = decisions[i] * A + B;
+				double p;
+				double q;
+				if (fApB >= 0) {
+					p = Math.exp(-fApB) / (1.0 + Math.exp(-fApB));
+					q = 1.0 / (1.0 + Math.exp(-fApB));
+				}
+				else {
+					p = 1.0 / (1.0 + Math.exp(fApB));
+					q = Math.exp(fApB) / (1.0 + Math.exp(fApB));
+				}
+				double d2 = p * q;
+				h11 += decisions[i] * decisions[i] * d2;
+				h22 += d2;
+				h21 += decisions[i] * d2;
+				double d1 = targets[i] - p;
+				g1 += decisions[i] * d1;
+				g2 += d1;
+			}
+			if (Math.abs(g1) < 1.0e-5 && Math.abs(g2) < 1.0e-5) break;
+
+			double det = h11 * h22 - h21 * h21;
+			double dA = -(h22 * g1 - h21 * g2) / det;
+			double dB = -(-h21 * g1 + h11 * g2) / det;
+			double gd = g1 * dA + g2 * dB;
+
+			double stepSize = 1;
+			while (stepSize >= minStep) {
+				double newA = A + stepSize * dA;
+				double newB = B + stepSize * dB;
+				double newValue = sigmoidLoss(decisions, targets, newA, newB);
+				if (newValue < value + 0.0001 * stepSize * gd) {
+					A = newA;
+					B = newB;
+					value = newValue;
+					break;
+				}
+				stepSize = stepSize / 2;
+			}
+			if (stepSize < minStep) {
+				System.out.println("Line search failed while calibrating SVM for " + classLabel + ".");
+				break;
+			}
+		}
+		plattA = A;
+		plattB = B;
+	}
+
+	private static double sigmoidLoss(double[] decisions, double[] targets, double A, double B) {
+		double loss = 0;
+		for (int i = 0; i < decisions.length; ++i) {
+			double fApB = decisions[i] * A + B;
+			if (fApB >= 0) loss += targets[i] * fApB + Math.log(1 + Math.exp(-fApB));
+			else loss += (targets[i] - 1) * fApB + Math.log(1 + Math.exp(fApB));
+		}
+		return loss;
+	}
+
+	/**
+	 * @return Probabilities indexed [page][class], where class 0 is genreToIdentify and
+	 * class 1 is everything else, as WekaDriver returns them.
+	 */
+	public double[][] testNewInstances(ArrayList<DataPoint> pointsToTest) {
+		int testSize = pointsToTest.size();
+		double[][] testProbs = new double[testSize][2];
+		for (int i = 0; i < testSize; ++i) {
+			double[] x = pointsToTest.get(i).vector;
+			double f = bias;
+			for (int j = 0; j < weights.length; ++j) {
+				f += weights[j] * x[j];
+			}
+			double fApB = f * plattA + plattB;
+			double positive;
+			if (fApB >= 0) positive = Math.exp(-fApB) / (1.0 + Math.exp(-fApB));
+			else positive = 1.0 / (1.0 + Math.exp(fApB));
+			testProbs[i][0] = positive;
+			testProbs[i][1] = 1 - positive;
+		}
+		return testProbs;
+	}
+
+}
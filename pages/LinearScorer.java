@@ -0,0 +1,156 @@
+/**
+ *
+ */
+package pages;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A model's linear predictors compiled into one weight matrix. Scoring a volume with
+ * Weka means building a DenseInstance for every page, attribute by attribute, and then
+ * evaluating each genre's model on each instance in turn. For logistic models that's a
+ * lot of machinery around a dot product: the log-odds of a genre are an intercept plus
+ * a weighted sum of the features. Here we pull those weights out of every predictor
+ * that can supply them (see GenrePredictor.linearWeights) and score a volume's pages
+ * as one product of the page matrix with the weight matrix.
+ *
+ * Features that normalize to NaN or infinity (those with no variance in training)
+ * are skipped, as Weka skips the attributes it removed for being constant.
+ *
+ * Genres whose predictors aren't linear are left to their own testNewInstances.
+ *
+ * Before it's used, the compiled scorer is checked against the predictors themselves on
+ * a few random pages, as FlatForest is checked against Weka; that catches weights read
+ * wrongly, and predictors (read back from disk, say) that can't score pages at all.
+ *
+ * @param compiled		For each genre, whether it has a row in weights.
+ * @param rows			For each genre, its row in weights, or -1.
+ * @param weights		Feature-major: the weights of every compiled genre for feature 0, then
+ * 						for feature 1, and so on, so a page is scored in one pass through memory.
+ * @param intercepts	One per compiled genre.
+ */
+public class LinearScorer {
+	private static final int BLOCK = 32;
+	// Pages scored together; enough to reuse each feature's weights, few enough to keep their logits in cache.
+	private boolean[] compiled;
+	private int[] rows;
+	private double[] weights;
+	private double[] intercepts;
+	private int numFeatures;
+	private int numRows;
+
+	private LinearScorer(int numGenres) {
+		compiled = new boolean[numGenres];
+		rows = new int[numGenres];
+	}
+
+	/**
+	 * @return A scorer for every linear predictor in the list, or null if there are none
+	 * (or if the list holds all-vs-all predictors, which are scored in their own batch).
+	 */
+	public static LinearScorer compile(ArrayList<GenrePredictor> classifiers) {
+		int numGenres = classifiers.size();
+		ArrayList<double[]> found = new ArrayList<double[]>(numGenres);
+		LinearScorer scorer = new LinearScorer(numGenres);
+		int numFeatures = -1;
+		for (int i = 0; i < numGenres; ++i) {
+			scorer.rows[i] = -1;
+			if (i < 2) continue;
+			GenrePredictor classifier = classifiers.get(i);
+			if (classifier instanceof GenrePredictorAllVsAll) return null;
+			double[] row = classifier.linearWeights();
+			if (row == null) continue;
+			if (numFeatures < 0) numFeatures = row.length - 1;
+			if (row.length != numFeatures + 1) continue;
+			scorer.compiled[i] = true;
+			scorer.rows[i] = found.size();
+			found.add(row);
+		}
+		if (found.size() < 1) return null;
+
+		scorer.numFeatures = numFeatures;
+		scorer.numRows = found.size();
+		int numRows = scorer.numRows;
+		scorer.weights = new double[numFeatures * numRows];
+		scorer.intercepts = new double[numRows];
+		for (int r = 0; r < numRows; ++r) {
+			double[] row = found.get(r);
+			for (int f = 0; f < numFeatures; ++f) {
+				scorer.weights[f * numRows + r] = row[f];
+			}
+			scorer.intercepts[r] = row[numFeatures];
+		}
+		Random random = new Random(numFeatures);
+		ArrayList<DataPoint> checks = new ArrayList<DataPoint>(4);
+		ArrayList<double[]> probs = new ArrayList<double[]>(4);
+		for (int i = 0; i < 4; ++i) {
+			double[] vector = new double[numFeatures];
+			for (int f = 0; f < numFeatures; ++f) {
+				vector[f] = random.nextGaussian();
+			}
+			DataPoint aPoint = new DataPoint("probe", vector, 0);
+			aPoint.genre = "probe";
+			checks.add(aPoint);
+			probs.add(new double[numGenres]);
+		}
+		scorer.score(checks, probs);
+		for (int g = 0; g < numGenres; ++g) {
+			if (!scorer.compiled[g]) continue;
+			double[][] expected = classifiers.get(g).testNewInstances(checks);
+			for (int i = 0; i < checks.size(); ++i) {
+				if (Math.abs(probs.get(i)[g] - expected[i][0]) > 1.0e-9) {
+					System.out.println("The linear scorer disagrees with the predictor for " + classifiers.get(g).genre +
+							" (" + probs.get(i)[g] + " vs. " + expected[i][0] + "); scoring with Weka.");
+					return null;
+				}
+			}
+		}
+		System.out.println("Compiled " + scorer.numRows + " of " + (numGenres - 2) + " genres into a linear scorer.");
+		return scorer;
+	}
+
+	public boolean covers(int genre) {
+		return genre < compiled.length && compiled[genre];
+	}
+
+	/**
+	 * Fills in the probability of each compiled genre for each page. Pages are taken
+	 * BLOCK at a time, and each feature's weights are applied to every page in the
+	 * block before moving on, so the weight matrix is read once per block rather than
+	 * once per page. Callers that can gather pages from several volumes into one call
+	 * (see ClassifyingExecutor) get the most from this.
+	 *
+	 * @param rawProbs	One array per page, indexed by genre; columns of genres this
+	 * scorer doesn't cover are left alone.
+	 */
+	public void score(ArrayList<DataPoint> pages, ArrayList<double[]> rawProbs) {
+		int numPages = pages.size();
+		double[][] logits = new double[BLOCK][numRows];
+		double[][] block = new double[BLOCK][];
+		ScoringKernels kernels = ScoringKernels.get();
+		for (int start = 0; start < numPages; start += BLOCK) {
+			int size = Math.min(BLOCK, numPages - start);
+			for (int b = 0; b < size; ++b) {
+				block[b] = pages.get(start + b).vector;
+				System.arraycopy(intercepts, 0, logits[b], 0, numRows);
+			}
+			for (int f = 0; f < numFeatures; ++f) {
+				int offset = f * numRows;
+				for (int b = 0; b < size; ++b) {
+					double value = block[b][f];
+					if (value - value != 0) continue;
+					// That's true only for NaN and infinities.
+					kernels.axpy(value, weights, offset, logits[b], numRows);
+				}
+			}
+			for (int b = 0; b < size; ++b) {
+				double[] probs = rawProbs.get(start + b);
+				for (int g = 0; g < compiled.length; ++g) {
+					if (compiled[g]) probs[g] = GenrePredictorLinear.sigmoid(logits[b][rows[g]]);
+				}
+			}
+		}
+	}
+
+}
@@ -24,10 +24,22 @@ import java.util.concurrent.TimeUnit;
  * 
  * @param NFOLDS       Number of folds to create if crossvalidating. E.g., tenfold.
  * @param NTHREADS     Number of threads to parallelize across; the same number is used
- *                     for parallelizing training and classification.
+ *                     for parallelizing training and classification. In either case the
+ *                     ResourceGovernor may grant fewer.
  * @param minutesToWait	How long to wait for the ExecutorService governing classification
  * 						to terminate.
- * @param RIDGE        The ridge parameter for regularizing logistic regression.
+ * @param batchPages	Pages a classifying thread gathers from queued volumes before scoring them together.
+ * @param batchMillis	How long a classifying thread waits for more volumes to fill a batch.
+ * @param classifyThreads	If positive, the number of threads applying a model; otherwise one per core.
+ * @param resume		Whether to skip volumes that the output directory's journal lists as completed.
+ * @param cacheDir	Where ResultCache keeps results from earlier runs, or null for none.
+ * @param splitPages	Longest run of pages scored on one thread; longer volumes are scored in parallel blocks.
+ * @param cascade		Whether an ensemble runs its multiclass forests only on pages its
+ * 						logistic models are unsure of; see EnsembleAssembler.
+ * @param cascadeThreshold	Top probability below which a page is unsure.
+ * @param cascadeGap	Gap between the top two genres below which a page is unsure.
+ * @param settings     Parameters that shape the trained model, such as the ridge parameter
+ *                     for regularizing logistic regression. See TrainingSettings.
  * @param featureCount The number of features in the model. This will be greater than
  *                     the number of words in the vocabulary, because it also includes
  *                     structural features.
@@ -38,16 +50,30 @@ public class MapPages {
 	static int NTHREADS = 10;
 	static int NFOLDS = 5;
 	static int minutesToWait = 30;
-	static String RIDGE = "0.002";
+	static int batchPages = 1024;
+	static int batchMillis = 20;
+	static int classifyThreads = 0;
+	// If positive, overrides the number of classifying threads, which is otherwise one per core.
+	static boolean resume = false;
+	// Whether to skip volumes that the output directory's journal lists as completed.
+	static String cacheDir = null;
+	// Where ResultCache keeps results from earlier runs, if anywhere.
+	static int splitPages = 2048;
+	// Batches of more pages than this (i.e., very long volumes) are scored in parallel blocks.
+	static boolean cascade = false;
+	static double cascadeThreshold = 0.8;
+	static double cascadeGap = 0.2;
+	static TrainingSettings settings;
 	static int featureCount;
 	static int numGenres;
 	static int numInstances;
 	static ArrayList<String> genres;
 	static final String[][] EQUIVALENT = { { "bio", "non", "adver", "aut"}, {"bookp", "front"}, {"libra", "back", "index"}};
-	static final double MARKOVSMOOTHING = .0001d;
 	static Vocabulary vocabulary;
 	static ArgumentParser parser;
 	static String logfile;
+	static TrainingCoordinator coordinator = null;
+	// If not null, one-vs-all models are trained on worker processes.
 
 	/**
 	 * Main method: mostly argument-parsing.
@@ -84,10 +110,73 @@ public class MapPages {
 	 * -pairtreeroot (dir)	The root of a pairtree hierarchy, and
 	 * -slice (path)		Path to a file containing dirty HathiTrust ids that imply pairtree paths to vols.
 	 * -nthreads (int)	Number of threads to run in parallel. Default 10.
+	 * -cpus (int)		Total cores the run may occupy at once, across training, forests,
+	 * 					sweeps and classification. Caps -nthreads. Default: all available.
 	 * -ridge (double)	Ridge parameter for regularizing logistic regression.
+	 * -features (int)	Number of words to read from the vocabulary. Default 5000.
+	 * -ridgepath (list)	Comma-separated ridge values, e.g. 0.0002,0.002,0.02. Implies -cross.
+	 * 					Instead of writing predictions, trains and scores every value in each
+	 * 					fold and writes per-genre accuracy for each to ridgepath.tsv.
 	 * -log (path)		Sets a location for warning log other than default: "/Users/tunder/output/warninglog.txt"
 	 * -bio				Separates biography (and autobiography and letters) from the rest of nonfiction.
 	 * -index			Separates index (and glossary and bibliography) from the rest of back matter.	
+	 * -sweep (path)	Path to a grid specification for a parameter sweep; see ParameterSweep.
+	 * 					Crossvalidates every configuration on the grid and writes leaderboard.tsv.
+	 * -sweepthreads (int)	Number of configurations to train at once in a sweep. Default 2.
+	 * -sweepmemory (int)	Megabytes of heap a sweep may commit to configurations at once.
+	 * 						Default is 80% of the maximum heap.
+	 * -seed (long)		Seeds undersampling and page-budget sampling. Default 10.
+	 * -pagebudget (int)	Keeps at most this many training pages of each genre, sampled
+	 * 						before pages are turned into feature vectors.
+	 * -bagged			Averages several bootstrap-sampled logistic models for each genre.
+	 * -bags (int)		Number of bootstrap models per genre with -bagged. Default 3.
+	 * -bagridges (list)	Comma-separated ridge parameters for successive bags; the
+	 * 						schedule repeats if there are more bags. Default 0.1,10,50.
+	 * -stream			Trains by streaming volumes from disk (see StreamingTrainer), so the
+	 * 					training corpus need not fit in memory. Uses -ridge for regularization.
+	 * -softmax			With -stream, trains one multinomial model instead of one-vs-all.
+	 * -epochs (int)	Passes over the training data with -stream. Default 5.
+	 * -streambuffer (int)	Pages held for shuffling with -stream. Default 4096.
+	 * -learningrate (double)	AdaGrad step size with -stream. Default 0.1.
+	 * -worker			Runs as a TrainingWorker, training genres for a coordinator, instead of
+	 * 					doing anything else. Listens on -port.
+	 * -port (int)		Port for -worker or -serve, or the first port for -spawn. Default 7071.
+	 * -serve			Runs as a ClassificationServer instead of doing anything else: loads
+	 * 					the models in -model (comma-separated paths, labeled by a comma-separated
+	 * 					-modelname) once, and classifies volumes sent to -port on this host.
+	 * 					Volumes requested by ID are found under -pairtreeroot. With -cpus,
+	 * 					no more volumes are classified at once than the budget allows.
+	 * -modeldir (path)	With -serve, serves every .ser file in this directory instead of -model,
+	 * 					and swaps in new models when the directory changes; see ModelWatcher.
+	 * -watchseconds (int)	How often -modeldir is checked. Default 30.
+	 * -spawn (int)		Starts this many worker JVMs on this host and trains one-vs-all
+	 * 					models on them; see TrainingCoordinator.
+	 * -workers (list)	Comma-separated host:port addresses of running workers to train on.
+	 * 					Workers must see training data at the same paths.
+	 * -batchpages (int)	When applying a model, pages to gather from several volumes and
+	 * 						score together. Default 1024; 1 scores each volume alone.
+	 * -batchmillis (int)	How long to wait for more volumes before scoring a partial batch.
+	 * 						Default 20.
+	 * -classifythreads (int)	Threads applying a model. Default: one per core in the -cpus budget.
+	 * -resume				When applying a model or ensemble, skip volumes listed as done in
+	 * 						completed.txt in the output directory, the journal of an earlier run.
+	 * 						Volumes not done at the end are listed in failed.txt there.
+	 * -splitpages (int)	When applying a model, a volume (or batch) of more pages than this is
+	 * 						scored in blocks on every core, then smoothed whole. 0 turns this off.
+	 * 						Default 2048.
+	 * -cache (path)		When applying a model, keeps each volume's results in this directory,
+	 * 						keyed by the contents of its feature file and the model, and reuses
+	 * 						them for any volume with the same contents. See ResultCache.
+	 * -kernels (name)	Backend for the scoring, normalization and smoothing loops: scalar
+	 * 					(default) or simd, which needs SimdKernels, built from simd/, and
+	 * 					--add-modules jdk.incubator.vector.
+	 * 					See ScoringKernels; KernelBenchmark compares them.
+	 * -cascade			With -ensemble, runs one-vs-all logistic models first and multiclass
+	 * 					forests only on the pages the first logistic model is unsure of.
+	 * -threshold (double)	With -cascade, pages whose top probability is below this are
+	 * 						sent on to the forests. Default 0.8.
+	 * -gapthreshold (double)	With -cascade, so are pages whose top genre leads the next
+	 * 							by less than this. Default 0.2.
 	 */
 	public static void main(String[] args) {
 		
@@ -98,6 +187,23 @@ public class MapPages {
 		logfile = "/Users/tunder/output/warninglog.txt";
 		parseGlobalOptions(args);
 		
+		int port = TrainingWorker.DEFAULT_PORT;
+		if (parser.getInteger("-port") > 0) port = parser.getInteger("-port");
+		if (parser.isPresent("-worker")) {
+			TrainingWorker worker = new TrainingWorker(port);
+			worker.serve();
+			return;
+		}
+		if (parser.isPresent("-serve")) {
+			serve(port);
+			return;
+		}
+		if (parser.getInteger("-spawn") > 0 || parser.isPresent("-workers")) {
+			String workerList = null;
+			if (parser.isPresent("-workers")) workerList = parser.getString("-workers");
+			coordinator = new TrainingCoordinator(workerList, parser.getInteger("-spawn"), port);
+		}
+		
 		boolean trainingRun = parser.isPresent("-train");
 		// The most important option defines whether this is a training run.
 		
@@ -122,7 +228,11 @@ public class MapPages {
 		}
 		
 		if (parser.isPresent("-ridge")) {
-			RIDGE = parser.getString("-ridge");
+			settings.ridge = parser.getString("-ridge");
+		}
+		
+		if (parser.isPresent("-features") & parser.getInteger("-features") > 0) {
+			settings.vocabularySize = parser.getInteger("-features");
 		}
 		
 		boolean local = parser.isPresent("-local");
@@ -150,7 +260,13 @@ public class MapPages {
 			else dirToProcess = parser.getString("-toprocess");
 			dirToProcess = validateDirectory(dirToProcess, "input");
 			
-			boolean crossvalidate = parser.isPresent("-cross");
+			ArrayList<String> ridgeValues = null;
+			if (parser.isPresent("-ridgepath")) {
+				ridgeValues = RidgePath.parseRidgeValues(parser.getString("-ridgepath"));
+			}
+			
+			boolean crossvalidate = parser.isPresent("-cross") | ridgeValues != null;
+			// A ridge path is only meaningful if we have held-out volumes to score.
 			if (crossvalidate) {
 				if (parser.getInteger("-cross") > 0) {
 					NFOLDS = parser.getInteger("-cross");
@@ -162,8 +278,20 @@ public class MapPages {
 				additionalTrainingDir = parser.getString("-addtraining");
 			}
 			
-			trainingRun (vocabPath, featureDir, genreDir, dirToProcess, dirForOutput, 
-					additionalTrainingDir, crossvalidate, serialize);
+			if (parser.isPresent("-sweep")) {
+				int sweepThreads = 2;
+				if (parser.getInteger("-sweepthreads") > 0) sweepThreads = parser.getInteger("-sweepthreads");
+				long memoryBudget = (long) (Runtime.getRuntime().maxMemory() * 0.8);
+				if (parser.getInteger("-sweepmemory") > 0) memoryBudget = parser.getInteger("-sweepmemory") * 1048576L;
+				
+				ParameterSweep sweep = new ParameterSweep(parser.getString("-sweep"), settings, vocabPath, 
+						NFOLDS, sweepThreads, NTHREADS, memoryBudget);
+				sweep.run(featureDir, genreDir, additionalTrainingDir, dirForOutput);
+			}
+			else {
+				trainingRun (vocabPath, featureDir, genreDir, dirToProcess, dirForOutput, 
+					additionalTrainingDir, crossvalidate, serialize, ridgeValues);
+			}
 		}
 		else if (parser.isPresent("-ensemble")) {
 			// This is an ensemble run.
@@ -222,42 +350,131 @@ public class MapPages {
 	
 	private static void parseGlobalOptions (String[] args) {
 		parser = new ArgumentParser(args);
+		settings = new TrainingSettings();
 		if (parser.isPresent("-log")) {
 			logfile = parser.getString("-log");
 		}
 		
 		WarningLogger.initializeLogger(true, logfile);
 		
+		if (parser.getInteger("-cpus") > 0) {
+			ResourceGovernor.setBudget(parser.getInteger("-cpus"));
+		}
+		// Before anything sizes a pool from the budget, including -worker and -serve, which
+		// return before the rest of main, and -spawn, which divides the budget among workers.
+		
 		if (parser.isPresent("-index")) {
 			Global.separateIndex();
 		}
 		if (parser.isPresent("-allvsall")) {
-			Global.allVsAll = true;
+			settings.allVsAll = true;
 		}
 		if (parser.isPresent("-bio")) {
 			Global.separateBiography();
 		}
 		if (parser.isPresent("-undersample")) {
-			Global.undersample = true;
+			settings.undersample = true;
 		}
 		if (parser.isPresent("-multiclassforest")) {
-			Global.multiclassForest = true;
+			settings.multiclassForest = true;
 		}
 		if (parser.isPresent("-multipleforests")) {
-			Global.multipleForests = true;
+			settings.multipleForests = true;
 		}
 		if (parser.isPresent("-outputjson")) {
 			Global.outputJSON = true;
 		}
+		if (parser.isPresent("-kernels")) {
+			ScoringKernels.select(parser.getString("-kernels"));
+		}
+		if (parser.isPresent("-seed")) {
+			try {
+				settings.seed = Long.parseLong(parser.getString("-seed"));
+			}
+			catch (NumberFormatException e) {
+				System.out.println("The -seed parameter should be an integer; using the default.");
+			}
+		}
+		if (parser.isPresent("-pagebudget")) {
+			settings.pageBudget = parser.getInteger("-pagebudget");
+		}
+		if (parser.isPresent("-bagged")) {
+			settings.bagged = true;
+		}
+		if (parser.getInteger("-bags") > 0) {
+			settings.bags = parser.getInteger("-bags");
+		}
+		if (parser.isPresent("-bagridges")) {
+			String[] ridges = GenrePredictorBagged.parseRidges(parser.getString("-bagridges"));
+			settings.bagRidges = String.join(",", ridges);
+			// Checked here, so a bad value is reported once rather than for every genre.
+		}
+		if (parser.getInteger("-batchpages") > 0) {
+			batchPages = parser.getInteger("-batchpages");
+		}
+		if (parser.isPresent("-resume")) {
+			resume = true;
+		}
+		if (parser.isPresent("-splitpages")) {
+			splitPages = parser.getInteger("-splitpages");
+		}
+		if (parser.isPresent("-cache")) {
+			cacheDir = parser.getString("-cache");
+		}
+		if (parser.getInteger("-classifythreads") > 0) {
+			classifyThreads = parser.getInteger("-classifythreads");
+		}
+		if (parser.isPresent("-batchmillis")) {
+			batchMillis = parser.getInteger("-batchmillis");
+		}
+		if (parser.isPresent("-stream")) {
+			settings.streaming = true;
+		}
+		if (parser.isPresent("-softmax")) {
+			settings.softmax = true;
+		}
+		if (parser.getInteger("-epochs") > 0) {
+			settings.epochs = parser.getInteger("-epochs");
+		}
+		if (parser.getInteger("-streambuffer") > 0) {
+			settings.shuffleBuffer = parser.getInteger("-streambuffer");
+		}
+		if (parser.isPresent("-learningrate")) {
+			try {
+				settings.learningRate = Double.parseDouble(parser.getString("-learningrate"));
+			}
+			catch (NumberFormatException e) {
+				System.out.println("The -learningrate parameter should be a number; using the default.");
+			}
+		}
+		if (parser.isPresent("-cascade")) {
+			cascade = true;
+		}
+		if (parser.isPresent("-threshold")) {
+			try {
+				cascadeThreshold = Double.parseDouble(parser.getString("-threshold"));
+			}
+			catch (NumberFormatException e) {
+				System.out.println("The -threshold parameter should be a number; using the default.");
+			}
+		}
+		if (parser.isPresent("-gapthreshold")) {
+			try {
+				cascadeGap = Double.parseDouble(parser.getString("-gapthreshold"));
+			}
+			catch (NumberFormatException e) {
+				System.out.println("The -gapthreshold parameter should be a number; using the default.");
+			}
+		}
 	}
 	
 	private static void trainingRun (String vocabPath, String featureDir, String genreDir, 
 			String dirToProcess, String dirForOutput, String additionalTrainingDir,
-			boolean crossvalidate, boolean serialize) {
+			boolean crossvalidate, boolean serialize, ArrayList<String> ridgeValues) {
 		
-		vocabulary = new Vocabulary(vocabPath, 5000, true);
-		// reads in the first 5000 features and adds a catch-all category
-		// if there are fewer than 5000 features in vocab, it reads them all
+		vocabulary = new Vocabulary(vocabPath, settings.vocabularySize, true);
+		// reads in the first 5000 features (by default) and adds a catch-all category
+		// if there are fewer than that in vocab, it reads them all
 		
 		ArrayList<String> volumeLabels = folderIntersection(featureDir, genreDir);
 		int numVolumes = volumeLabels.size();
@@ -306,6 +523,11 @@ public class MapPages {
 			// if the code executes properly this list will actually never be used; it will be
 			// replaced on the first pass.
 			
+			RidgePath ridgePath = null;
+			if (ridgeValues != null) {
+				ridgePath = new RidgePath(ridgeValues, vocabulary, settings.markovSmoothing, NTHREADS);
+			}
+			
 			Partition partition = new Partition(filesToProcess, NFOLDS);
 			for (int i = 0; i < NFOLDS; ++i) {
 				System.out.println("Iteration: " + Integer.toString(i));
@@ -332,8 +554,13 @@ public class MapPages {
 					genrePaths.addAll(moreGenrePaths);
 				}
 				
+				if (ridgePath != null) {
+					ridgePath.runFold(trainingSet, featurePaths, genrePaths, testSet, dirToProcess, genreDir);
+					continue;
+				}
+				
 				GenreList newGenreList;
-				if (Global.multiclassForest){
+				if (settings.multiclassForest){
 					newGenreList = multiclassTrainAndClassify(trainingSet, featurePaths, genrePaths, 
 							dirToProcess, testSet, dirForOutput, serialize);
 				}
@@ -357,6 +584,10 @@ public class MapPages {
 					}
 				}
 			}
+			
+			if (ridgePath != null) {
+				ridgePath.writeReport(dirForOutput);
+			}
 		}
 		else {
 			ArrayList<String> featurePaths = new ArrayList<String>();
@@ -365,7 +596,7 @@ public class MapPages {
 				featurePaths.add(featureDir);
 				genrePaths.add(genreDir);
 			}
-			if (Global.multiclassForest){
+			if (settings.multiclassForest){
 				multiclassTrainAndClassify(volumeLabels, featurePaths, genrePaths, 
 						dirToProcess, filesToProcess, dirForOutput, serialize);
 			}
@@ -397,40 +628,30 @@ public class MapPages {
 			String inputDir, ArrayList<String> volsToProcess, String dirForOutput, boolean serialize) {
 		
 		Model model = trainModel(trainingVols, featurePaths, genrePaths);
+		model.freeze();
+		// Frozen models score linear predictors through a compiled LinearScorer.
 		
-		MarkovTable markov = model.markov;
-		ArrayList<String> genres = model.genreList.genreLabels;
-		FeatureNormalizer normalizer = model.normalizer;
-		ArrayList<GenrePredictor> classifiers = model.classifiers;
-		int numGenres = genres.size();
-		
-//		ExecutorService classifierPool = Executors.newFixedThreadPool(1);
-		// I'm taking out the executor service for the classification stage, because reusing the same classifiers
-		// in multiple threads is causing a concurrency bug.
+		// Predictors don't modify anything shared while they score (WekaDriver gives each
+		// thread its own copy of a Weka model), so volumes are classified in parallel.
+		ExecutorService classifierPool = Executors.newFixedThreadPool(ResourceGovernor.share(NTHREADS));
 		ArrayList<ClassifyingThread> filesToClassify = new ArrayList<ClassifyingThread>(volsToProcess.size());
 		
 		for (String thisFile : volsToProcess) {
-			ClassifyingThread fileClassifier = new ClassifyingThread(thisFile, inputDir, dirForOutput, numGenres, 
-					classifiers, markov, genres, vocabulary, normalizer, false, "model");
+			ClassifyingThread fileClassifier = new ClassifyingThread(thisFile, inputDir, dirForOutput, model, false, "model");
 			// The final parameter == false because this will never be run in a pairtree context.
-			fileClassifier.run();
 			filesToClassify.add(fileClassifier);
+			classifierPool.execute(fileClassifier);
 		}
 		
-//		for (ClassifyingThread fileClassifier: filesToClassify) {
-//			classifierPool.execute(fileClassifier);
-//		}
-//		
-//		classifierPool.shutdown();
-//		try {
-//			classifierPool.awaitTermination(6000, TimeUnit.SECONDS);
-//		}
-//		catch (InterruptedException e) {
-//			System.out.println("Helpful error message: Execution was interrupted.");
-//		}
+		classifierPool.shutdown();
+		try {
+			classifierPool.awaitTermination(6000, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			System.out.println("Helpful error message: Execution was interrupted.");
+		}
 		// block until all threads are completed
 		
-		
 		// write prediction metadata (confidence levels)
 		
 		String outPath = dirForOutput + "/predictionMetadata.tsv";
@@ -462,28 +683,39 @@ public class MapPages {
 	}
 	
 	private static GenreList multiclassTrainAndClassify (ArrayList<String> trainingVols, ArrayList<String> featurePaths, ArrayList<String> genrePaths, 
-			String inputDir, ArrayList<String> volsToProcess, String dirForOutput, boolean serialize) {
+			final String inputDir, ArrayList<String> volsToProcess, final String dirForOutput, boolean serialize) {
 		
 		Model model = trainForest(trainingVols, featurePaths, genrePaths);
+		model.freeze();
 		
-		MarkovTable markov = model.markov;
-		ArrayList<String> genres = model.genreList.genreLabels;
-		FeatureNormalizer normalizer = model.normalizer;
+		final MarkovTable markov = model.markov;
+		final ArrayList<String> genres = model.genreList.genreLabels;
+		final FeatureNormalizer normalizer = model.normalizer;
 		ArrayList<GenrePredictor> classifiers = model.classifiers;
-		GenrePredictor forest = classifiers.get(0);
+		final GenrePredictor forest = classifiers.get(0);
+		
+		final String[] metadata = new String[volsToProcess.size()];
+		ExecutorService classifierPool = Executors.newFixedThreadPool(ResourceGovernor.share(NTHREADS));
+		for (int i = 0; i < volsToProcess.size(); ++i) {
+			final int position = i;
+			final String thisFile = volsToProcess.get(i);
+			classifierPool.execute(new Runnable() {
+				public void run() {
+					// The final parameter == false because this will never be run in a pairtree context.
+					metadata[position] = forest.classify(thisFile, inputDir, dirForOutput, markov, genres, vocabulary, normalizer, false);
+				}
+			});
+		}
+		classifierPool.shutdown();
+		try {
+			classifierPool.awaitTermination(6000, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			System.out.println("Helpful error message: Execution was interrupted.");
+		}
 		
 		String outPath = dirForOutput + "/predictionMetadata.tsv";
 		LineWriter metadataWriter = new LineWriter(outPath, true);
-		String[] metadata = new String[volsToProcess.size()];
-		
-		int i = 0;
-		for (String thisFile : volsToProcess) {
-			// The final parameter == false because this will never be run in a pairtree context.
-			forest.classify(thisFile, inputDir, dirForOutput, markov, genres, vocabulary, normalizer, false);
-			metadata[i] = forest.predictionMetadata;
-			++ i;
-		}
-		
 		metadataWriter.send(metadata);
 		
 		if (serialize) {
@@ -507,29 +739,71 @@ public class MapPages {
 		
 		featureCount = vocabulary.vocabularySize;
 		System.out.println(featureCount + " features.");
-		Corpus corpus = new Corpus(featurePaths, genrePaths, trainingVols, vocabulary);
+		if (settings.streaming) {
+			StreamingTrainer trainer = new StreamingTrainer(featurePaths, genrePaths, trainingVols, vocabulary, settings);
+			Model model = trainer.train();
+			numGenres = model.genreList.getSize();
+			genres = model.genreList.genreLabels;
+			return model;
+		}
+		if (coordinator != null && !settings.allVsAll) {
+			TrainingJob job = new TrainingJob(featurePaths, genrePaths, trainingVols, vocabulary, settings);
+			Model model = coordinator.trainModel(job, NTHREADS);
+			numGenres = model.genreList.getSize();
+			genres = model.genreList.genreLabels;
+			return model;
+		}
+		Corpus corpus = new Corpus(featurePaths, genrePaths, trainingVols, vocabulary, 
+				settings.pageBudget, settings.seed);
 		numGenres = corpus.genres.getSize();
 		System.out.println(numGenres);
 		numInstances = corpus.numPoints;
 		genres = corpus.genres.genreLabels;
+		
+		return trainModel(corpus, trainingVols, settings, NTHREADS);
+	}
+	
+	/**
+	 * Trains one-vs-all (or all-vs-all) classifiers for every genre in a corpus that
+	 * has already been read, plus a Markov table of genre transitions. This doesn't
+	 * touch the static fields of MapPages, so a parameter sweep can call it for several
+	 * configurations at once.
+	 * 
+	 * @param corpus		Training corpus, already normalized.
+	 * @param trainingVols	The volumes in the corpus, used to build the Markov table.
+	 * @param settings		Parameters for this model.
+	 * @param nthreads		Number of genres to train in parallel.
+	 */
+	static Model trainModel (Corpus corpus, ArrayList<String> trainingVols, TrainingSettings settings, int nthreads) {
+		
+		int genreCount = corpus.genres.getSize();
+		ArrayList<String> genreLabels = corpus.genres.genreLabels;
 		FeatureNormalizer normalizer = corpus.normalizer;
 		ArrayList<String> features = normalizer.features;
 		
-		ExecutorService executive = Executors.newFixedThreadPool(NTHREADS);
-		ArrayList<TrainingThread> trainingThreads = new ArrayList<TrainingThread>(numGenres);
+		if (settings.allVsAll) {
+			// Pairwise models are trained as independent tasks on the shared pool.
+			ArrayList<GenrePredictor> classifiers = GenrePredictorAllVsAll.trainAll(corpus.genres, features, 
+					corpus.datapoints, settings.ridge, true);
+			MarkovTable markov = corpus.makeMarkovTable(trainingVols, settings.markovSmoothing);
+			return new Model(corpus.vocabulary, normalizer, corpus.genres, classifiers, markov);
+		}
+		
+		ExecutorService executive = Executors.newFixedThreadPool(ResourceGovernor.share(nthreads));
+		ArrayList<TrainingThread> trainingThreads = new ArrayList<TrainingThread>(genreCount);
 		
-		for (int i = 0; i < numGenres; ++i) {
+		for (int i = 0; i < genreCount; ++i) {
 			String aGenre;
 			if (i < 2) aGenre = "dummy";
-			else aGenre = genres.get(i);
+			else aGenre = genreLabels.get(i);
 			// The first two genres are dummy genres for the front and back of the volume. So we don't actually train classifiers
 			// for them. The trainingThread class knows to return a dummy classifier when aGenre.equals("dummy").
 			
-			TrainingThread trainClassifier = new TrainingThread(corpus.genres, features, aGenre, corpus.datapoints, RIDGE, true, Global.undersample);
+			TrainingThread trainClassifier = new TrainingThread(corpus.genres, features, aGenre, corpus.datapoints, settings, true);
 			trainingThreads.add(trainClassifier);
 		}
 		
-		for (int i = 0; i < numGenres; ++i) {
+		for (int i = 0; i < genreCount; ++i) {
 			executive.execute(trainingThreads.get(i));
 		}
 		
@@ -543,15 +817,15 @@ public class MapPages {
 		}
 		// block until all threads are completed
 		
-		ArrayList<GenrePredictor> classifiers = new ArrayList<GenrePredictor>(numGenres);
+		ArrayList<GenrePredictor> classifiers = new ArrayList<GenrePredictor>(genreCount);
 		
-		for (int i = 0; i < numGenres; ++ i) {
+		for (int i = 0; i < genreCount; ++ i) {
 			classifiers.add(trainingThreads.get(i).classifier);
 		}
 			
-		MarkovTable markov = corpus.makeMarkovTable(trainingVols, MARKOVSMOOTHING);
+		MarkovTable markov = corpus.makeMarkovTable(trainingVols, settings.markovSmoothing);
 		
-		Model model = new Model(vocabulary, normalizer, corpus.genres, classifiers, markov);
+		Model model = new Model(corpus.vocabulary, normalizer, corpus.genres, classifiers, markov);
 		return model;
 	}
 	
@@ -559,7 +833,8 @@ public class MapPages {
 		
 		featureCount = vocabulary.vocabularySize;
 		System.out.println(featureCount + " features.");
-		Corpus corpus = new Corpus(featurePaths, genrePaths, trainingVols, vocabulary);
+		Corpus corpus = new Corpus(featurePaths, genrePaths, trainingVols, vocabulary, 
+				settings.pageBudget, settings.seed);
 		numGenres = corpus.genres.getSize();
 		System.out.println(numGenres);
 		numInstances = corpus.numPoints;
@@ -572,13 +847,13 @@ public class MapPages {
 		ArrayList<GenrePredictor> classifiers = new ArrayList<GenrePredictor>(1);
 		classifiers.add(multiclassifier);
 			
-		MarkovTable markov = corpus.makeMarkovTable(trainingVols, MARKOVSMOOTHING);
+		MarkovTable markov = corpus.makeMarkovTable(trainingVols, settings.markovSmoothing);
 		
 		Model model = new Model(vocabulary, normalizer, corpus.genres, classifiers, markov);
 		return model;
 	}
 	
-	private static Model deserializeModel (String modelPath) {
+	static Model deserializeModel (String modelPath) {
 		Model m = null;
 	    try {
 	    	FileInputStream fileIn = new FileInputStream(modelPath);
@@ -601,8 +876,10 @@ public class MapPages {
 
 	/**
 	 * Takes a previously-trained model and applies it to a new set of volumes. We parallelize
-	 * by creating multiple threads, each with its own copy of the model. Then we feed files
-	 * to those threads through a single BlockingQueue.
+	 * by creating multiple threads, which share one frozen copy of the model. A VolumeScheduler
+	 * sorts the volumes by the size of their feature files and deals them, largest first, to
+	 * whichever thread has the least work so far; each thread works through its own share,
+	 * and when that runs out it steals from the thread with the most work left.
 	 * 
 	 * @param inputDir This can either be a directory that contains files, or the
 	 * root directory of a pairtree structure.
@@ -617,40 +894,45 @@ public class MapPages {
 	private static void applyModel (String modelPath, String inputDir, ArrayList<String> volsToProcess, 
 			String dirForOutput, boolean isPairtree, String modelName) {
 		
-		int CLASSIFYTHREADS = 6;
-		// The number of threads to create.
+		int CLASSIFYTHREADS = ResourceGovernor.budget();
+		if (classifyThreads > 0) CLASSIFYTHREADS = ResourceGovernor.share(classifyThreads);
+		// One thread per core in the budget, unless -classifythreads asks for fewer.
+		
+		Model model = deserializeModel(modelPath);
+		if (model == null) {
+			System.out.println("Could not load a model from " + modelPath + ".");
+			return;
+		}
+		model.freeze();
+		// The model is read once and shared by every thread, since scoring doesn't modify it.
 		
 		// Set up the pool. There's actually no reason this couldn't be run as separate threads, because
 		// the size of the pool equals the total number of tasks. But this is how I've set it up.
 		ExecutorService classifierPool = Executors.newFixedThreadPool(CLASSIFYTHREADS);
 		ArrayList<ClassifyingExecutor> workers = new ArrayList<ClassifyingExecutor>(CLASSIFYTHREADS);
 		
-		// Create the queue so I can pass it to the worker threads.
-		BlockingQueue<String> jobQueue = new LinkedBlockingQueue<String>(12000);
-		for (int i = 0; i < CLASSIFYTHREADS; ++i) {
-			ClassifyingExecutor worker = new ClassifyingExecutor(inputDir, dirForOutput, modelPath, i, 
-					isPairtree, Global.outputJSON, modelName, jobQueue);
-			workers.add(worker);
+		// With -resume, volumes the journal lists as done are skipped.
+		CompletionJournal journal = new CompletionJournal(dirForOutput, resume);
+		ArrayList<String> toDo = journal.remaining(volsToProcess);
+		if (resume) {
+			System.out.println("Resuming: " + (volsToProcess.size() - toDo.size()) + " of " + volsToProcess.size() + 
+					" volumes were already classified.");
 		}
 		
-		// Now we actually load filenames into the queue.
-		for (String thisFile : volsToProcess) {
-			thisFile = PairtreeReader.cleanID(thisFile);
-			try {
-				jobQueue.offer(thisFile, 1, TimeUnit.MINUTES);
-			} catch (Exception e) {
-				System.out.println("Queue overflow, failed to accept " + thisFile);
-			}
+		// The scheduler sorts volumes largest first and shares them out among the threads,
+		// which steal from each other when they run out; see VolumeScheduler.
+		ArrayList<String> cleanIDs = new ArrayList<String>(toDo.size());
+		for (String thisFile : toDo) {
+			cleanIDs.add(PairtreeReader.cleanID(thisFile));
 		}
-		
-		// To ensure that thre threads stop when the end of the queue is reached, we pack 
-		// the end of the queue with STOP signals that they know how to interpret.
+		VolumeScheduler scheduler = new VolumeScheduler(cleanIDs, CLASSIFYTHREADS, inputDir, isPairtree);
+		ResultCache cache = null;
+		if (cacheDir != null) cache = ResultCache.open(cacheDir, modelPath);
 		for (int i = 0; i < CLASSIFYTHREADS; ++i) {
-			try {
-				jobQueue.offer("STOP", 1, TimeUnit.MINUTES);
-			} catch (Exception e) {
-				System.out.println("Queue overflow, failed to accept STOP signal.");
-			}
+			ClassifyingExecutor worker = new ClassifyingExecutor(inputDir, dirForOutput, model, i, 
+					isPairtree, Global.outputJSON, modelName, scheduler, journal, cache, batchPages, batchMillis);
+			worker.setSplitPages(splitPages);
+			workers.add(worker);
 		}
 		
 		// Start all the worker jobs.
@@ -659,7 +941,7 @@ public class MapPages {
 		}
 		
 		// No more jobs to add. Await termination of the running jobs. This will only
-		// happen when they exhaust the queue.
+		// happen when the scheduler has no volumes left for any of them.
 		classifierPool.shutdown();
 		try {
 			classifierPool.awaitTermination(minutesToWait, TimeUnit.MINUTES);
@@ -668,6 +950,21 @@ public class MapPages {
 			System.out.println("Helpful error message: Execution was interrupted.");
 		}
 		
+		System.out.println(scheduler.report());
+		System.out.println(journal.report());
+		if (cache != null) System.out.println(cache.report());
+		if (!classifierPool.isTerminated()) {
+			int unfinished = journal.writeUnfinished(volsToProcess);
+			System.out.println("Stopped waiting after " + minutesToWait + " minutes with classification still running. " +
+					unfinished + " volumes were not yet completed (some may still be in progress); they are listed in " +
+					dirForOutput + "unfinished.txt. Rerunning with -resume will retry just those.");
+			return;
+		}
+		int failed = journal.writeFailed(volsToProcess);
+		if (failed > 0) {
+			System.out.println(failed + " volumes were not classified; they are listed in " + dirForOutput + 
+					"failed.txt. Rerunning with -resume will retry just those.");
+		}
 		System.out.println("Classification complete.");
 		
 	}
@@ -697,7 +994,7 @@ public class MapPages {
 	 * @param featureFiles
 	 * @return
 	 */
-	private static ArrayList<String> folderIntersection(String featureDir, String genreDir) {
+	static ArrayList<String> folderIntersection(String featureDir, String genreDir) {
 		
 		ArrayList<String> hathiIDs = new ArrayList<String>();
 		
@@ -836,6 +1133,13 @@ public class MapPages {
 		}
 		
 		int ensembleSize = modelNames.size();
+		CompletionJournal journal = new CompletionJournal(dirForOutput, resume);
+		ArrayList<String> allVolumes = volsToProcess;
+		volsToProcess = journal.remaining(allVolumes);
+		if (resume) {
+			System.out.println("Resuming: " + (allVolumes.size() - volsToProcess.size()) + " of " + allVolumes.size() + 
+					" volumes were already classified.");
+		}
 		int numVolumes = volsToProcess.size();
 		
 		// Deserialize each of the models.
@@ -844,6 +1148,38 @@ public class MapPages {
 			ensemble.add(deserializeModel(aPath));
 		}
 		
+		if (cascade) {
+			// The cheap models go first, so the first of them can screen pages for the forests.
+			ArrayList<Model> cheapModels = new ArrayList<Model>();
+			ArrayList<String> cheapNames = new ArrayList<String>();
+			ArrayList<String> cheapInstructions = new ArrayList<String>();
+			ArrayList<Model> forests = new ArrayList<Model>();
+			ArrayList<String> forestNames = new ArrayList<String>();
+			ArrayList<String> forestInstructions = new ArrayList<String>();
+			for (int i = 0; i < ensembleSize; ++i) {
+				if (modelInstructions.get(i).equals("-multiclassforest")) {
+					forests.add(ensemble.get(i));
+					forestNames.add(modelNames.get(i));
+					forestInstructions.add(modelInstructions.get(i));
+				}
+				else {
+					cheapModels.add(ensemble.get(i));
+					cheapNames.add(modelNames.get(i));
+					cheapInstructions.add(modelInstructions.get(i));
+				}
+			}
+			if (cheapModels.size() < 1 || forests.size() < 1) {
+				System.out.println("A cascade needs both logistic and forest models; running every model on every page.");
+				cascade = false;
+			}
+			ensemble = cheapModels;
+			ensemble.addAll(forests);
+			modelNames = cheapNames;
+			modelNames.addAll(forestNames);
+			modelInstructions = cheapInstructions;
+			modelInstructions.addAll(forestInstructions);
+		}
+		
 		// Now we construct the assembly line, connecting each part to the next
 		// with blocking queues.
 		
@@ -852,22 +1188,23 @@ public class MapPages {
 		
 		BlockingQueue<Unknown> secondQueue = new LinkedBlockingQueue<Unknown>(20);
 		EnsembleAssembler firstModeler = new EnsembleAssembler(ensemble.get(0), modelNames.get(0), modelInstructions.get(0), numVolumes, 
-				firstQueue, secondQueue);
+				firstQueue, secondQueue, cascade, cascadeThreshold, cascadeGap);
 		
 		BlockingQueue<Unknown> thirdQueue = new LinkedBlockingQueue<Unknown>(20);
 		EnsembleAssembler secondModeler = new EnsembleAssembler(ensemble.get(1), modelNames.get(1), modelInstructions.get(1), numVolumes, 
-				secondQueue, thirdQueue);
+				secondQueue, thirdQueue, cascade, cascadeThreshold, cascadeGap);
 		
 		BlockingQueue<Unknown> fourthQueue = new LinkedBlockingQueue<Unknown>(20);
 		EnsembleAssembler thirdModeler = new EnsembleAssembler(ensemble.get(2), modelNames.get(2), modelInstructions.get(2), numVolumes, 
-				thirdQueue, fourthQueue);
+				thirdQueue, fourthQueue, cascade, cascadeThreshold, cascadeGap);
 		
 		BlockingQueue<Unknown> fifthQueue = new LinkedBlockingQueue<Unknown>(20);
 		EnsembleAssembler fourthModeler = new EnsembleAssembler(ensemble.get(3), modelNames.get(3), modelInstructions.get(3), numVolumes, 
-				fourthQueue, fifthQueue);
+				fourthQueue, fifthQueue, cascade, cascadeThreshold, cascadeGap);
 		
 		EnsembleOutput finalResults = new EnsembleOutput(dirForOutput, fifthQueue, numVolumes, ensembleSize, 
-				modelNames, ensemble.get(0).genreList.genreLabels , ensemble.get(0).genreList.genreIndex);
+				modelNames, ensemble.get(0).genreList.genreLabels , ensemble.get(0).genreList.genreIndex,
+				journal, allVolumes);
 		
 		new Thread(theProducer).start();
 		new Thread(firstModeler).start();
@@ -883,6 +1220,52 @@ public class MapPages {
 		System.out.println("DONE.");
 	}
 
+	/**
+	 * Loads the models named by -model and serves them until the process is killed.
+	 * The -cpus budget has already been applied (in parseGlobalOptions), so the shared
+	 * pool the server classifies on is sized from it.
+	 */
+	private static void serve(int port) {
+		String pairtreeRoot = null;
+		if (parser.isPresent("-pairtreeroot")) pairtreeRoot = parser.getString("-pairtreeroot");
+		
+		if (parser.isPresent("-modeldir")) {
+			int seconds = 30;
+			if (parser.getInteger("-watchseconds") > 0) seconds = parser.getInteger("-watchseconds");
+			ModelWatcher watcher = new ModelWatcher(parser.getString("-modeldir"), seconds * 1000L);
+			ModelSet initial = watcher.load();
+			if (initial == null) return;
+			ClassificationServer server = new ClassificationServer(port, initial, pairtreeRoot);
+			watcher.watch(server);
+			server.serve();
+			return;
+		}
+		
+		if (!parser.isPresent("-model")) {
+			System.out.println("A server needs at least one model, given with -model or -modeldir.");
+			return;
+		}
+		String[] modelPaths = parser.getString("-model").split(",");
+		String[] modelNames = new String[0];
+		if (parser.isPresent("-modelname")) modelNames = parser.getString("-modelname").split(",");
+		
+		ArrayList<Model> models = new ArrayList<Model>(modelPaths.length);
+		ArrayList<String> names = new ArrayList<String>(modelPaths.length);
+		for (int i = 0; i < modelPaths.length; ++i) {
+			Model model = deserializeModel(modelPaths[i]);
+			if (model == null) {
+				System.out.println("Could not load a model from " + modelPaths[i] + ".");
+				return;
+			}
+			models.add(model.freeze());
+			if (i < modelNames.length) names.add(modelNames[i]);
+			else names.add(new File(modelPaths[i]).getName().replace(".ser", ""));
+		}
+		
+		ClassificationServer server = new ClassificationServer(port, new ModelSet(models, names), pairtreeRoot);
+		server.serve();
+	}
+	
 	private static ArrayList<String> getSlice(String slicePath) {
 		ArrayList<String> dirtyHtids;
 		LineReader getHtids = new LineReader(slicePath);
@@ -4,6 +4,12 @@
 package pages;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * @author tunderwood
@@ -11,38 +17,151 @@ import java.util.ArrayList;
  */
 public class MarkovTable implements java.io.Serializable {
 	GenreList genres;
-	ArrayList<Integer> unigramFrequencies;
-	ArrayList<ArrayList<Integer>> bigramFrequencies;
+	int[] unigramCounts;
+	int[][] bigramCounts;
 	// Rows (first dimension) are keyed to the genre of *previous* page.
-	// Columns (second dimension) are the genre of the next.
+	// Columns (second dimension) are the genre of the next. These replaced
+	// the ArrayList fields unigramFrequencies and bigramFrequencies, under new
+	// names so that models saved with the old fields still deserialize.
 	double[][] probabilityMatrix;
 	double lambda;
 	private static final long serialVersionUID = 117L;
+	private static final int CHUNKSIZE = 4096;
+	// Below this many sequences per chunk, counting in parallel isn't worth a task.
 	
 	public MarkovTable (double lambda, GenreList genres) {
 		this.lambda = lambda;
 		this.genres = genres;
-		unigramFrequencies = new ArrayList<Integer>();
-		bigramFrequencies = new ArrayList<ArrayList<Integer>>();
-		// Now we need to add rows for genres that are already present in
-		// the GenreList. There will be at least two rows, "begin" and "end,"
+		// There will be at least two rows, "begin" and "end," 
 		// added to every GenreList when it is constructed.
-		
-		// Initialize unigram and bigram tables.
 		int numGenres = genres.getSize();
-		for (int i = 0; i < numGenres; ++i) {
-			unigramFrequencies.add(0);
-			bigramFrequencies.add(new ArrayList<Integer>());
+		unigramCounts = new int[numGenres];
+		bigramCounts = new int[numGenres][numGenres];
+	}
+	
+	public MarkovTable (double[][] matrix) {
+		this.probabilityMatrix = matrix;
+	}
+	
+	/**
+	 * Counts the genre transitions in a set of sequences. Large sets are split into
+	 * chunks that are counted in parallel, each into a private table, using a snapshot
+	 * of the genre index; the tables are then merged. Sequences containing a genre
+	 * that isn't in the list are set aside and counted afterward, one at a time,
+	 * since they have to add the genre.
+	 * 
+	 * @param lambda Smoothing for interpolateProbabilities.
+	 * @param genres Genres to count; normally this already includes every genre in sequences.
+	 * @param sequences Genre sequences, one per volume.
+	 */
+	public static MarkovTable countSequences (double lambda, GenreList genres, final ArrayList<ArrayList<String>> sequences) {
+		MarkovTable markov = new MarkovTable(lambda, genres);
+		int numSequences = sequences.size();
+		int numChunks = Math.min(ResourceGovernor.budget(), numSequences / CHUNKSIZE);
+		if (numChunks < 2) {
+			for (ArrayList<String> sequence : sequences) {
+				markov.trainSequence(sequence);
+			}
+			return markov;
 		}
-		for (int i = 0; i < numGenres; ++ i) {
-			for (int j = 0; j < numGenres; ++j) {
-				bigramFrequencies.get(i).add(0);
+		
+		final HashMap<String, Integer> snapshot = new HashMap<String, Integer>(genres.getSize() * 2);
+		for (int i = 0; i < genres.getSize(); ++i) {
+			snapshot.put(genres.genreLabels.get(i), i);
+		}
+		final GenreList theGenres = genres;
+		final double theLambda = lambda;
+		final ArrayList<Integer> deferred = new ArrayList<Integer>();
+		ArrayList<Callable<MarkovTable>> chunks = new ArrayList<Callable<MarkovTable>>(numChunks);
+		for (int c = 0; c < numChunks; ++c) {
+			final int from = (int) ((long) numSequences * c / numChunks);
+			final int to = (int) ((long) numSequences * (c + 1) / numChunks);
+			chunks.add(new Callable<MarkovTable>() {
+				public MarkovTable call() {
+					MarkovTable chunkTable = new MarkovTable(theLambda, theGenres);
+					for (int i = from; i < to; ++i) {
+						if (!chunkTable.countKnown(sequences.get(i), snapshot)) {
+							synchronized (deferred) {
+								deferred.add(i);
+							}
+						}
+					}
+					return chunkTable;
+				}
+			});
+		}
+		
+		try {
+			for (Future<MarkovTable> chunkTable : ResourceGovernor.pool().invokeAll(chunks)) {
+				markov.merge(chunkTable.get());
 			}
 		}
+		catch (InterruptedException e) {
+			System.out.println("Helpful error message: Execution was interrupted.");
+		}
+		catch (ExecutionException e) {
+			System.out.println("Counting genre transitions failed: " + e.getCause());
+		}
+		
+		Collections.sort(deferred);
+		for (int i : deferred) {
+			markov.trainSequence(sequences.get(i));
+		}
+		return markov;
 	}
 	
-	public MarkovTable (double[][] matrix) {
-		this.probabilityMatrix = matrix;
+	/**
+	 * Counts a sequence only if every genre in it is already indexed, touching nothing
+	 * but this table's own counts.
+	 * 
+	 * @return False, with nothing counted, if the sequence has a genre not in the index.
+	 */
+	private boolean countKnown (ArrayList<String> sequence, HashMap<String, Integer> index) {
+		int numPages = sequence.size();
+		int[] codes = new int[numPages + 1];
+		for (int i = 0; i < numPages; ++i) {
+			Integer idx = index.get(sequence.get(i));
+			if (idx == null) return false;
+			codes[i] = idx;
+		}
+		codes[numPages] = index.get("end");
+		int previdx = index.get("begin");
+		for (int idx : codes) {
+			unigramCounts[idx] += 1;
+			bigramCounts[previdx][idx] += 1;
+			previdx = idx;
+		}
+		return true;
+	}
+	
+	/**
+	 * Adds another table's counts to this one. Both must have been built on the same GenreList.
+	 */
+	public void merge (MarkovTable other) {
+		grow(other.unigramCounts.length);
+		for (int i = 0; i < other.unigramCounts.length; ++i) {
+			unigramCounts[i] += other.unigramCounts[i];
+			int[] row = bigramCounts[i];
+			int[] otherRow = other.bigramCounts[i];
+			for (int j = 0; j < otherRow.length; ++j) {
+				row[j] += otherRow[j];
+			}
+		}
+	}
+	
+	/**
+	 * Enlarges the count tables, if necessary, to cover numGenres genres.
+	 */
+	private void grow (int numGenres) {
+		int oldSize = unigramCounts.length;
+		if (numGenres <= oldSize) return;
+		unigramCounts = Arrays.copyOf(unigramCounts, numGenres);
+		int[][] bigger = new int[numGenres][];
+		for (int i = 0; i < numGenres; ++i) {
+			if (i < oldSize) bigger[i] = Arrays.copyOf(bigramCounts[i], numGenres);
+			else bigger[i] = new int[numGenres];
+		}
+		bigramCounts = bigger;
 	}
 	
 	public void writeTable (String filepath) {
@@ -62,55 +181,33 @@ public class MarkovTable implements java.io.Serializable {
 		writer.send(outlines);
 	}
 	
-	public void trainSequence (ArrayList<String> sequenceToClone) {
-		ArrayList<String> sequence = new ArrayList<String>(sequenceToClone.size());
-		for (String a : sequenceToClone) {
-			sequence.add(a);
-		}
-		sequence.add("end");
+	public void trainSequence (ArrayList<String> sequence) {
 		int previdx = genres.getIndex("begin");
 		// Every Markov sequence has "begin" as its starting element and
-		// concludes with "end." Here we implement this by actually adding
-		// "end" to the sequence. We don't add "begin," but we set a variable
-		// indicating that we've *just seen* a "begin."
+		// concludes with "end." We don't add "begin," but we set a variable
+		// indicating that we've *just seen* a "begin," and we count an "end"
+		// after the last page.
 		
-		for (String genre : sequence) {
+		int numPages = sequence.size();
+		for (int i = 0; i <= numPages; ++i) {
+			String genre;
+			if (i < numPages) genre = sequence.get(i);
+			else genre = "end";
+			
 			int idx = genres.getIndex(genre);
-			if (idx >= 0) {
-				unigramFrequencies.set(idx, unigramFrequencies.get(idx) + 1);
-				int current = bigramFrequencies.get(previdx).get(idx);
-				// The number of times previdx was followed by idx.
-				bigramFrequencies.get(previdx).set(idx, current + 1);
-				// We could have done that without first assigning to "current" as a holder,
-				// but the code would be opaque.
-				previdx = idx;
-			}
 			if (idx < 0) {
 				// This is a genre we have not yet seen, so it needs to be added.
 				// Given current code design, this should not be happening.
 				System.out.println("Warning: Markov table is discovering a new genre in training process.");
 				// TODO: better error handling.
-				int numGenres = genres.getSize();
 				genres.addLabel(genre);
-				unigramFrequencies.add(1);
-				// Add a new column to every existing row. Blank except for row = previdx.
-				for (int i = 0; i < numGenres; ++ i) {
-					if (i == previdx) {
-						bigramFrequencies.get(i).add(1);
-					}
-					else {
-						bigramFrequencies.get(i).add(0);
-					}
-				}
-				// Now add a new row.
-				numGenres += 1;
-				ArrayList<Integer> blankRow = new ArrayList<Integer>();
-				for (int i = 0; i < numGenres; ++i) {
-					blankRow.add(0);
-				}
-				bigramFrequencies.add(blankRow);
-				previdx = genres.getIndex(genre);
+				idx = genres.getIndex(genre);
 			}
+			grow(genres.getSize());
+			unigramCounts[idx] += 1;
+			bigramCounts[previdx][idx] += 1;
+			// The number of times previdx was followed by idx.
+			previdx = idx;
 		}
 	}
 	
@@ -121,16 +218,12 @@ public class MarkovTable implements java.io.Serializable {
 		// We go through the raw bigram frequencies by row (indicating previous genre).
 		// Then for each column (indicating genre that might follow), we increment
 		// observed frequencies by raw-frequency-of-genre times lambda.
-		System.out.println(bigramFrequencies.size());
-		System.out.println(unigramFrequencies.size());
-		for (int i = 0; i < bigramFrequencies.size(); ++i) {
-			System.out.println(i + ": " + bigramFrequencies.get(i).size());
-		}
+		grow(numGenres);
 		for (int i = 0; i < numGenres; ++i) {
 			double[] proportions = new double[numGenres];
 			double sum = 0d;
 			for (int j = 0; j < numGenres; ++j) {
-				proportions[j] = bigramFrequencies.get(i).get(j) + (unigramFrequencies.get(j) * lambda) + 2;
+				proportions[j] = bigramCounts[i][j] + (unigramCounts[j] * lambda) + 2;
 				if (j == 0) {
 					proportions[j] = 0;
 					// There is no possibility of returning to genre "begin."
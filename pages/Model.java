@@ -4,6 +4,7 @@
 package pages;
 
 import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
 import java.io.Serializable;
 
 /**
@@ -19,7 +20,13 @@ public class Model implements Serializable {
 	GenreList genreList; 
 	ArrayList<GenrePredictor> classifiers;
 	MarkovTable markov;
+	transient LinearScorer compiled;
+	// Built by freeze() for linear predictors; not saved, since it's derived from them.
 	private static final long serialVersionUID = 113L;
+	private static final int MINIMUM_BLOCK = 128;
+	// The smallest block of pages scored on its own when a long volume is split. Smaller
+	// blocks would lose more to scheduling than they gain, and cut into the batching a
+	// compiled scorer relies on.
 	
 	public Model(Vocabulary vocabulary, FeatureNormalizer normalizer, GenreList genreList, 
 			ArrayList<GenrePredictor> classifiers, MarkovTable markov) {
@@ -31,5 +38,138 @@ public class Model implements Serializable {
 		genreList.makeIndex();
 		// That may be used if we use this model as part of an ensemble.
 	}
+	
+	/**
+	 * Prepares a model to be shared by every thread that classifies with it. Predictors
+	 * drop what only training needed. After this nothing in the model is modified by
+	 * scoring, so one copy can serve any number of threads.
+	 * 
+	 * Linear predictors are also compiled into a LinearScorer, which scorePages uses
+	 * in place of Weka.
+	 * 
+	 * @return This model.
+	 */
+	public Model freeze() {
+		for (GenrePredictor classifier : classifiers) {
+			classifier.freeze();
+		}
+		compiled = LinearScorer.compile(classifiers);
+		return this;
+	}
+	
+	/**
+	 * Unsmoothed probabilities for the pages of a volume.
+	 * 
+	 * @return One array per page, with a column for each genre in genreList.
+	 */
+	public ArrayList<double[]> scorePages(ArrayList<DataPoint> pages) {
+		LinearScorer scorer = compiled;
+		if (scorer == null) return scorePages(classifiers, pages);
+		
+		int numGenres = classifiers.size();
+		int numPoints = pages.size();
+		ArrayList<double[]> rawProbs = new ArrayList<double[]>(numPoints);
+		for (int j = 0; j < numPoints; ++j) {
+			rawProbs.add(new double[numGenres]);
+		}
+		scorer.score(pages, rawProbs);
+		for (int i = 2; i < numGenres; ++i) {
+			if (scorer.covers(i)) continue;
+			double[][] probs = classifiers.get(i).testNewInstances(pages);
+			for (int j = 0; j < numPoints; ++j) {
+				rawProbs.get(j)[i] = probs[j][0];
+			}
+		}
+		return rawProbs;
+	}
+	
+	/**
+	 * Unsmoothed probabilities, as above, for a run of pages that may be long. A run of
+	 * more than splitPages pages (a volume of thousands of pages, say) is scored in blocks,
+	 * in parallel, on the shared fork/join pool, so that it doesn't occupy one thread while
+	 * other cores sit idle. Pages are scored independently, so the result is the same, in
+	 * the same order, as scoring the whole run at once; it can be smoothed as one sequence.
+	 * 
+	 * @param splitPages	Longest run scored on the calling thread alone; 0 never splits.
+	 */
+	public ArrayList<double[]> scorePages(ArrayList<DataPoint> pages, int splitPages) {
+		int numPoints = pages.size();
+		if (splitPages < 1 || numPoints <= splitPages) return scorePages(pages);
+		
+		int blockPages = Math.max(MINIMUM_BLOCK, numPoints / (2 * ResourceGovernor.budget()));
+		// About two blocks per core, so a core that finishes early can take another.
+		double[][] rows = new double[numPoints][];
+		ResourceGovernor.pool().invoke(new BlockScorer(pages, 0, numPoints, blockPages, rows));
+		ArrayList<double[]> rawProbs = new ArrayList<double[]>(numPoints);
+		for (double[] row : rows) {
+			rawProbs.add(row);
+		}
+		return rawProbs;
+	}
+	
+	/**
+	 * Scores pages from..to, halving the range until it is no longer than blockPages.
+	 */
+	private class BlockScorer extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ArrayList<DataPoint> pages;
+		private final int from;
+		private final int to;
+		private final int blockPages;
+		private final double[][] rows;
+		
+		BlockScorer(ArrayList<DataPoint> pages, int from, int to, int blockPages, double[][] rows) {
+			this.pages = pages;
+			this.from = from;
+			this.to = to;
+			this.blockPages = blockPages;
+			this.rows = rows;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= blockPages) {
+				ArrayList<double[]> block = scorePages(new ArrayList<DataPoint>(pages.subList(from, to)));
+				for (int i = 0; i < block.size(); ++i) {
+					rows[from + i] = block.get(i);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new BlockScorer(pages, from, middle, blockPages, rows),
+					new BlockScorer(pages, middle, to, blockPages, rows));
+		}
+	}
+	
+	/**
+	 * Scores pages with a list of one-vs-all or all-vs-all predictors. The first two
+	 * predictors belong to the dummy genres "begin" and "end," and their columns stay zero.
+	 * All-vs-all predictors that share their pairwise models are scored in a single
+	 * batched pass; anything else is scored one genre at a time.
+	 */
+	public static ArrayList<double[]> scorePages(ArrayList<GenrePredictor> classifiers, ArrayList<DataPoint> pages) {
+		int numGenres = classifiers.size();
+		int numPoints = pages.size();
+		ArrayList<double[]> rawProbs = new ArrayList<double[]>(numPoints);
+		
+		double[][] batched = GenrePredictorAllVsAll.scoreAll(classifiers, pages);
+		if (batched != null) {
+			for (int j = 0; j < numPoints; ++j) {
+				rawProbs.add(batched[j]);
+			}
+			return rawProbs;
+		}
+		
+		for (int j = 0; j < numPoints; ++j) {
+			rawProbs.add(new double[numGenres]);
+		}
+		for (int i = 2; i < numGenres; ++i) {
+			double[][] probs = classifiers.get(i).testNewInstances(pages);
+			for (int j = 0; j < numPoints; ++j) {
+				rawProbs.get(j)[i] = probs[j][0];
+			}
+		}
+		return rawProbs;
+	}
 
 }
@@ -0,0 +1,33 @@
+/**
+ *
+ */
+package pages;
+
+import java.util.ArrayList;
+
+/**
+ * The models a ClassificationServer applies, with the label written into each model's
+ * records. A set is never changed once made; a server swaps in a whole new set, so a
+ * request that has started on one set finishes on it.
+ *
+ * @param models	Frozen models.
+ * @param names		The label for each model's records.
+ */
+public class ModelSet {
+	public final ArrayList<Model> models;
+	public final ArrayList<String> names;
+
+	public ModelSet(ArrayList<Model> models, ArrayList<String> names) {
+		this.models = models;
+		this.names = names;
+	}
+
+	public int size() {
+		return models.size();
+	}
+
+	public String toString() {
+		return names.toString();
+	}
+
+}
@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * Watches a directory of serialized models (as written by -save) for a ClassificationServer,
+ * and swaps a new set of models into the server when the directory changes, so that
+ * retrained models can be published without stopping the server and losing its warm JIT.
+ *
+ * Every few seconds the watcher lists the .ser files in the directory with their sizes
+ * and modification times. When the listing differs from the one the server is using,
+ * and has stayed the same for one more poll (so that a file still being copied in isn't
+ * read half-written), every model in the directory is deserialized and frozen, which
+ * compiles it, on the watcher's own thread. Only then is the new set handed to the
+ * server, in one step; requests already running finish on the old set. If any model
+ * fails to load, the server keeps the set it has.
+ *
+ * Each model is labeled with its file name, minus .ser, and the file's modification
+ * time (e.g. fiction@20261019T143000), so that records from before and after a swap
+ * can be told apart even when the new model was published under the old name.
+ * Publishing a model by writing it under another name and renaming it to .ser is safest.
+ *
+ * @param modelDir		Directory holding the models; every .ser file in it is served.
+ * @param pollMillis	How often to list the directory.
+ */
+public class ModelWatcher implements Runnable {
+	private String modelDir;
+	private long pollMillis;
+	private ClassificationServer server;
+	private volatile String loadedListing = null;
+
+	public ModelWatcher(String modelDir, long pollMillis) {
+		if (!modelDir.endsWith("/")) modelDir = modelDir + "/";
+		this.modelDir = modelDir;
+		this.pollMillis = pollMillis;
+	}
+
+	/**
+	 * Starts watching on a daemon thread, swapping new models into this server.
+	 */
+	public void watch(ClassificationServer server) {
+		this.server = server;
+		Thread watcher = new Thread(this);
+		watcher.setDaemon(true);
+		watcher.start();
+		System.out.println("Watching " + modelDir + " for new models every " + (pollMillis / 1000) + " seconds.");
+	}
+
+	@Override
+	public void run() {
+		String previous = loadedListing;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(pollMillis);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			String listing = listing();
+			if (listing.equals(loadedListing) || !listing.equals(previous)) {
+				previous = listing;
+				continue;
+			}
+			// Changed since the last load, and unchanged since the last poll.
+			ModelSet loaded = load();
+			if (loaded != null) {
+				server.swap(loaded);
+			}
+			else {
+				loadedListing = listing;
+				// Don't retry the same broken files on every poll; wait for the directory to change again.
+			}
+		}
+	}
+
+	/**
+	 * Loads and freezes every model in the directory.
+	 *
+	 * @return The models, or null if there are none or any of them couldn't be loaded.
+	 */
+	public synchronized ModelSet load() {
+		String listing = listing();
+		if (listing.length() < 1) {
+			System.out.println("No models (.ser files) found in " + modelDir + ".");
+			return null;
+		}
+		ArrayList<String> paths = DirectoryList.getMatchingPaths(modelDir, ".ser");
+		Collections.sort(paths);
+		SimpleDateFormat stamp = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
+		ArrayList<Model> models = new ArrayList<Model>(paths.size());
+		ArrayList<String> names = new ArrayList<String>(paths.size());
+		for (String path : paths) {
+			File file = new File(path);
+			Model model = MapPages.deserializeModel(path);
+			if (model == null) {
+				System.out.println("Could not load a model from " + path + "; keeping the models already loaded.");
+				return null;
+			}
+			try {
+				models.add(model.freeze());
+			}
+			catch (RuntimeException e) {
+				System.out.println("Could not prepare the model in " + path + ": " + e + "; keeping the models already loaded.");
+				return null;
+			}
+			String name = file.getName();
+			name = name.substring(0, name.length() - ".ser".length());
+			names.add(name + "@" + stamp.format(new Date(file.lastModified())));
+		}
+		loadedListing = listing;
+		return new ModelSet(models, names);
+	}
+
+	/**
+	 * @return The names, sizes and modification times of the .ser files in the directory.
+	 */
+	private String listing() {
+		if (!new File(modelDir).isDirectory()) return "";
+		ArrayList<String> paths = DirectoryList.getMatchingPaths(modelDir, ".ser");
+		Collections.sort(paths);
+		StringBuilder listing = new StringBuilder();
+		for (String path : paths) {
+			File file = new File(path);
+			listing.append(path).append('\t').append(file.length()).append('\t').append(file.lastModified()).append('\n');
+		}
+		return listing.toString();
+	}
+
+}
@@ -12,7 +12,7 @@ public class PairtreeReader {
 		this.dataPath = dataPath;
 	}
 	
-	private String getPairtreePath(String dirtyID) {
+	String getPairtreePath(String dirtyID) {
 		String clean = cleanID(dirtyID);
 		int periodIndex = clean.indexOf(".");
 		String prefix = clean.substring(0, periodIndex);
@@ -0,0 +1,281 @@
+/**
+ *
+ */
+package pages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crossvalidates a grid of training configurations in one run. The labeled volumes
+ * are read from disk once, with the largest vocabulary on the grid; each configuration
+ * then builds its own normalized corpora for each fold from that parsed source, trains
+ * a model with its own TrainingSettings, and scores the held-out pages in memory.
+ *
+ * Several configurations train at once. Since the corpora for a configuration can be
+ * large, we also keep a rough budget of heap: before a configuration starts it reserves
+ * its estimated footprint, and waits if that would exceed the budget.
+ *
+ * The grid is a tab-separated file with one parameter per line, followed by a
+ * comma-separated list of values. Blank lines and lines beginning with # are ignored.
+ * Parameters not mentioned keep the values given on the command line.
+ *
+ *     features	1000,3000,5000
+ *     ridge	0.0002,0.002,0.02
+ *     smoothing	0.0001,0.001
+ *     undersample	false,true
+ *     allvsall	false
+ *
+ * Results are written to leaderboard.tsv, best configuration first. Multiclass
+ * forests are trained and tested by a different path, so they aren't part of the grid.
+ *
+ * @param configurations	One TrainingSettings for each point on the grid.
+ * @param memoryPermits		Heap budget in megabytes, as a semaphore.
+ */
+public class ParameterSweep {
+	private ArrayList<TrainingSettings> configurations;
+	private String vocabPath;
+	private int folds;
+	private int sweepThreads;
+	private int trainerThreads;
+	private int budgetMB;
+	private Semaphore memoryPermits;
+	private HashMap<Integer, Vocabulary> vocabularies;
+
+	public ParameterSweep(String gridPath, TrainingSettings base, String vocabPath, int folds,
+			int sweepThreads, int trainerThreads, long memoryBudget) {
+		this.vocabPath = vocabPath;
+		this.folds = folds;
+		this.sweepThreads = ResourceGovernor.share(sweepThreads);
+		this.trainerThreads = Math.max(1, ResourceGovernor.share(trainerThreads) / this.sweepThreads);
+		// Configurations running side by side share the cores we would otherwise
+		// give to a single model.
+		budgetMB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / 1048576L));
+		memoryPermits = new Semaphore(budgetMB);
+		vocabularies = new HashMap<Integer, Vocabulary>();
+		configurations = readGrid(gridPath, base);
+		System.out.println("Sweeping " + configurations.size() + " configurations.");
+	}
+
+	private ArrayList<TrainingSettings> readGrid(String gridPath, TrainingSettings base) {
+		ArrayList<TrainingSettings> grid = new ArrayList<TrainingSettings>();
+		grid.add(new TrainingSettings(base));
+
+		LineReader reader = new LineReader(gridPath);
+		String[] lines = reader.readlines();
+		for (String line : lines) {
+			line = line.trim();
+			if (line.length() < 1 || line.startsWith("#")) continue;
+			String[] fields = line.split("\t");
+			if (fields.length != 2) {
+				System.out.println("Grid line " + line + " should have a parameter and a list of values.");
+				continue;
+			}
+			String parameter = fields[0].trim().toLowerCase();
+			String[] values = fields[1].split(",");
+
+			// Each parameter multiplies the grid by the number of its values.
+			ArrayList<TrainingSettings> expanded = new ArrayList<TrainingSettings>();
+			for (TrainingSettings existing : grid) {
+				for (String value : values) {
+					value = value.trim();
+					if (value.length() < 1) continue;
+					TrainingSettings setting = new TrainingSettings(existing);
+					try {
+						if (parameter.equals("features")) setting.vocabularySize = Integer.parseInt(value);
+						else if (parameter.equals("ridge")) {
+							Double.parseDouble(value);
+							setting.ridge = value;
+						}
+						else if (parameter.equals("smoothing")) setting.markovSmoothing = Double.parseDouble(value);
+						else if (parameter.equals("undersample")) setting.undersample = Boolean.parseBoolean(value);
+						else if (parameter.equals("allvsall")) setting.allVsAll = Boolean.parseBoolean(value);
+						else {
+							System.out.println("Unknown sweep parameter " + parameter + "; ignoring it.");
+							break;
+						}
+					}
+					catch (NumberFormatException e) {
+						System.out.println("Value " + value + " for " + parameter + " does not parse and will be ignored.");
+						continue;
+					}
+					expanded.add(setting);
+				}
+			}
+			if (expanded.size() > 0) grid = expanded;
+		}
+		return grid;
+	}
+
+	private synchronized Vocabulary getVocabulary(int size) {
+		Vocabulary vocab = vocabularies.get(size);
+		if (vocab == null) {
+			vocab = new Vocabulary(vocabPath, size, true);
+			vocabularies.put(size, vocab);
+		}
+		return vocab;
+	}
+
+	/**
+	 * Reads the labeled volumes, crossvalidates every configuration, and writes
+	 * the leaderboard.
+	 *
+	 * @param featureDir	Directory of page features for the labeled volumes.
+	 * @param genreDir		Directory of genre maps for the labeled volumes.
+	 * @param additionalTrainingDir	If not null, volumes here are added to the training set of every fold.
+	 * @param dirForOutput	Where leaderboard.tsv is written.
+	 */
+	public void run(String featureDir, String genreDir, String additionalTrainingDir, String dirForOutput) {
+		ArrayList<String> labeledVols = MapPages.folderIntersection(featureDir, genreDir);
+		ArrayList<String> allVols = new ArrayList<String>(labeledVols);
+		ArrayList<String> featurePaths = new ArrayList<String>();
+		ArrayList<String> genrePaths = new ArrayList<String>();
+		for (int i = 0; i < labeledVols.size(); ++i) {
+			featurePaths.add(featureDir);
+			genrePaths.add(genreDir);
+		}
+		ArrayList<String> extraVols = new ArrayList<String>();
+		if (additionalTrainingDir != null) {
+			String additionalFeatureDir = additionalTrainingDir + "pagefeatures/";
+			String additionalGenreDir = additionalTrainingDir + "genremaps/";
+			extraVols = MapPages.folderIntersection(additionalFeatureDir, additionalGenreDir);
+			for (int i = 0; i < extraVols.size(); ++i) {
+				featurePaths.add(additionalFeatureDir);
+				genrePaths.add(additionalGenreDir);
+			}
+			allVols.addAll(extraVols);
+		}
+
+		int largest = 0;
+		for (TrainingSettings setting : configurations) {
+			largest = Math.max(largest, setting.vocabularySize);
+		}
+		System.out.println("Reading " + allVols.size() + " volumes with a vocabulary of " + largest + ".");
+		final Corpus parsed = Corpus.parseOnly(featurePaths, genrePaths, allVols, getVocabulary(largest));
+
+		HashMap<String, Integer> pagesPerVol = new HashMap<String, Integer>();
+		for (Volume vol : parsed.volumes) {
+			pagesPerVol.put(vol.volumeID, vol.numberOfPages);
+		}
+		int totalPages = 0;
+		for (int count : pagesPerVol.values()) {
+			totalPages += count;
+		}
+		int numGenres = parsed.genres.getSize();
+
+		final Partition partition = new Partition(labeledVols, folds);
+		final ArrayList<String> additionalVols = extraVols;
+		final ArrayList<AccuracyTally> tallies = new ArrayList<AccuracyTally>(configurations.size());
+
+		ExecutorService executive = Executors.newFixedThreadPool(sweepThreads);
+		for (int c = 0; c < configurations.size(); ++c) {
+			final TrainingSettings setting = configurations.get(c);
+			final AccuracyTally tally = new AccuracyTally();
+			tallies.add(tally);
+			final int permits = estimateMB(setting, totalPages, numGenres);
+			executive.execute(new Runnable() {
+				public void run() {
+					try {
+						memoryPermits.acquire(permits);
+					}
+					catch (InterruptedException e) {
+						System.out.println("Helpful error message: Execution was interrupted.");
+						return;
+					}
+					try {
+						crossvalidate(setting, parsed, partition, additionalVols, tally);
+					}
+					finally {
+						memoryPermits.release(permits);
+					}
+				}
+			});
+		}
+		executive.shutdown();
+		try {
+			executive.awaitTermination(150000, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			System.out.println("Helpful error message: Execution was interrupted.");
+		}
+		// block until all configurations are complete
+
+		writeLeaderboard(dirForOutput, tallies);
+	}
+
+	/**
+	 * A rough estimate of the heap a configuration needs while it trains, in megabytes.
+	 * The corpus holds one dense vector per page, and every genre being trained at
+	 * once holds a Weka copy of those vectors.
+	 */
+	private int estimateMB(TrainingSettings setting, int totalPages, int numGenres) {
+		long dimensions = setting.vocabularySize + 1 + Global.FEATURESADDED;
+		long copies = 1 + Math.min(trainerThreads, numGenres);
+		long bytes = totalPages * dimensions * 8L * copies;
+		int megabytes = (int) Math.min(budgetMB, bytes / 1048576L + 1);
+		// A configuration bigger than the whole budget still gets to run, alone.
+		return megabytes;
+	}
+
+	private void crossvalidate(TrainingSettings setting, Corpus parsed, Partition partition,
+			ArrayList<String> additionalVols, AccuracyTally tally) {
+		Vocabulary vocab = getVocabulary(setting.vocabularySize);
+
+		for (int i = 0; i < folds; ++i) {
+			ArrayList<String> trainingVols = partition.volumesExcluding(i);
+			trainingVols.addAll(additionalVols);
+			ArrayList<String> testVols = partition.volumesInFold(i);
+			if (testVols.size() < 1) continue;
+
+			Corpus corpus = new Corpus(parsed, trainingVols, vocab, null, setting.pageBudget, setting.seed);
+			Model model = MapPages.trainModel(corpus, trainingVols, setting, trainerThreads);
+			Corpus heldOut = new Corpus(parsed, testVols, vocab, corpus.normalizer);
+			ArrayList<DataPoint> testPages = heldOut.datapoints;
+
+			double[][] rawProbs = model.scorePages(testPages).toArray(new double[testPages.size()][]);
+
+			AccuracyTally foldTally = new AccuracyTally();
+			foldTally.addSmoothedPages(testPages, rawProbs, model.markov, model.genreList);
+			tally.merge(foldTally);
+			System.out.println(setting.describe() + ", fold " + i + ": accuracy " + foldTally.overallAccuracy());
+		}
+	}
+
+	private void writeLeaderboard(String dirForOutput, final ArrayList<AccuracyTally> tallies) {
+		ArrayList<Integer> ranking = new ArrayList<Integer>(configurations.size());
+		for (int c = 0; c < configurations.size(); ++c) {
+			ranking.add(c);
+		}
+		Collections.sort(ranking, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(tallies.get(b).overallAccuracy(), tallies.get(a).overallAccuracy());
+			}
+		});
+
+		ArrayList<String> outlines = new ArrayList<String>();
+		outlines.add("rank\taccuracy\tpages\tfeatures\tridge\tsmoothing\tundersample\tallvsall");
+		int rank = 1;
+		for (int c : ranking) {
+			TrainingSettings setting = configurations.get(c);
+			AccuracyTally tally = tallies.get(c);
+			outlines.add(rank + "\t" + tally.overallAccuracy() + "\t" + tally.totalPages() + "\t" +
+					setting.vocabularySize + "\t" + setting.ridge + "\t" + setting.markovSmoothing + "\t" +
+					setting.undersample + "\t" + setting.allVsAll);
+			rank += 1;
+		}
+		LineWriter writer = new LineWriter(dirForOutput + "leaderboard.tsv", false);
+		writer.send(outlines.toArray(new String[outlines.size()]));
+		if (ranking.size() > 0) {
+			int best = ranking.get(0);
+			System.out.println("Best configuration: " + configurations.get(best).describe() +
+					", accuracy " + tallies.get(best).overallAccuracy());
+		}
+	}
+
+}
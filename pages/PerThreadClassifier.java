@@ -0,0 +1,65 @@
+/**
+ *
+ */
+package pages;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+
+/**
+ * Lets several threads score instances with one trained Weka classifier. Logistic
+ * and SMO pass every instance through filters (replacing missing values, converting
+ * nominal attributes) that keep the instance in an internal queue while it's being
+ * scored, so two threads calling distributionForInstance on the same model can read
+ * each other's instances. That is the concurrency bug that used to force
+ * classification to run one volume at a time.
+ *
+ * Each thread that scores gets its own deep copy of the trained model, made the first
+ * time that thread asks for it. A copy of a logistic model is small (it is mostly
+ * one coefficient per feature), so this costs far less than serializing access.
+ * The trained model itself is never used for scoring, so it's never modified.
+ *
+ * Not serializable; drivers hold one in a transient field and recreate it on demand.
+ */
+public class PerThreadClassifier {
+	private final Classifier trained;
+	private final ThreadLocal<Classifier> copies;
+
+	public PerThreadClassifier(Classifier trained) {
+		this.trained = trained;
+		this.copies = new ThreadLocal<Classifier>() {
+			@Override
+			protected Classifier initialValue() {
+				return copyOfTrained();
+			}
+		};
+	}
+
+	private Classifier copyOfTrained() {
+		synchronized (trained) {
+			// Serializing the model reads it; make sure no other thread is copying it at the same time.
+			try {
+				return AbstractClassifier.makeCopy(trained);
+			}
+			catch (Exception e) {
+				System.out.println("Could not copy a classifier for scoring: " + e);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Scores an instance with this thread's copy of the model.
+	 */
+	public double[] distributionForInstance(Instance instance) throws Exception {
+		Classifier copy = copies.get();
+		if (copy == null) {
+			synchronized (trained) {
+				return trained.distributionForInstance(instance);
+			}
+		}
+		return copy.distributionForInstance(instance);
+	}
+
+}
@@ -0,0 +1,114 @@
+/**
+ *
+ */
+package pages;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hands out a fixed budget of cores to every part of the package that runs work in
+ * parallel: genre trainers, random-forest tree building, configurations in a sweep,
+ * and classification. Before this existed, each component chose its own thread count,
+ * so a run training forests with 12 slots inside a pool of 10 genre trainers could
+ * ask a shared node for far more cores than it had.
+ *
+ * Components use the governor in two ways. Thread pools take their size from share(),
+ * so they never hold more threads than the budget. Code that actually occupies a core
+ * for a stretch of work holds a permit while it runs, with acquire() or, if it is
+ * already running on a permit and wants to fan out further (as a forest inside a
+ * genre trainer does), with acquireExtra(), which never blocks. Together these keep
+ * the number of busy threads at or under the budget even when pools are nested.
+ *
+ * Work that is naturally a bag of many small tasks (e.g. the pairwise models of an
+ * all-vs-all strategy) can be submitted to a single shared pool, sized to the budget,
+ * instead of creating a pool of its own.
+ *
+ * The budget defaults to the number of available processors and can be set with -cpus.
+ *
+ * @param budget	Total number of cores the package may occupy at once.
+ * @param permits	One permit per core in the budget.
+ */
+public class ResourceGovernor {
+	private static int budget = Runtime.getRuntime().availableProcessors();
+	private static Semaphore permits = new Semaphore(budget, true);
+	private static ForkJoinPool sharedPool = null;
+
+	/**
+	 * Sets the number of cores available. Should be called before any work starts,
+	 * since permits already handed out are counted against the old budget.
+	 */
+	public static synchronized void setBudget(int cpus) {
+		if (cpus < 1) {
+			System.out.println("A CPU budget must be at least 1; keeping " + budget + ".");
+			return;
+		}
+		budget = cpus;
+		permits = new Semaphore(budget, true);
+		if (sharedPool != null) {
+			sharedPool.shutdown();
+			sharedPool = null;
+		}
+	}
+	
+	/**
+	 * @return A pool with one thread per core in the budget, created on first use and
+	 * shared by every caller. Its threads are daemons, so it never needs to be shut down.
+	 */
+	public static synchronized ForkJoinPool pool() {
+		if (sharedPool == null) {
+			sharedPool = new ForkJoinPool(budget);
+		}
+		return sharedPool;
+	}
+
+	public static int budget() {
+		return budget;
+	}
+
+	/**
+	 * @return The size for a pool that would like wanted threads: never more than the budget,
+	 * and never less than one.
+	 */
+	public static int share(int wanted) {
+		return Math.max(1, Math.min(wanted, budget));
+	}
+
+	/**
+	 * Blocks until at least one core is free, then takes as many more as are free,
+	 * up to wanted in all.
+	 *
+	 * @return The number of permits granted, between 1 and wanted. Pass it to release().
+	 */
+	public static int acquire(int wanted) {
+		wanted = share(wanted);
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("Helpful error message: Execution was interrupted.");
+			return 0;
+		}
+		return 1 + acquireExtra(wanted - 1);
+	}
+
+	/**
+	 * Takes up to wanted additional permits without waiting, for code that already
+	 * holds a permit and could use more threads if they happen to be idle.
+	 *
+	 * @return The number of permits granted, possibly zero. Pass it to release().
+	 */
+	public static int acquireExtra(int wanted) {
+		int granted = 0;
+		while (granted < wanted && permits.tryAcquire()) {
+			granted += 1;
+		}
+		return granted;
+	}
+
+	public static void release(int granted) {
+		if (granted > 0) permits.release(granted);
+	}
+
+}
@@ -0,0 +1,210 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of classification results that persists between runs, so that a volume seen
+ * before (because slices overlap, or because HathiTrust holds several copies of the same
+ * edition) isn't parsed and scored again.
+ *
+ * Results are keyed by a SHA-256 hash of the model's serialized file together with the
+ * bytes of the volume's feature file. Two volumes with identical feature files share an
+ * entry whatever their IDs, and retraining the model (which changes its file) starts a
+ * fresh set of keys. An entry holds what is needed to write the volume's results again:
+ * the unsmoothed probabilities, which the model took almost all the time to produce, and
+ * for each page its word count (for smoothing) and the part of its label after the
+ * volume ID. Smoothing is cheap, so it is simply redone, and the output is the same as
+ * if the volume had been classified.
+ *
+ * Each entry is a small binary file, in a subdirectory named by the first two characters
+ * of its key, written under a temporary name of its own (see LineWriter.siblingTempFile)
+ * and renamed into place, so several runs can share a cache directory.
+ *
+ * @param directory		Where entries are kept.
+ * @param modelDigest	Hash of the model's serialized file.
+ */
+public class ResultCache {
+	private static final int FORMAT = 1;
+	// Changing the format of entries should change this, so old entries are never misread.
+	private final File directory;
+	private final byte[] modelDigest;
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong stored = new AtomicLong(0);
+
+	/**
+	 * What the cache holds for a volume.
+	 */
+	public static class Entry {
+		public final String[] labelSuffixes;
+		public final double[] wordLengths;
+		public final ArrayList<double[]> rawProbs;
+
+		public Entry(String[] labelSuffixes, double[] wordLengths, ArrayList<double[]> rawProbs) {
+			this.labelSuffixes = labelSuffixes;
+			this.wordLengths = wordLengths;
+			this.rawProbs = rawProbs;
+		}
+	}
+
+	private ResultCache(File directory, byte[] modelDigest) {
+		this.directory = directory;
+		this.modelDigest = modelDigest;
+	}
+
+	/**
+	 * @param cacheDir	Directory for the cache, created if necessary.
+	 * @param modelPath	The serialized model whose results are cached.
+	 * @return The cache, or null if the model file can't be read.
+	 */
+	public static ResultCache open(String cacheDir, String modelPath) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(Files.readAllBytes(new File(modelPath).toPath()));
+			File directory = new File(cacheDir);
+			directory.mkdirs();
+			return new ResultCache(directory, digest.digest());
+		}
+		catch (IOException e) {
+			System.out.println("Could not read " + modelPath + " to key the result cache; running without it. " + e);
+			return null;
+		}
+		catch (NoSuchAlgorithmException e) {
+			System.out.println("This JVM has no SHA-256; running without a result cache.");
+			return null;
+		}
+	}
+
+	/**
+	 * @param contents	The bytes of a volume's feature file.
+	 */
+	public String key(byte[] contents) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update((byte) FORMAT);
+			digest.update(modelDigest);
+			digest.update(contents);
+			StringBuilder hex = new StringBuilder(64);
+			for (byte b : digest.digest()) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+			// Can't happen; open() has already found SHA-256.
+		}
+	}
+
+	/**
+	 * @return The entry for this key, or null if there is none (or it can't be read).
+	 */
+	public Entry get(String key) {
+		File file = fileFor(key);
+		if (!file.exists()) {
+			misses.incrementAndGet();
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				int numPages = in.readInt();
+				int numGenres = in.readInt();
+				String[] labelSuffixes = new String[numPages];
+				double[] wordLengths = new double[numPages];
+				ArrayList<double[]> rawProbs = new ArrayList<double[]>(numPages);
+				for (int i = 0; i < numPages; ++i) {
+					labelSuffixes[i] = in.readUTF();
+					wordLengths[i] = in.readDouble();
+					double[] probs = new double[numGenres];
+					for (int g = 0; g < numGenres; ++g) {
+						probs[g] = in.readDouble();
+					}
+					rawProbs.add(probs);
+				}
+				hits.incrementAndGet();
+				return new Entry(labelSuffixes, wordLengths, rawProbs);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			WarningLogger.logWarning("Unreadable cache entry " + file.getPath() + ": " + e);
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	public void put(String key, Entry entry) {
+		File file = fileFor(key);
+		file.getParentFile().mkdirs();
+		File temp = null;
+		try {
+			temp = LineWriter.siblingTempFile(file);
+			// Unique across processes too, since several runs may share the directory.
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				int numPages = entry.rawProbs.size();
+				int numGenres = numPages > 0 ? entry.rawProbs.get(0).length : 0;
+				out.writeInt(numPages);
+				out.writeInt(numGenres);
+				for (int i = 0; i < numPages; ++i) {
+					out.writeUTF(entry.labelSuffixes[i]);
+					out.writeDouble(entry.wordLengths[i]);
+					for (double prob : entry.rawProbs.get(i)) {
+						out.writeDouble(prob);
+					}
+				}
+			}
+			finally {
+				out.close();
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			stored.incrementAndGet();
+		}
+		catch (IOException e) {
+			WarningLogger.logWarning("Could not write cache entry " + file.getPath() + ": " + e);
+			if (temp != null) temp.delete();
+		}
+	}
+
+	private File fileFor(String key) {
+		return new File(new File(directory, key.substring(0, 2)), key);
+	}
+
+	/**
+	 * @return A line of hit-rate statistics, for the log.
+	 */
+	public String report() {
+		long found = hits.get();
+		long lookups = found + misses.get();
+		double rate = lookups > 0 ? 100d * found / lookups : 0d;
+		return String.format("Result cache: %d of %d volumes found (%.1f%%); %d added.", found, lookups, rate, stored.get());
+	}
+
+}
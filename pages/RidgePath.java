@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import weka.core.Instances;
+
+/**
+ * Tunes the ridge parameter in a single crossvalidation run. For each fold we read
+ * the training corpus and the held-out volumes once, then train one-vs-all logistic
+ * models for every ridge value on the list and score the held-out pages with all
+ * of them. Accuracy is tallied per genre, for each ridge value, after Markov smoothing.
+ *
+ * Each fit starts from zero rather than warm-starting from the coefficients for
+ * the previous ridge value. That's deliberate. Weka's Logistic has no way to seed its
+ * optimizer, and the path has to tune the same model that training builds, so we
+ * don't swap in an optimizer of our own that could be seeded. (The values are sorted
+ * strongest first so that one could be, if Weka ever allows it.) What we do share is
+ * everything that doesn't depend on the ridge: the corpus, the held-out pages, the
+ * Markov table, and the Weka dataset for each genre, which is built once and reused
+ * for every value on the path.
+ *
+ * @param ridgeValues	Ridge parameters to try, sorted from strongest to weakest.
+ * @param tallies		One AccuracyTally per ridge value, accumulated across folds.
+ */
+public class RidgePath {
+	private ArrayList<String> ridgeValues;
+	private Vocabulary vocabulary;
+	private double markovSmoothing;
+	private int nthreads;
+	private ArrayList<AccuracyTally> tallies;
+
+	public RidgePath(ArrayList<String> ridgeValues, Vocabulary vocabulary, double markovSmoothing, int nthreads) {
+		this.ridgeValues = ridgeValues;
+		this.vocabulary = vocabulary;
+		this.markovSmoothing = markovSmoothing;
+		this.nthreads = nthreads;
+		tallies = new ArrayList<AccuracyTally>(ridgeValues.size());
+		for (int i = 0; i < ridgeValues.size(); ++i) {
+			tallies.add(new AccuracyTally());
+		}
+	}
+
+	/**
+	 * Parses a comma-separated list of ridge values, as given to -ridgepath on
+	 * the command line, and sorts it from the strongest regularization to the weakest.
+	 */
+	public static ArrayList<String> parseRidgeValues(String commaSeparated) {
+		ArrayList<String> values = new ArrayList<String>();
+		for (String value : commaSeparated.split(",")) {
+			value = value.trim();
+			if (value.length() < 1) continue;
+			try {
+				Double.parseDouble(value);
+				values.add(value);
+			}
+			catch (NumberFormatException e) {
+				System.out.println("Ridge value " + value + " does not parse as a number and will be ignored.");
+			}
+		}
+		Collections.sort(values, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Double.compare(Double.parseDouble(b), Double.parseDouble(a));
+			}
+		});
+		return values;
+	}
+
+	/**
+	 * Trains on one fold's training set and scores its test set for every ridge value.
+	 *
+	 * @param trainingVols	Volume IDs to train on.
+	 * @param featurePaths	Feature directories keyed to trainingVols.
+	 * @param genrePaths	Genre-map directories keyed to trainingVols.
+	 * @param testVols		Held-out volume IDs.
+	 * @param testFeatureDir	Directory containing feature files for the held-out volumes.
+	 * @param testGenreDir	Directory containing genre maps for the held-out volumes. Volumes
+	 * 						without a genre map can't be scored and are skipped.
+	 */
+	public void runFold(ArrayList<String> trainingVols, ArrayList<String> featurePaths, ArrayList<String> genrePaths,
+			ArrayList<String> testVols, String testFeatureDir, String testGenreDir) {
+
+		Corpus corpus = new Corpus(featurePaths, genrePaths, trainingVols, vocabulary);
+		GenreList genres = corpus.genres;
+		int numGenres = genres.getSize();
+		MarkovTable markov = corpus.makeMarkovTable(trainingVols, markovSmoothing);
+
+		ArrayList<String> labeledTestVols = new ArrayList<String>();
+		ArrayList<String> testFeaturePaths = new ArrayList<String>();
+		ArrayList<String> testGenrePaths = new ArrayList<String>();
+		for (String vol : testVols) {
+			if (new File(testGenreDir + vol + ".map").exists()) {
+				labeledTestVols.add(vol);
+				testFeaturePaths.add(testFeatureDir);
+				testGenrePaths.add(testGenreDir);
+			}
+			else {
+				System.out.println("No genre map for held-out volume " + vol + "; it will not be scored.");
+			}
+		}
+		Corpus heldOut = new Corpus(testFeaturePaths, testGenrePaths, labeledTestVols, vocabulary, corpus.normalizer);
+		ArrayList<DataPoint> testPages = heldOut.datapoints;
+
+		int numRidges = ridgeValues.size();
+		double[][][] rawProbs = new double[numRidges][testPages.size()][numGenres];
+
+		ExecutorService executive = Executors.newFixedThreadPool(ResourceGovernor.share(nthreads));
+		for (int i = 2; i < numGenres; ++i) {
+			// As in MapPages.trainModel, the first two genres are the dummies "begin" and "end."
+			executive.execute(new PathThread(corpus, genres.genreLabels.get(i), i, testPages, rawProbs));
+		}
+		executive.shutdown();
+		try {
+			executive.awaitTermination(15000, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			System.out.println("Helpful error message: Execution was interrupted.");
+		}
+		// block until all threads are completed
+
+		for (int r = 0; r < numRidges; ++r) {
+			AccuracyTally foldTally = new AccuracyTally();
+			foldTally.addSmoothedPages(testPages, rawProbs[r], markov, genres);
+			System.out.println("Ridge " + ridgeValues.get(r) + ": fold accuracy " + foldTally.overallAccuracy());
+			tallies.get(r).merge(foldTally);
+		}
+	}
+
+	/**
+	 * Writes ridgepath.tsv to the output directory, with overall accuracy and
+	 * accuracy for each genre at each ridge value.
+	 */
+	public void writeReport(String dirForOutput) {
+		ArrayList<String> outlines = new ArrayList<String>();
+		outlines.add("ridge\tgenre\tpages\taccuracy");
+		for (int r = 0; r < ridgeValues.size(); ++r) {
+			String ridge = ridgeValues.get(r);
+			AccuracyTally tally = tallies.get(r);
+			outlines.add(ridge + "\tall\t" + tally.totalPages() + "\t" + tally.overallAccuracy());
+			for (String genre : tally.genresSeen()) {
+				outlines.add(ridge + "\t" + genre + "\t" + tally.pagesInGenre(genre) + "\t" + tally.accuracy(genre));
+			}
+			System.out.println("Ridge " + ridge + ": accuracy " + tally.overallAccuracy());
+		}
+		LineWriter writer = new LineWriter(dirForOutput + "ridgepath.tsv", false);
+		writer.send(outlines.toArray(new String[outlines.size()]));
+	}
+
+	/**
+	 * Trains every step of the path for one genre. Each thread writes only its own
+	 * genre's column of rawProbs, so the threads don't interfere.
+	 */
+	private class PathThread implements Runnable {
+		private Corpus corpus;
+		private String genreToIdentify;
+		private int genreIndex;
+		private ArrayList<DataPoint> testPages;
+		private double[][][] rawProbs;
+
+		PathThread(Corpus corpus, String genreToIdentify, int genreIndex, ArrayList<DataPoint> testPages,
+				double[][][] rawProbs) {
+			this.corpus = corpus;
+			this.genreToIdentify = genreToIdentify;
+			this.genreIndex = genreIndex;
+			this.testPages = testPages;
+			this.rawProbs = rawProbs;
+		}
+
+		@Override
+		public void run() {
+			int granted = ResourceGovernor.acquire(1);
+			try {
+				Instances trainingSet = WekaDriver.makeTrainingSet(corpus.normalizer.features, genreToIdentify, corpus.datapoints);
+				for (int r = 0; r < ridgeValues.size(); ++r) {
+					WekaDriver driver = new WekaDriver(trainingSet, genreToIdentify, ridgeValues.get(r), false);
+					double[][] probs = driver.testNewInstances(testPages);
+					for (int j = 0; j < testPages.size(); ++j) {
+						rawProbs[r][j][genreIndex] = probs[j][0];
+					}
+				}
+			}
+			finally {
+				ResourceGovernor.release(granted);
+			}
+			System.out.println("Ridge path complete for " + genreToIdentify);
+		}
+	}
+
+}
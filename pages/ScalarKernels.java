@@ -0,0 +1,46 @@
+/**
+ *
+ */
+package pages;
+
+/**
+ * The plain-Java scoring kernels: the loops as the package has always run them.
+ */
+public class ScalarKernels extends ScoringKernels {
+
+	public String name() {
+		return "scalar";
+	}
+
+	public double dot(double[] a, double[] b, int n) {
+		double sum = 0d;
+		for (int i = 0; i < n; ++i) {
+			sum += a[i] * b[i];
+		}
+		return sum;
+	}
+
+	public double finiteDot(double[] weights, double[] x, int n, double start) {
+		double sum = start;
+		for (int i = 0; i < n; ++i) {
+			double value = x[i];
+			if (value - value != 0) continue;
+			// That's true only for NaN and infinities.
+			sum += weights[i] * value;
+		}
+		return sum;
+	}
+
+	public void axpy(double a, double[] x, int offset, double[] y, int n) {
+		for (int i = 0; i < n; ++i) {
+			y[i] += a * x[offset + i];
+		}
+	}
+
+	public void normalize(double[] x, double[] means, double[] stdevs) {
+		for (int i = 0; i < x.length; ++i) {
+			x[i] = (x[i] - means[i]) / stdevs[i];
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package pages;
+
+/**
+ * The few numeric loops that classification spends its time in: dot products for
+ * logistic scoring, z-score normalization of page vectors, and the matrix-vector
+ * steps of ForwardBackward. They are gathered here so that they can be run by
+ * either of two backends, chosen once at startup with -kernels:
+ *
+ *     scalar	Plain Java loops (ScalarKernels). The default, and always available.
+ *     simd		The incubating Java Vector API (SimdKernels), which the JIT compiles to
+ *     			SSE/AVX/NEON instructions. Needs a JDK with jdk.incubator.vector, started
+ *     			with --add-modules jdk.incubator.vector, and SimdKernels, which is built
+ *     			from simd/ in an optional step; if either is missing, we say so and
+ *     			fall back to scalar.
+ *
+ * The SIMD backend adds up products in a different order, so its results can differ
+ * from scalar ones in the last few bits. Predictions are the same in practice, but
+ * runs that must reproduce earlier output exactly should stay on scalar.
+ *
+ * KernelBenchmark measures both backends on this machine.
+ */
+public abstract class ScoringKernels {
+	private static volatile ScoringKernels active = new ScalarKernels();
+
+	/**
+	 * @return The backend chosen at startup.
+	 */
+	public static ScoringKernels get() {
+		return active;
+	}
+
+	/**
+	 * Chooses the backend used from now on.
+	 *
+	 * @param name	"simd" or "scalar".
+	 */
+	public static void select(String name) {
+		if (name.equals("simd")) {
+			ScoringKernels simd = loadSimd();
+			if (simd == null) {
+				System.out.println("SIMD kernels need SimdKernels (built from simd/) and --add-modules jdk.incubator.vector; using scalar kernels.");
+				active = new ScalarKernels();
+			}
+			else {
+				active = simd;
+			}
+		}
+		else if (name.equals("scalar")) {
+			active = new ScalarKernels();
+		}
+		else {
+			System.out.println("Unrecognized kernels " + name + "; expected simd or scalar. Using " + active.name() + ".");
+		}
+	}
+
+	/**
+	 * @return The Vector API backend, or null if this JVM can't run it. SimdKernels is
+	 * only ever named by reflection, so nothing else in the package needs the incubator
+	 * module to compile or load.
+	 */
+	static ScoringKernels loadSimd() {
+		try {
+			Class<?> simd = Class.forName("pages.SimdKernels");
+			return (ScoringKernels) simd.getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+		catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	public abstract String name();
+
+	/**
+	 * @return The sum of a[i] * b[i] for i below n.
+	 */
+	public abstract double dot(double[] a, double[] b, int n);
+
+	/**
+	 * @return start plus the sum of weights[i] * x[i] for i below n, skipping any x[i]
+	 * that is NaN or infinite (features with no variance in training normalize to those).
+	 */
+	public abstract double finiteDot(double[] weights, double[] x, int n, double start);
+
+	/**
+	 * Adds a * x[offset + i] to y[i], for i below n.
+	 */
+	public abstract void axpy(double a, double[] x, int offset, double[] y, int n);
+
+	/**
+	 * Replaces each x[i] with (x[i] - means[i]) / stdevs[i].
+	 */
+	public abstract void normalize(double[] x, double[] means, double[] stdevs);
+
+	/**
+	 * One forward step: out[k] = the sum over j of v[j] * matrix[j][k].
+	 */
+	public void multiplyLeft(double[] v, double[][] matrix, double[] out) {
+		int n = out.length;
+		for (int k = 0; k < n; ++k) {
+			out[k] = 0d;
+		}
+		for (int j = 0; j < v.length; ++j) {
+			axpy(v[j], matrix[j], 0, out, n);
+		}
+	}
+
+	/**
+	 * One backward step: out[j] = the sum over k of matrix[j][k] * v[k].
+	 */
+	public void multiplyRight(double[][] matrix, double[] v, double[] out) {
+		for (int j = 0; j < out.length; ++j) {
+			out[j] = dot(matrix[j], v, v.length);
+		}
+	}
+
+}
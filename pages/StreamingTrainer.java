@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package pages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Trains a model without ever holding the corpus in memory. Volumes are read from
+ * disk one at a time, on every pass, and pages are discarded as soon as they have
+ * been used; what stays resident is the weight matrix, its AdaGrad accumulators,
+ * a shuffle buffer of pages, and the genre sequences (which are small).
+ *
+ * Training makes one pass to learn feature means and standard deviations, then
+ * several epochs of stochastic gradient descent. Each epoch visits the volumes in
+ * a new random order; since pages of a volume are strongly correlated, they pass
+ * through a shuffle buffer, from which pages are drawn at random for updates.
+ * Learning rates are adapted per weight with AdaGrad.
+ *
+ * The model is either one logistic regression per genre (one-vs-all), or a
+ * single multinomial (softmax) regression. The ridge parameter is interpreted
+ * as in Weka's Logistic, a penalty on the squared weights against the summed
+ * log-likelihood of the training pages, so comparable values give comparable
+ * regularization.
+ *
+ * @param shuffleBuffer	Number of pages held for shuffling.
+ */
+public class StreamingTrainer {
+	private ArrayList<String> featurePaths;
+	private ArrayList<String> genrePaths;
+	private ArrayList<String> trainingVols;
+	private Vocabulary vocabulary;
+	private TrainingSettings settings;
+
+	public StreamingTrainer(ArrayList<String> featurePaths, ArrayList<String> genrePaths, ArrayList<String> trainingVols,
+			Vocabulary vocabulary, TrainingSettings settings) {
+		this.featurePaths = featurePaths;
+		this.genrePaths = genrePaths;
+		this.trainingVols = trainingVols;
+		this.vocabulary = vocabulary;
+		this.settings = settings;
+	}
+
+	public Model train() {
+		Corpus genreSource = Corpus.genresOnly(genrePaths, trainingVols);
+		GenreList genres = genreSource.genres;
+		int numGenres = genres.getSize();
+		System.out.println(genres.genreLabels);
+
+		// First pass: feature statistics, accumulated with Welford's method.
+		int dimensions = vocabulary.vocabularyArray.length + Global.FEATURESADDED;
+		double[] means = new double[dimensions];
+		double[] squares = new double[dimensions];
+		long numPages = 0;
+		for (int v = 0; v < trainingVols.size(); ++v) {
+			for (DataPoint aPage : readVolume(v)) {
+				numPages += 1;
+				for (int f = 0; f < dimensions; ++f) {
+					double delta = aPage.vector[f] - means[f];
+					means[f] += delta / numPages;
+					squares[f] += delta * (aPage.vector[f] - means[f]);
+				}
+			}
+		}
+		double[] stdevs = new double[dimensions];
+		for (int f = 0; f < dimensions; ++f) {
+			stdevs[f] = Math.sqrt(squares[f] / numPages);
+		}
+		FeatureNormalizer normalizer = new FeatureNormalizer(vocabulary, means, stdevs);
+		System.out.println("Streaming " + numPages + " pages from " + trainingVols.size() + " volumes.");
+
+		double lambda = Double.parseDouble(settings.ridge) / numPages;
+		double[][] weights = new double[numGenres][dimensions + 1];
+		double[][] gradientSquares = new double[numGenres][dimensions + 1];
+		Random random = new Random(settings.seed);
+		int[] order = IndexSampler.range(trainingVols.size());
+		ArrayList<DataPoint> buffer = new ArrayList<DataPoint>(settings.shuffleBuffer);
+		double[] scratch = new double[numGenres];
+
+		for (int epoch = 0; epoch < settings.epochs; ++epoch) {
+			IndexSampler.shuffle(order, random);
+			double loss = 0;
+			for (int v : order) {
+				ArrayList<DataPoint> pages = readVolume(v);
+				normalizer.normalizeFeatures(pages);
+				for (DataPoint aPage : pages) {
+					if (buffer.size() < settings.shuffleBuffer) {
+						buffer.add(aPage);
+						continue;
+					}
+					int k = random.nextInt(buffer.size());
+					loss += update(buffer.get(k), genres, weights, gradientSquares, lambda, scratch);
+					buffer.set(k, aPage);
+				}
+			}
+			Collections.shuffle(buffer, random);
+			for (DataPoint aPage : buffer) {
+				loss += update(aPage, genres, weights, gradientSquares, lambda, scratch);
+			}
+			buffer.clear();
+			System.out.println("Epoch " + epoch + ": mean log loss " + (loss / numPages));
+		}
+
+		ArrayList<GenrePredictor> classifiers = new ArrayList<GenrePredictor>(numGenres);
+		for (int g = 0; g < numGenres; ++g) {
+			if (g < 2) classifiers.add(new GenrePredictor("dummy"));
+			else classifiers.add(new GenrePredictorLinear(genres.genreLabels.get(g), weights, g, settings.softmax));
+		}
+		MarkovTable markov = genreSource.makeMarkovTable(trainingVols, settings.markovSmoothing);
+		return new Model(vocabulary, normalizer, genres, classifiers, markov);
+	}
+
+	private ArrayList<DataPoint> readVolume(int v) {
+		return Corpus.readLabeledPages(featurePaths.get(v), genrePaths.get(v), trainingVols.get(v), vocabulary);
+	}
+
+	/**
+	 * One AdaGrad step on a single page.
+	 *
+	 * @return The log loss of the page before the step.
+	 */
+	private double update(DataPoint aPage, GenreList genres, double[][] weights, double[][] gradientSquares,
+			double lambda, double[] probs) {
+		int numGenres = weights.length;
+		int target = genres.getIndex(aPage.genre);
+		double[] x = aPage.vector;
+		double loss = 0;
+
+		if (settings.softmax) {
+			GenrePredictorLinear.softmax(weights, x, probs);
+			loss = -Math.log(Math.max(probs[target], 1.0e-15));
+		}
+		else {
+			for (int g = 2; g < numGenres; ++g) {
+				probs[g] = GenrePredictorLinear.sigmoid(GenrePredictorLinear.logit(weights[g], x));
+				double p = (g == target) ? probs[g] : 1 - probs[g];
+				loss -= Math.log(Math.max(p, 1.0e-15));
+			}
+		}
+
+		for (int g = 2; g < numGenres; ++g) {
+			double error = probs[g] - (g == target ? 1 : 0);
+			double[] row = weights[g];
+			double[] squares = gradientSquares[g];
+			int dimensions = row.length - 1;
+			for (int f = 0; f < dimensions; ++f) {
+				double value = x[f];
+				if (value - value != 0) continue;
+				// Features with no variance in training normalize to NaN; skip them.
+				double gradient = error * value + lambda * row[f];
+				squares[f] += gradient * gradient;
+				row[f] -= settings.learningRate * gradient / (Math.sqrt(squares[f]) + 1.0e-8);
+			}
+			squares[dimensions] += error * error;
+			row[dimensions] -= settings.learningRate * error / (Math.sqrt(squares[dimensions]) + 1.0e-8);
+		}
+		return loss;
+	}
+
+}
@@ -0,0 +1,322 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the one-vs-all training of a model across TrainingWorker processes, so that
+ * a large experiment can use the memory and cores of several JVMs (on this machine or
+ * on others) rather than a single heap.
+ *
+ * Each worker builds the training corpus itself, from a TrainingJob, and then trains
+ * genres handed to it by the coordinator as fast as it can; a worker with more cores
+ * is kept busier. The coordinator reads only the genre maps, which it needs for the
+ * Markov table, and takes the feature normalizer from the first worker to finish
+ * reading. If a worker can't be reached, disagrees about the genre list, or fails
+ * partway, the genres it didn't return are trained here instead, so a model is
+ * always complete.
+ *
+ * Workers can be started by hand on other hosts (MapPages -worker -port 7071) and
+ * listed with -workers host:port,host:port, or spawned on this host with -spawn N,
+ * in which case they listen on consecutive ports and are killed when this JVM exits.
+ *
+ * @param addresses	Host and port of each worker.
+ * @param spawned	Worker processes started by this coordinator.
+ */
+public class TrainingCoordinator {
+	private static final long CONNECT_TIMEOUT = 120000;
+	// Milliseconds to keep trying a worker that isn't listening yet (a spawned JVM takes a moment).
+	private static final int REPLY_TIMEOUT = 15000 * 1000;
+	// Milliseconds to wait for a worker to load its corpus or return a genre before giving it up
+	// (a worker that hangs or dies without closing the connection) and training its genres here.
+
+	private ArrayList<String> hosts;
+	private ArrayList<Integer> ports;
+	private final ArrayList<Process> spawned;
+
+	/**
+	 * @param workerList	Comma-separated host:port addresses of running workers, or null.
+	 * @param spawn			Number of worker processes to start on this host.
+	 * @param basePort		First port for spawned workers.
+	 */
+	public TrainingCoordinator(String workerList, int spawn, int basePort) {
+		hosts = new ArrayList<String>();
+		ports = new ArrayList<Integer>();
+		spawned = new ArrayList<Process>();
+
+		if (workerList != null) {
+			for (String address : workerList.split(",")) {
+				address = address.trim();
+				if (address.length() < 1) continue;
+				int colon = address.lastIndexOf(':');
+				try {
+					if (colon < 0) {
+						hosts.add(address);
+						ports.add(TrainingWorker.DEFAULT_PORT);
+					}
+					else {
+						int port = Integer.parseInt(address.substring(colon + 1));
+						hosts.add(address.substring(0, colon));
+						ports.add(port);
+					}
+				}
+				catch (NumberFormatException e) {
+					System.out.println("Worker address " + address + " has a port that does not parse; skipping it.");
+				}
+			}
+		}
+
+		if (spawn > 0) spawnWorkers(spawn, basePort);
+		System.out.println("Training with " + hosts.size() + " workers.");
+	}
+
+	/**
+	 * Starts local worker JVMs with this JVM's classpath and heap options, dividing our
+	 * CPU budget among them.
+	 */
+	private void spawnWorkers(int count, int basePort) {
+		String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classpath = System.getProperty("java.class.path");
+		int cpusEach = Math.max(1, ResourceGovernor.budget() / count);
+		ArrayList<String> jvmOptions = new ArrayList<String>();
+		for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if (option.startsWith("-Xm") || option.startsWith("-Xs")) jvmOptions.add(option);
+		}
+
+		for (int i = 0; i < count; ++i) {
+			int port = basePort + i;
+			ArrayList<String> command = new ArrayList<String>();
+			command.add(javaBin);
+			command.addAll(jvmOptions);
+			command.add("-cp");
+			command.add(classpath);
+			command.add("pages.MapPages");
+			command.add("-worker");
+			command.add("-port");
+			command.add(Integer.toString(port));
+			command.add("-cpus");
+			command.add(Integer.toString(cpusEach));
+			try {
+				Process process = new ProcessBuilder(command).inheritIO().start();
+				spawned.add(process);
+				hosts.add("localhost");
+				ports.add(port);
+			}
+			catch (IOException e) {
+				System.out.println("Could not start a worker on port " + port + ": " + e.getMessage());
+			}
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				shutdown();
+			}
+		}));
+	}
+
+	/**
+	 * Kills any workers this coordinator spawned.
+	 */
+	public void shutdown() {
+		synchronized (spawned) {
+			for (Process process : spawned) {
+				process.destroy();
+			}
+			spawned.clear();
+		}
+	}
+
+	/**
+	 * Trains a model on the workers, falling back to local training for any genre they
+	 * don't return.
+	 *
+	 * @param job		The training corpus and settings; every worker builds the same corpus.
+	 * @param nthreads	Number of genres to train in parallel if some must be trained here.
+	 */
+	public Model trainModel(TrainingJob job, int nthreads) {
+		Corpus genreSource = Corpus.genresOnly(job.genrePaths, job.trainingVols);
+		final GenreList genres = genreSource.genres;
+		int genreCount = genres.getSize();
+
+		final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<String>();
+		for (int i = 2; i < genreCount; ++i) {
+			pending.add(genres.genreLabels.get(i));
+		}
+		final ConcurrentHashMap<String, GenrePredictor> results = new ConcurrentHashMap<String, GenrePredictor>();
+		final FeatureNormalizer[] normalizer = new FeatureNormalizer[1];
+
+		ArrayList<Thread> drivers = new ArrayList<Thread>();
+		for (int w = 0; w < hosts.size(); ++w) {
+			final String host = hosts.get(w);
+			final int port = ports.get(w);
+			final TrainingJob theJob = job;
+			Thread driver = new Thread(new Runnable() {
+				public void run() {
+					drive(host, port, theJob, genres, pending, results, normalizer);
+				}
+			});
+			drivers.add(driver);
+			driver.start();
+		}
+		for (Thread driver : drivers) {
+			try {
+				driver.join();
+			}
+			catch (InterruptedException e) {
+				System.out.println("Helpful error message: Execution was interrupted.");
+			}
+		}
+
+		ArrayList<String> missing = new ArrayList<String>();
+		for (int i = 2; i < genreCount; ++i) {
+			if (!results.containsKey(genres.genreLabels.get(i))) missing.add(genres.genreLabels.get(i));
+		}
+		if (missing.size() > 0 || normalizer[0] == null) {
+			System.out.println("Training " + missing.size() + " genres locally.");
+			Corpus corpus = job.makeCorpus();
+			normalizer[0] = corpus.normalizer;
+			trainLocally(corpus, missing, job.settings, nthreads, results);
+		}
+
+		ArrayList<GenrePredictor> classifiers = new ArrayList<GenrePredictor>(genreCount);
+		for (int i = 0; i < genreCount; ++i) {
+			if (i < 2) classifiers.add(new GenrePredictor("dummy"));
+			else classifiers.add(results.get(genres.genreLabels.get(i)));
+		}
+		MarkovTable markov = genreSource.makeMarkovTable(job.trainingVols, job.settings.markovSmoothing);
+		return new Model(job.vocabulary, normalizer[0], genres, classifiers, markov);
+	}
+
+	/**
+	 * Feeds genres to one worker, keeping as many in flight as it has slots, until
+	 * none are pending. Genres in flight when the connection fails go back in the queue.
+	 */
+	@SuppressWarnings("unchecked")
+	private void drive(String host, int port, TrainingJob job, GenreList genres, ConcurrentLinkedQueue<String> pending,
+			ConcurrentHashMap<String, GenrePredictor> results, FeatureNormalizer[] normalizer) {
+		Socket socket = connect(host, port);
+		if (socket == null) return;
+		ArrayList<String> inFlight = new ArrayList<String>();
+		try {
+			socket.setSoTimeout(REPLY_TIMEOUT);
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeObject(job);
+			out.flush();
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			ArrayList<String> workerGenres = (ArrayList<String>) in.readObject();
+			int slots = (Integer) in.readObject();
+			FeatureNormalizer workerNormalizer = (FeatureNormalizer) in.readObject();
+			if (!workerGenres.equals(genres.genreLabels)) {
+				System.out.println("Worker " + host + ":" + port + " read genres " + workerGenres +
+						" rather than " + genres.genreLabels + "; not using it.");
+				return;
+			}
+			synchronized (normalizer) {
+				if (normalizer[0] == null) normalizer[0] = workerNormalizer;
+			}
+
+			while (true) {
+				while (inFlight.size() < slots) {
+					String genre = pending.poll();
+					if (genre == null) break;
+					out.writeObject(genre);
+					inFlight.add(genre);
+				}
+				out.flush();
+				if (inFlight.size() < 1) break;
+
+				Object reply = in.readObject();
+				if (reply instanceof GenrePredictor) {
+					GenrePredictor predictor = (GenrePredictor) reply;
+					results.put(predictor.genre, predictor);
+					inFlight.remove(predictor.genre);
+					System.out.println("Worker " + host + ":" + port + " trained " + predictor.genre);
+				}
+				else {
+					// The worker couldn't train this genre; leave it for local training.
+					inFlight.remove((String) reply);
+				}
+			}
+			out.writeObject(null);
+			out.flush();
+		}
+		catch (IOException e) {
+			System.out.println("Lost worker " + host + ":" + port + ": " + e.getMessage());
+			pending.addAll(inFlight);
+		}
+		catch (ClassNotFoundException e) {
+			System.out.println("Worker " + host + ":" + port + " sent an unrecognized object: " + e.getMessage());
+			pending.addAll(inFlight);
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+
+	private static Socket connect(String host, int port) {
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while (true) {
+			try {
+				return new Socket(host, port);
+			}
+			catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					System.out.println("Could not reach worker " + host + ":" + port + ": " + e.getMessage());
+					return null;
+				}
+			}
+			try {
+				Thread.sleep(500);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+	}
+
+	private static void trainLocally(Corpus corpus, ArrayList<String> missing, TrainingSettings settings, int nthreads,
+			ConcurrentHashMap<String, GenrePredictor> results) {
+		ExecutorService executive = Executors.newFixedThreadPool(ResourceGovernor.share(nthreads));
+		ArrayList<TrainingThread> trainingThreads = new ArrayList<TrainingThread>(missing.size());
+		for (String genre : missing) {
+			TrainingThread trainClassifier = new TrainingThread(corpus.genres, corpus.normalizer.features, genre,
+					corpus.datapoints, settings, true);
+			trainingThreads.add(trainClassifier);
+			executive.execute(trainClassifier);
+		}
+		executive.shutdown();
+		try {
+			executive.awaitTermination(15000, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			System.out.println("Helpful error message: Execution was interrupted.");
+		}
+		for (TrainingThread trainer : trainingThreads) {
+			if (trainer.classifier == null) continue;
+			results.put(trainer.classifier.genre, trainer.classifier);
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Everything a TrainingWorker needs to rebuild the training corpus the coordinator
+ * is using: the volumes and where to find them, the vocabulary, the genre conversions
+ * in force (which -bio and -index change), and the settings that shape both the
+ * corpus (page budget, seed) and the models. Workers read volumes from the same
+ * paths as the coordinator, so those paths must be visible on every host, as they
+ * are on a shared filesystem.
+ *
+ * Building a corpus is deterministic, so a worker that reads the same volumes with
+ * the same vocabulary, budget and seed ends up with the same pages and the same
+ * normalization, and the predictors it trains can go straight into the coordinator's model.
+ */
+public class TrainingJob implements Serializable {
+	private static final long serialVersionUID = 201L;
+	ArrayList<String> featurePaths;
+	ArrayList<String> genrePaths;
+	ArrayList<String> trainingVols;
+	Vocabulary vocabulary;
+	String[][] conversions;
+	TrainingSettings settings;
+
+	public TrainingJob(ArrayList<String> featurePaths, ArrayList<String> genrePaths, ArrayList<String> trainingVols,
+			Vocabulary vocabulary, TrainingSettings settings) {
+		this.featurePaths = featurePaths;
+		this.genrePaths = genrePaths;
+		this.trainingVols = trainingVols;
+		this.vocabulary = vocabulary;
+		this.conversions = Global.CONVERSIONS;
+		this.settings = settings;
+	}
+
+	/**
+	 * Reads and normalizes the training corpus, as MapPages would.
+	 */
+	public Corpus makeCorpus() {
+		Global.CONVERSIONS = conversions;
+		return new Corpus(featurePaths, genrePaths, trainingVols, vocabulary, settings.pageBudget, settings.seed);
+	}
+
+}
@@ -0,0 +1,82 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.Serializable;
+
+/**
+ * The parameters that shape a trained model. These used to live as static
+ * fields in Global and MapPages, which meant a JVM could only hold one
+ * configuration at a time. Keeping them in an object lets a parameter sweep
+ * train several configurations side by side.
+ *
+ * @param vocabularySize	Number of words read from the vocabulary file.
+ * @param ridge				Ridge parameter for regularizing logistic regression.
+ * @param markovSmoothing	Lambda used to smooth the Markov table of genre transitions.
+ * @param undersample		Whether to undersample out-of-class pages when training one-vs-all.
+ * @param allVsAll			Train logistic models with an all-vs-all strategy.
+ * @param multiclassForest	Train a single multiclass random forest.
+ * @param multipleForests	Train a random forest for each genre, one-vs-all.
+ * @param seed				Seeds undersampling and page-budget sampling, so runs are reproducible.
+ * @param pageBudget		If greater than zero, the most training pages kept for any genre.
+ * @param bagged			Average several bootstrap-sampled logistic models for each genre.
+ * @param bags				Number of bootstrap models per genre when bagged.
+ * @param bagRidges		Ridge parameters for successive bags, comma-separated; the schedule repeats,
+ *					and values that aren't numbers are skipped.
+ * @param streaming		Train with StreamingTrainer, reading volumes from disk on every epoch.
+ * @param softmax			With streaming, train one multinomial model instead of one-vs-all.
+ * @param epochs			Passes over the training volumes when streaming.
+ * @param shuffleBuffer	Pages held in memory for shuffling when streaming.
+ * @param learningRate		Base AdaGrad step size when streaming.
+ */
+public class TrainingSettings implements Serializable {
+	private static final long serialVersionUID = 171L;
+	public int vocabularySize = 5000;
+	public String ridge = "0.002";
+	public double markovSmoothing = .0001d;
+	public boolean undersample = false;
+	public boolean allVsAll = false;
+	public boolean multiclassForest = false;
+	public boolean multipleForests = false;
+	public long seed = 10L;
+	public int pageBudget = 0;
+	public boolean bagged = false;
+	public int bags = 3;
+	public String bagRidges = "0.1,10,50";
+	public boolean streaming = false;
+	public boolean softmax = false;
+	public int epochs = 5;
+	public int shuffleBuffer = 4096;
+	public double learningRate = 0.1;
+
+	public TrainingSettings() {
+		// defaults as above
+	}
+
+	public TrainingSettings(TrainingSettings toCopy) {
+		this.vocabularySize = toCopy.vocabularySize;
+		this.ridge = toCopy.ridge;
+		this.markovSmoothing = toCopy.markovSmoothing;
+		this.undersample = toCopy.undersample;
+		this.allVsAll = toCopy.allVsAll;
+		this.multiclassForest = toCopy.multiclassForest;
+		this.multipleForests = toCopy.multipleForests;
+		this.seed = toCopy.seed;
+		this.pageBudget = toCopy.pageBudget;
+		this.bagged = toCopy.bagged;
+		this.bags = toCopy.bags;
+		this.bagRidges = toCopy.bagRidges;
+		this.streaming = toCopy.streaming;
+		this.softmax = toCopy.softmax;
+		this.epochs = toCopy.epochs;
+		this.shuffleBuffer = toCopy.shuffleBuffer;
+		this.learningRate = toCopy.learningRate;
+	}
+
+	public String describe() {
+		return "features=" + vocabularySize + " ridge=" + ridge + " smoothing=" + markovSmoothing +
+				" undersample=" + undersample;
+	}
+
+}
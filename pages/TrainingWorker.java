@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process that trains genre predictors for a TrainingCoordinator, started with
+ * -worker. It listens on a port, and for each connection:
+ *
+ *     reads a TrainingJob and builds the corpus it describes;
+ *     replies with the corpus's genre labels, the number of genres it will train at once,
+ *     and the corpus's FeatureNormalizer;
+ *     then reads genre names, one at a time, and replies to each with a trained
+ *     GenrePredictor (or, if training failed in any way, with the genre name), until it
+ *     reads null.
+ *
+ * Genres are trained in parallel, on as many cores as the worker's ResourceGovernor allows,
+ * and replies are sent in the order training finishes.
+ *
+ * Objects are exchanged with Java serialization, which will instantiate whatever
+ * it is sent, so a worker should only listen on a network where every host is trusted.
+ *
+ * @param port	Port on which to listen for coordinators.
+ */
+public class TrainingWorker {
+	public static final int DEFAULT_PORT = 7071;
+	private int port;
+
+	public TrainingWorker(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Accepts connections until the process is killed.
+	 */
+	public void serve() {
+		ServerSocket server;
+		try {
+			server = new ServerSocket(port);
+		}
+		catch (IOException e) {
+			System.out.println("Training worker could not listen on port " + port + ": " + e.getMessage());
+			return;
+		}
+		System.out.println("Training worker listening on port " + port + ".");
+		while (true) {
+			try {
+				final Socket socket = server.accept();
+				Thread handler = new Thread(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				});
+				handler.start();
+			}
+			catch (IOException e) {
+				System.out.println("Training worker failed to accept a connection: " + e.getMessage());
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void handle(Socket socket) {
+		ExecutorService executive = null;
+		try {
+			final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.flush();
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			final TrainingJob job = (TrainingJob) in.readObject();
+			final Corpus corpus = job.makeCorpus();
+			final ArrayList<String> features = corpus.normalizer.features;
+			int slots = ResourceGovernor.budget();
+			System.out.println("Loaded " + corpus.numPoints + " pages from " + corpus.numVolumes + " volumes for a coordinator.");
+
+			out.writeObject(corpus.genres.genreLabels);
+			out.writeObject(slots);
+			out.writeObject(corpus.normalizer);
+			out.flush();
+			out.reset();
+
+			executive = Executors.newFixedThreadPool(slots);
+			while (true) {
+				final String genre = (String) in.readObject();
+				if (genre == null) break;
+				executive.execute(new Runnable() {
+					public void run() {
+						Object reply = genre;
+						// Unless training succeeds, the coordinator is told it failed.
+						try {
+							TrainingThread trainer = new TrainingThread(corpus.genres, features, genre, corpus.datapoints, job.settings, false);
+							trainer.run();
+							if (trainer.classifier != null) reply = trainer.classifier;
+						}
+						catch (RuntimeException e) {
+							System.out.println("Training failed for " + genre + ": " + e.getMessage());
+						}
+						finally {
+							send(out, reply);
+							// Even after an Error (running out of memory, say), so the coordinator isn't left waiting.
+						}
+					}
+				});
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Lost connection to coordinator: " + e.getMessage());
+		}
+		catch (ClassNotFoundException e) {
+			System.out.println("Coordinator sent an object this worker doesn't recognize: " + e.getMessage());
+		}
+		finally {
+			if (executive != null) {
+				executive.shutdown();
+				try {
+					executive.awaitTermination(15000, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					System.out.println("Helpful error message: Execution was interrupted.");
+				}
+			}
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// nothing more to say to this coordinator
+			}
+		}
+	}
+
+	private static void send(ObjectOutputStream out, Object reply) {
+		synchronized (out) {
+			try {
+				out.writeObject(reply);
+				out.flush();
+				out.reset();
+				// Without a reset the stream keeps a reference to every predictor it has sent.
+			}
+			catch (IOException e) {
+				System.out.println("Could not return a result to the coordinator: " + e.getMessage());
+			}
+		}
+	}
+
+}
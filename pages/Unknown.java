@@ -13,7 +13,11 @@ public class Unknown {
 	private String volumeLabel;
 	public ArrayList<ClassificationResult> rawResults;
 	public ArrayList<ClassificationResult> smoothResults;
-	private int numPoints;
+	private int numPoints = -1;
+	// Until a model has read the volume.
+	private boolean[] escalated;
+	private ArrayList<double[]> screeningProbs;
+	// Set by the first model of a cascade: which pages it was unsure of, and what it predicted.
 	
 	public Unknown(String volumeLabel, ArrayList<String> filelines, int numModels) {
 		this.filelines = filelines;
@@ -58,4 +62,21 @@ public class Unknown {
 		return rawResults.get(j);
 	}
 	
+	public void putScreening(boolean[] escalated, ArrayList<double[]> screeningProbs) {
+		this.escalated = escalated;
+		this.screeningProbs = screeningProbs;
+	}
+	
+	/**
+	 * @return For each page, whether the cascade sends it on to costlier models, or null
+	 * if no model has screened this volume.
+	 */
+	public boolean[] getEscalated() {
+		return escalated;
+	}
+	
+	public ArrayList<double[]> getScreeningProbs() {
+		return screeningProbs;
+	}
+	
 }
@@ -231,6 +231,12 @@ public class Volume {
 			
 			for (String[] feature : thisPage) {
 				String word = feature[1];
+				if (!word.startsWith("#") && !vocabularyMap.containsKey(word) && vocabularyMap.containsKey("wordNotInVocab")) {
+					word = "wordNotInVocab";
+					// Corpus normally does this when it reads the volume. But a volume read with
+					// a larger vocabulary can be reused with a smaller one (e.g. in a parameter
+					// sweep), and then words outside the smaller vocabulary get folded in here.
+				}
 				if (vocabularyMap.containsKey(word)) {
 					int idx = vocabularyMap.get(word);
 					double count = Double.parseDouble(feature[2]);
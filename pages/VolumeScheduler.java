@@ -0,0 +1,136 @@
+/**
+ *
+ */
+package pages;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which classifying thread handles which volume. Volumes vary a lot in length
+ * (a 2,000-page volume takes as long as twenty short ones), and when they are handed
+ * out in the order of the slice, a few long ones picked up near the end keep their
+ * threads running long after the rest have finished.
+ *
+ * So before classification starts we estimate each volume's cost from the size of its
+ * feature file, sort volumes largest first, and deal them out so that each worker's
+ * share is about the same: each volume goes to the worker with the least work assigned
+ * so far. Every worker keeps its share in its own deque and takes volumes from the
+ * front, largest first. A worker whose deque is empty steals from the back of the
+ * deque with the most work left, so no worker sits idle while another has a queue.
+ * Between them, starting long volumes first and stealing the rest keep the end of a
+ * run from being held up by stragglers.
+ *
+ * @param queues	For each worker, the IDs of the volumes it has yet to start.
+ * @param remaining	For each worker, the estimated cost (bytes) of those volumes.
+ */
+public class VolumeScheduler {
+	private final ArrayList<ConcurrentLinkedDeque<Job>> queues;
+	private final AtomicLong[] remaining;
+	private final AtomicInteger stolen = new AtomicInteger(0);
+	private final int numWorkers;
+	private final int numVolumes;
+	private final long totalCost;
+
+	private static class Job {
+		final String volume;
+		final long cost;
+
+		Job(String volume, long cost) {
+			this.volume = volume;
+			this.cost = cost;
+		}
+	}
+
+	/**
+	 * @param volumes		Volume IDs, already cleaned (see PairtreeReader.cleanID).
+	 * @param numWorkers	Number of threads that will call next.
+	 * @param inputDir		Where the volumes' feature files are.
+	 * @param isPairtree	Whether inputDir is the root of a pairtree.
+	 */
+	public VolumeScheduler(ArrayList<String> volumes, int numWorkers, String inputDir, boolean isPairtree) {
+		this.numWorkers = Math.max(1, numWorkers);
+		this.numVolumes = volumes.size();
+		PairtreeReader pairtree = null;
+		if (isPairtree) pairtree = new PairtreeReader(inputDir);
+
+		ArrayList<Job> jobs = new ArrayList<Job>(numVolumes);
+		long sum = 0;
+		for (String volume : volumes) {
+			String path;
+			if (isPairtree) path = pairtree.getPairtreePath(volume);
+			else path = inputDir + volume + ".pg.tsv";
+			long cost = new File(path).length();
+			// Zero if the file is missing; the worker that gets it will report that.
+			jobs.add(new Job(volume, cost));
+			sum += cost;
+		}
+		totalCost = sum;
+		Collections.sort(jobs, new Comparator<Job>() {
+			public int compare(Job first, Job second) {
+				return Long.compare(second.cost, first.cost);
+			}
+		});
+
+		queues = new ArrayList<ConcurrentLinkedDeque<Job>>(this.numWorkers);
+		remaining = new AtomicLong[this.numWorkers];
+		for (int w = 0; w < this.numWorkers; ++w) {
+			queues.add(new ConcurrentLinkedDeque<Job>());
+			remaining[w] = new AtomicLong(0);
+		}
+		for (Job job : jobs) {
+			int lightest = 0;
+			for (int w = 1; w < this.numWorkers; ++w) {
+				if (remaining[w].get() < remaining[lightest].get()) lightest = w;
+			}
+			queues.get(lightest).addLast(job);
+			remaining[lightest].addAndGet(job.cost);
+		}
+	}
+
+	/**
+	 * @return The next volume for this worker: its own largest remaining volume, or one
+	 * stolen from the busiest other worker, or null if every volume has been handed out.
+	 */
+	public String next(int worker) {
+		Job job = queues.get(worker).pollFirst();
+		if (job != null) {
+			remaining[worker].addAndGet(-job.cost);
+			return job.volume;
+		}
+		while (true) {
+			int victim = -1;
+			long most = -1;
+			for (int w = 0; w < numWorkers; ++w) {
+				if (w == worker || queues.get(w).isEmpty()) continue;
+				long left = remaining[w].get();
+				if (left > most) {
+					most = left;
+					victim = w;
+				}
+			}
+			if (victim < 0) return null;
+			job = queues.get(victim).pollLast();
+			if (job != null) {
+				remaining[victim].addAndGet(-job.cost);
+				stolen.incrementAndGet();
+				return job.volume;
+			}
+			// Someone else emptied that deque first; look again.
+		}
+	}
+
+	/**
+	 * @return A line describing the schedule, for the log.
+	 */
+	public String report() {
+		return "Scheduled " + numVolumes + " volumes (" + (totalCost / (1024 * 1024)) + " MB) across " +
+				numWorkers + " threads, largest first; " + stolen.get() + " were taken by idle threads.";
+	}
+
+}
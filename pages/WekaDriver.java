@@ -3,13 +3,13 @@
  */
 package pages;
 import java.util.ArrayList;
+import java.util.Random;
 
 // import java.io.File;
 import weka.classifiers.Evaluation;
 import weka.classifiers.functions.Logistic;
 import weka.core.Attribute;
 import weka.core.Instances;
-import weka.core.DenseInstance;
 
 /**
  * @author tunderwood
@@ -25,6 +25,9 @@ public class WekaDriver implements java.io.Serializable {
 	String ridgeParameter;
 	String classLabel;
 	double[][] memberProbs;
+	private transient PerThreadClassifier scorer;
+	private transient InstanceAdapter adapter;
+	// Scoring uses per-thread copies of the model; see PerThreadClassifier.
 	private static final long serialVersionUID = 115L;
 	
 	public WekaDriver() {
@@ -37,8 +40,43 @@ public class WekaDriver implements java.io.Serializable {
 	}
 	
 	public WekaDriver (GenreList genres, ArrayList<String> features, String genreToIdentify, ArrayList<DataPoint> datapoints, String ridgeParameter, boolean verbose) {
-		numFeatures = features.size();
-		numInstances = datapoints.size();
+		this(makeTrainingSet(features, genreToIdentify, datapoints), genreToIdentify, ridgeParameter, verbose);
+	}
+	
+	/**
+	 * Trains on a subset of datapoints, selected by index, without copying them.
+	 * 
+	 * @param indices	Positions in datapoints to train on; if null, every page is used.
+	 */
+	public WekaDriver (GenreList genres, ArrayList<String> features, String genreToIdentify, ArrayList<DataPoint> datapoints, 
+			int[] indices, String ridgeParameter, boolean verbose) {
+		this(makeTrainingSet(features, genreToIdentify, datapoints, indices), genreToIdentify, ridgeParameter, verbose);
+	}
+	
+	/**
+	 * Trains on a weighted subset of datapoints, e.g. a bootstrap sample in which a page
+	 * drawn three times is included once with weight 3.
+	 * 
+	 * @param indices	Positions in datapoints to train on.
+	 * @param weights	Instance weight for each position in indices.
+	 */
+	public WekaDriver (GenreList genres, ArrayList<String> features, String genreToIdentify, ArrayList<DataPoint> datapoints, 
+			int[] indices, double[] weights, String ridgeParameter, boolean verbose) {
+		this(makeTrainingSet(features, genreToIdentify, datapoints, indices, weights), genreToIdentify, ridgeParameter, verbose);
+	}
+	
+	/**
+	 * Trains a model on a dataset that has already been constructed. Building the
+	 * Instances is the slow part of preparing a logistic model, so callers that train
+	 * several models on the same pages (e.g. the successive values of a ridge path)
+	 * can build the dataset once with makeTrainingSet and pass it in here.
+	 * 
+	 * @param trainingSet	Dataset produced by makeTrainingSet for this genre.
+	 */
+	public WekaDriver (Instances trainingSet, String genreToIdentify, String ridgeParameter, boolean verbose) {
+		this.trainingSet = trainingSet;
+		numFeatures = trainingSet.numAttributes() - 1;
+		numInstances = trainingSet.numInstances();
 		this.ridgeParameter = ridgeParameter;
 		this.classLabel = genreToIdentify;
 		memberProbs = new double[numInstances][2];
@@ -50,37 +88,14 @@ public class WekaDriver implements java.io.Serializable {
 		LineWriter writer = new LineWriter(outpath, true);
 		
 		featureNames = new ArrayList<Attribute>(numFeatures + 1);
-		for (int i = 0; i < numFeatures; ++ i) {
-			Attribute a = new Attribute(features.get(i));
-			featureNames.add(a);
+		for (int i = 0; i <= numFeatures; ++ i) {
+			featureNames.add(trainingSet.attribute(i));
 		}
 		
-		// Now we add the class attribute.
-		ArrayList<String> classValues = new ArrayList<String>(2);
-		classValues.add("positive");
-		classValues.add("negative");
-		Attribute classAttribute = new Attribute("ClassAttribute", classValues);
-		featureNames.add(classAttribute);
-		
-		trainingSet = new Instances(genreToIdentify, featureNames, numInstances);
-		trainingSet.setClassIndex(numFeatures);
-		ArrayList<DenseInstance> simpleListOfInstances = new ArrayList<DenseInstance>(numInstances);
-		
 		int poscount = 0;
-		for (DataPoint aPoint : datapoints) {
-			DenseInstance instance = new DenseInstance(numFeatures + 1);
-			for (int i = 0; i < numFeatures; ++i) {
-				instance.setValue(featureNames.get(i), aPoint.vector[i]);
-			}
-			if (aPoint.genre.equals(genreToIdentify)) {
-				instance.setValue(featureNames.get(numFeatures), "positive");
-				poscount += 1;
-			}
-			else {
-				instance.setValue(featureNames.get(numFeatures), "negative");
-			}
-			trainingSet.add(instance);
-			simpleListOfInstances.add(instance);
+		for (int i = 0; i < numInstances; ++i) {
+			if (trainingSet.get(i).classValue() == 0) poscount += 1;
+			// "positive" is the first value of the class attribute.
 		}
 		
 		if (verbose) {
@@ -106,8 +121,7 @@ public class WekaDriver implements java.io.Serializable {
 			}
 			
 			for (int i = 0; i < numInstances; ++i) {
-				DenseInstance anInstance = simpleListOfInstances.get(i);
-				memberProbs[i] = logistic.distributionForInstance(anInstance);
+				memberProbs[i] = logistic.distributionForInstance(trainingSet.get(i));
 			}
 			// Get the confusion matrix
 			double[][] cmMatrix = eTest.confusionMatrix();
@@ -131,11 +145,168 @@ public class WekaDriver implements java.io.Serializable {
 		
 	}
 	
+	/**
+	 * Builds the Weka dataset for a one-vs-all distinction: every page gets the
+	 * class value "positive" if it belongs to genreToIdentify, and "negative" otherwise.
+	 * 
+	 * @param features	List of features from the corpus normalizer.
+	 * @param genreToIdentify	The genre treated as the positive class.
+	 * @param datapoints	Pages to include in the dataset.
+	 * @return	Instances with the class attribute set as the final attribute.
+	 */
+	public static Instances makeTrainingSet(ArrayList<String> features, String genreToIdentify, ArrayList<DataPoint> datapoints) {
+		return makeTrainingSet(features, genreToIdentify, datapoints, null);
+	}
+	
+	/**
+	 * As above, but includes only the pages at the given positions in datapoints.
+	 * 
+	 * @param indices	Positions of the pages to include, or null to include them all.
+	 */
+	public static Instances makeTrainingSet(ArrayList<String> features, String genreToIdentify, ArrayList<DataPoint> datapoints,
+			int[] indices) {
+		return makeTrainingSet(features, genreToIdentify, datapoints, indices, null);
+	}
+	
+	/**
+	 * As above, with a weight for each included page.
+	 * 
+	 * @param weights	Instance weights, parallel to indices; if null, every page has weight 1.
+	 */
+	public static Instances makeTrainingSet(ArrayList<String> features, String genreToIdentify, ArrayList<DataPoint> datapoints,
+			int[] indices, double[] weights) {
+		if (indices == null) {
+			indices = IndexSampler.range(datapoints.size());
+		}
+		int numFeatures = features.size();
+		
+		ArrayList<Attribute> featureNames = new ArrayList<Attribute>(numFeatures + 1);
+		for (int i = 0; i < numFeatures; ++ i) {
+			Attribute a = new Attribute(features.get(i));
+			featureNames.add(a);
+		}
+		
+		// Now we add the class attribute.
+		ArrayList<String> classValues = new ArrayList<String>(2);
+		classValues.add("positive");
+		classValues.add("negative");
+		Attribute classAttribute = new Attribute("ClassAttribute", classValues);
+		featureNames.add(classAttribute);
+		
+		Instances trainingSet = new Instances(genreToIdentify, featureNames, indices.length);
+		trainingSet.setClassIndex(numFeatures);
+		
+		InstanceAdapter adapter = new InstanceAdapter(trainingSet, numFeatures);
+		for (int k = 0; k < indices.length; ++k) {
+			DataPoint aPoint = datapoints.get(indices[k]);
+			double classValue = aPoint.genre.equals(genreToIdentify) ? 0 : 1;
+			// "positive" is value 0 of the class attribute, "negative" value 1.
+			double weight = 1d;
+			if (weights != null) {
+				weight = weights[k];
+			}
+			trainingSet.add(adapter.wrap(aPoint.vector, classValue, weight));
+		}
+		return trainingSet;
+	}
+	
+	/**
+	 * Expresses the trained model as weights on the original features. With two classes,
+	 * Weka's Logistic is linear in log-odds: logit P(positive) is the intercept plus a
+	 * weighted sum of the features. coefficients() gives those weights, intercept first,
+	 * but only for the attributes that survived Weka's RemoveUseless filter (constant
+	 * attributes are dropped before fitting). If any were dropped, we find out which by
+	 * probing the model with one feature at a time, and give the dropped ones weight zero.
+	 * 
+	 * The result is checked against distributionForInstance on a few random pages, and
+	 * discarded if it doesn't agree.
+	 * 
+	 * @return numFeatures weights followed by the intercept, or null if the model
+	 * can't be reproduced that way.
+	 */
+	public double[] linearWeights() {
+		if (logistic == null) return null;
+		double[][] coefficients = logistic.coefficients();
+		if (coefficients == null || coefficients.length < 1 || coefficients[0].length != 1) return null;
+		int survivors = coefficients.length - 1;
+		
+		int[] attributeRow = new int[numFeatures];
+		// For each feature, its row in coefficients, or -1 if Weka dropped it.
+		if (survivors == numFeatures) {
+			for (int f = 0; f < numFeatures; ++f) {
+				attributeRow[f] = f + 1;
+			}
+		}
+		else {
+			ArrayList<DataPoint> probes = new ArrayList<DataPoint>(numFeatures + 1);
+			probes.add(probe(new double[numFeatures]));
+			for (int f = 0; f < numFeatures; ++f) {
+				double[] vector = new double[numFeatures];
+				vector[f] = 1;
+				probes.add(probe(vector));
+			}
+			double[][] probs = testNewInstances(probes);
+			int row = 1;
+			for (int f = 0; f < numFeatures; ++f) {
+				if (probs[f + 1][0] != probs[0][0]) {
+					attributeRow[f] = row;
+					row += 1;
+				}
+				else {
+					attributeRow[f] = -1;
+				}
+			}
+			if (row - 1 != survivors) return null;
+		}
+		
+		double[] weights = new double[numFeatures + 1];
+		for (int f = 0; f < numFeatures; ++f) {
+			if (attributeRow[f] > 0) weights[f] = coefficients[attributeRow[f]][0];
+		}
+		weights[numFeatures] = coefficients[0][0];
+		
+		Random random = new Random(numFeatures);
+		ArrayList<DataPoint> checks = new ArrayList<DataPoint>(3);
+		for (int i = 0; i < 3; ++i) {
+			double[] vector = new double[numFeatures];
+			for (int f = 0; f < numFeatures; ++f) {
+				vector[f] = random.nextGaussian();
+			}
+			checks.add(probe(vector));
+		}
+		double[][] expected = testNewInstances(checks);
+		for (int i = 0; i < checks.size(); ++i) {
+			double compiled = GenrePredictorLinear.sigmoid(GenrePredictorLinear.logit(weights, checks.get(i).vector));
+			if (Math.abs(compiled - expected[i][0]) > 1.0e-9) {
+				System.out.println("Compiled weights for " + classLabel + " disagree with Weka (" + compiled + 
+						" vs. " + expected[i][0] + "); scoring it with Weka.");
+				return null;
+			}
+		}
+		return weights;
+	}
+	
+	private static DataPoint probe(double[] vector) {
+		DataPoint aPoint = new DataPoint("probe", vector, 0);
+		aPoint.genre = "probe";
+		return aPoint;
+	}
+	
+	/**
+	 * Drops what only training needed: the training instances (keeping their
+	 * header, which scoring uses) and the fitted probabilities for them.
+	 */
+	public void freeze() {
+		if (trainingSet != null) trainingSet = new Instances(trainingSet, 0);
+		memberProbs = null;
+	}
+	
 	public double[][] getPredictions() {
 		return memberProbs;
 	}
 	
 	public void recreateDataset (GenreList genres, ArrayList<String> features) {
+		adapter = null;
 		featureNames = new ArrayList<Attribute>(numFeatures + 1);
 		for (int i = 0; i < numFeatures; ++ i) {
 			Attribute a = new Attribute(features.get(i));
@@ -153,33 +324,34 @@ public class WekaDriver implements java.io.Serializable {
 		trainingSet.setClassIndex(numFeatures);
 	}
 	
+	private synchronized InstanceAdapter adapter() {
+		if (adapter == null) {
+			if (trainingSet != null) adapter = new InstanceAdapter(trainingSet, numFeatures);
+			else adapter = new InstanceAdapter(classLabel, featureNames);
+			// A deserialized model has no dataset until recreateDataset, but it kept its attributes.
+		}
+		return adapter;
+	}
+	
+	private synchronized PerThreadClassifier scorer() {
+		if (scorer == null) scorer = new PerThreadClassifier(logistic);
+		return scorer;
+	}
+	
+	/**
+	 * Safe to call from several threads at once: nothing shared is modified, and each
+	 * thread scores with its own copy of the model.
+	 */
 	public double[][] testNewInstances(ArrayList<DataPoint> pointsToTest) {
 
-		String genreToIdentify = classLabel;
 		int testSize = pointsToTest.size();
 		double[][] testProbs = new double[testSize][2];
 		
-		ArrayList<DenseInstance> testSet = new ArrayList<DenseInstance>(testSize);
-		
-		for (DataPoint aPoint : pointsToTest) {
-			DenseInstance instance = new DenseInstance(numFeatures + 1);
-			instance.setDataset(trainingSet);
-			for (int i = 0; i < numFeatures; ++i) {
-				instance.setValue(featureNames.get(i), aPoint.vector[i]);
-			}
-			if (aPoint.genre.equals(genreToIdentify)) {
-				instance.setValue(featureNames.get(numFeatures), "positive");
-			}
-			else {
-				instance.setValue(featureNames.get(numFeatures), "negative");
-			}
-			testSet.add(instance);
-		}
-		
 		try{
+			PerThreadClassifier model = scorer();
+			InstanceAdapter pages = adapter();
 			for (int i = 0; i < testSize; ++i) {
-				DenseInstance anInstance = testSet.get(i);
-				testProbs[i] = logistic.distributionForInstance(anInstance);
+				testProbs[i] = model.distributionForInstance(pages.wrap(pointsToTest.get(i).vector));
 			}
 		}
 		catch (Exception e) {
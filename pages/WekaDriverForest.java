@@ -23,6 +23,7 @@ public class WekaDriverForest implements java.io.Serializable {
 	int numInstances;
 	String classLabel;
 	double[][] memberProbs;
+	private transient InstanceAdapter adapter;
 	
 	private static final long serialVersionUID = 151L;
 	
@@ -32,9 +33,16 @@ public class WekaDriverForest implements java.io.Serializable {
 		this.classLabel = genre;
 	}
 	
-	public WekaDriverForest (GenreList genres, ArrayList<String> features, String genreToIdentify, ArrayList<DataPoint> datapoints, boolean verbose) {
+	/**
+	 * @param indices	Positions in datapoints to train on; if null, every page is used.
+	 */
+	public WekaDriverForest (GenreList genres, ArrayList<String> features, String genreToIdentify, ArrayList<DataPoint> datapoints, 
+			int[] indices, boolean verbose) {
+		if (indices == null) {
+			indices = IndexSampler.range(datapoints.size());
+		}
 		numFeatures = features.size();
-		numInstances = datapoints.size();
+		numInstances = indices.length;
 		this.classLabel = genreToIdentify;
 		memberProbs = new double[numInstances][2];
 		
@@ -62,18 +70,16 @@ public class WekaDriverForest implements java.io.Serializable {
 		ArrayList<DenseInstance> simpleListOfInstances = new ArrayList<DenseInstance>(numInstances);
 		
 		int poscount = 0;
-		for (DataPoint aPoint : datapoints) {
-			DenseInstance instance = new DenseInstance(numFeatures + 1);
-			for (int i = 0; i < numFeatures; ++i) {
-				instance.setValue(featureNames.get(i), aPoint.vector[i]);
-			}
+		adapter = new InstanceAdapter(trainingSet, numFeatures);
+		for (int index : indices) {
+			DataPoint aPoint = datapoints.get(index);
+			double classValue = 1;
+			// "negative"; "positive" is value 0.
 			if (aPoint.genre.equals(genreToIdentify)) {
-				instance.setValue(featureNames.get(numFeatures), "positive");
+				classValue = 0;
 				poscount += 1;
 			}
-			else {
-				instance.setValue(featureNames.get(numFeatures), "negative");
-			}
+			DenseInstance instance = adapter.wrap(aPoint.vector, classValue, 1d);
 			trainingSet.add(instance);
 			simpleListOfInstances.add(instance);
 		}
@@ -83,8 +89,11 @@ public class WekaDriverForest implements java.io.Serializable {
 		}
 		System.out.println("Forest: " + genreToIdentify + " count: " + poscount);
 		
+		int extraSlots = ResourceGovernor.acquireExtra(1);
+		// We run inside a genre trainer that already holds one core; the forest gets
+		// a second slot only if the governor has one idle.
 		try {
-			String[] options = {"-I", "500", "-K", "22", "-num-slots", "2"};
+			String[] options = {"-I", "500", "-K", "22", "-num-slots", Integer.toString(1 + extraSlots)};
 			forest = new RandomForest();
 			forest.setOptions(options);
 			forest.buildClassifier(trainingSet);
@@ -121,44 +130,46 @@ public class WekaDriverForest implements java.io.Serializable {
 			e.printStackTrace();
 			System.out.println(e);
 		}
+		finally {
+			ResourceGovernor.release(extraSlots);
+		}
 		if (verbose) {
 			writer.print("\n\n");
 		}
 		
 	}
 	
+	/**
+	 * Drops what only training needed: the training instances (keeping their
+	 * header, which scoring uses) and the fitted probabilities for them.
+	 */
+	public void freeze() {
+		if (trainingSet != null) trainingSet = new Instances(trainingSet, 0);
+		memberProbs = null;
+	}
+	
 	public double[][] getPredictions() {
 		return memberProbs;
 	}
 	
+	private synchronized InstanceAdapter adapter() {
+		if (adapter == null) {
+			if (trainingSet != null) adapter = new InstanceAdapter(trainingSet, numFeatures);
+			else adapter = new InstanceAdapter(classLabel, featureNames);
+			// A deserialized model has no dataset until recreateDataset, but it kept its attributes.
+		}
+		return adapter;
+	}
+	
 	public double[][] testNewInstances(ArrayList<DataPoint> pointsToTest) {
 
-		String genreToIdentify = classLabel;
 		int testSize = pointsToTest.size();
 		double[][] testProbs = new double[testSize][2];
 		
-		ArrayList<DenseInstance> testSet = new ArrayList<DenseInstance>(testSize);
-		
-		for (DataPoint aPoint : pointsToTest) {
-			DenseInstance instance = new DenseInstance(numFeatures + 1);
-			instance.setDataset(trainingSet);
-			for (int i = 0; i < numFeatures; ++i) {
-				instance.setValue(featureNames.get(i), aPoint.vector[i]);
-			}
-			if (aPoint.genre.equals(genreToIdentify)) {
-				instance.setValue(featureNames.get(numFeatures), "positive");
-			}
-			else {
-				instance.setValue(featureNames.get(numFeatures), "negative");
-			}
-			testSet.add(instance);
-		}
-		
 		try{
+			InstanceAdapter pages = adapter();
 			for (int i = 0; i < testSize; ++i) {
-				DenseInstance anInstance = testSet.get(i);
-				testProbs[i] = forest.distributionForInstance(anInstance);
-				System.out.println(i);
+				testProbs[i] = forest.distributionForInstance(pages.wrap(pointsToTest.get(i).vector));
 			}
 		}
 		catch (Throwable t) {
@@ -4,11 +4,11 @@
 package pages;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 import weka.classifiers.trees.RandomForest;
 import weka.classifiers.Evaluation;
 import weka.core.Attribute;
-import weka.core.DenseInstance;
 import weka.core.Instances;
 
 /**
@@ -23,6 +23,10 @@ public class WekaDriverMulticlass implements java.io.Serializable {
 	int numInstances;
 	int numGenres;
 	double[][] memberProbs;
+	private transient FlatForest flat;
+	// The forest flattened for scoring, made on first use; null if it couldn't be.
+	private transient boolean flatTried;
+	private transient InstanceAdapter adapter;
 	
 	private static final long serialVersionUID = 163L;
 	
@@ -53,20 +57,19 @@ public class WekaDriverMulticlass implements java.io.Serializable {
 		trainingSet = new Instances("multiclassForest", featureNames, numInstances);
 		trainingSet.setClassIndex(numFeatures);
 		
+		adapter = new InstanceAdapter(trainingSet, numFeatures);
 		for (DataPoint aPoint : datapoints) {
-			DenseInstance instance = new DenseInstance(numFeatures + 1);
-			for (int i = 0; i < numFeatures; ++i) {
-				instance.setValue(featureNames.get(i), aPoint.vector[i]);
-			}
-	
-			instance.setValue(featureNames.get(numFeatures), aPoint.genre);
-			trainingSet.add(instance);
+			int classValue = classValues.indexOf(aPoint.genre);
+			if (classValue < 0) throw new IllegalArgumentException("Genre " + aPoint.genre + " is not in the genre list.");
+			trainingSet.add(adapter.wrap(aPoint.vector, classValue, 1d));
 		}
 		
 		System.out.println("Forest: multiclass.");
 		
+		int slots = ResourceGovernor.acquire(ResourceGovernor.budget());
+		// The multiclass forest is the only thing training, so it can use every idle core.
 		try {
-			String[] options = {"-I", "500", "-K", "40", "-num-slots", "12"};
+			String[] options = {"-I", "500", "-K", "40", "-num-slots", Integer.toString(Math.max(1, slots))};
 			forest = new RandomForest();
 			forest.setOptions(options);
 			forest.buildClassifier(trainingSet);
@@ -92,12 +95,24 @@ public class WekaDriverMulticlass implements java.io.Serializable {
 			e.printStackTrace();
 			System.out.println(e);
 		}
+		finally {
+			ResourceGovernor.release(slots);
+		}
 		if (verbose) {
 			writer.print("\n\n");
 		}
 		
 	}
 	
+	/**
+	 * Drops what only training needed: the training instances (keeping their
+	 * header, which scoring uses) and the fitted probabilities for them.
+	 */
+	public void freeze() {
+		if (trainingSet != null) trainingSet = new Instances(trainingSet, 0);
+		memberProbs = null;
+	}
+	
 	public double[][] getPredictions() {
 		return memberProbs;
 	}
@@ -112,6 +127,9 @@ public class WekaDriverMulticlass implements java.io.Serializable {
 	 * @param 	features	List of features from model.normalizer.
 	 */
 	public void recreateDataset (GenreList genres, ArrayList<String> features) {
+		flatTried = false;
+		adapter = null;
+		// The attributes are replaced below, so flatten and check the forest again against them.
 		featureNames = new ArrayList<Attribute>(numFeatures + 1);
 		for (int i = 0; i < numFeatures; ++ i) {
 			Attribute a = new Attribute(features.get(i));
@@ -130,29 +148,71 @@ public class WekaDriverMulticlass implements java.io.Serializable {
 		trainingSet.setClassIndex(numFeatures);
 	}
 	
+	/**
+	 * Flattens the forest the first time it's needed, and checks the flat version
+	 * against Weka on a few random pages (some with missing values) before trusting it.
+	 */
+	private synchronized FlatForest flatForest() {
+		if (flatTried) return flat;
+		flatTried = true;
+		if (forest == null || featureNames == null) return null;
+		FlatForest compiled = FlatForest.compile(forest, numGenres);
+		if (compiled == null) {
+			System.out.println("Could not flatten the forest; scoring it with Weka.");
+			return null;
+		}
+		
+		Random random = new Random(numFeatures);
+		ArrayList<DataPoint> checks = new ArrayList<DataPoint>(4);
+		for (int i = 0; i < 4; ++i) {
+			double[] vector = new double[numFeatures];
+			for (int f = 0; f < numFeatures; ++f) {
+				vector[f] = random.nextGaussian();
+				if (i == 3 && random.nextInt(10) == 0) vector[f] = Double.NaN;
+			}
+			DataPoint aPoint = new DataPoint("probe", vector, 0);
+			aPoint.genre = "probe";
+			checks.add(aPoint);
+		}
+		double[][] expected = wekaDistributions(checks);
+		double[][] found = compiled.distributions(checks);
+		for (int i = 0; i < checks.size(); ++i) {
+			for (int g = 0; g < numGenres; ++g) {
+				if (Math.abs(found[i][g] - expected[i][g]) > 1.0e-9) {
+					System.out.println("The flattened forest disagrees with Weka (" + found[i][g] + " vs. " + 
+							expected[i][g] + "); scoring it with Weka.");
+					return null;
+				}
+			}
+		}
+		flat = compiled;
+		return flat;
+	}
+	
 	public double[][] testNewInstances(ArrayList<DataPoint> pointsToTest) {
+		FlatForest compiled = flatForest();
+		if (compiled != null) return compiled.distributions(pointsToTest);
+		return wekaDistributions(pointsToTest);
+	}
+	
+	private synchronized InstanceAdapter adapter() {
+		if (adapter == null) {
+			if (trainingSet != null) adapter = new InstanceAdapter(trainingSet, numFeatures);
+			else adapter = new InstanceAdapter("multiclassForest", featureNames);
+			// A deserialized model has no dataset until recreateDataset, but it kept its attributes.
+		}
+		return adapter;
+	}
+	
+	private double[][] wekaDistributions(ArrayList<DataPoint> pointsToTest) {
 
 		int testSize = pointsToTest.size();
 		double[][] testProbs = new double[testSize][numGenres];
 		
-		ArrayList<DenseInstance> testSet = new ArrayList<DenseInstance>(testSize);
-		
-		for (DataPoint aPoint : pointsToTest) {
-			DenseInstance instance = new DenseInstance(numFeatures + 1);
-			instance.setDataset(trainingSet);
-			for (int i = 0; i < numFeatures; ++i) {
-				instance.setValue(featureNames.get(i), aPoint.vector[i]);
-			}
-			instance.setValue(featureNames.get(numFeatures), "poe");
-			// It's not true that all new instances are poetry! But it doesn't really matter
-			// what nominal class we give these instances; we're classifying them.
-			testSet.add(instance);
-		}
-		
 		try{
+			InstanceAdapter pages = adapter();
 			for (int i = 0; i < testSize; ++i) {
-				DenseInstance anInstance = testSet.get(i);
-				testProbs[i] = forest.distributionForInstance(anInstance);
+				testProbs[i] = forest.distributionForInstance(pages.wrap(pointsToTest.get(i).vector));
 			}
 		}
 		catch (Throwable t) {
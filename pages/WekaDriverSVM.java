@@ -25,6 +25,9 @@ public class WekaDriverSVM implements Serializable {
 	String ridgeParameter;
 	String classLabel;
 	double[][] memberProbs;
+	private transient PerThreadClassifier scorer;
+	private transient InstanceAdapter adapter;
+	// Scoring uses per-thread copies of the model; see PerThreadClassifier.
 	private static final long serialVersionUID = 132L;
 	
 	public WekaDriverSVM (String genre) {
@@ -64,18 +67,15 @@ public class WekaDriverSVM implements Serializable {
 		ArrayList<DenseInstance> simpleListOfInstances = new ArrayList<DenseInstance>(numInstances);
 		
 		int poscount = 0;
+		adapter = new InstanceAdapter(trainingSet, numFeatures);
 		for (DataPoint aPoint : datapoints) {
-			DenseInstance instance = new DenseInstance(numFeatures + 1);
-			for (int i = 0; i < numFeatures; ++i) {
-				instance.setValue(featureNames.get(i), aPoint.vector[i]);
-			}
+			double classValue = 1;
+			// "negative"; "positive" is value 0.
 			if (aPoint.genre.equals(genreToIdentify)) {
-				instance.setValue(featureNames.get(numFeatures), "positive");
+				classValue = 0;
 				poscount += 1;
 			}
-			else {
-				instance.setValue(featureNames.get(numFeatures), "negative");
-			}
+			DenseInstance instance = adapter.wrap(aPoint.vector, classValue, 1d);
 			trainingSet.add(instance);
 			simpleListOfInstances.add(instance);
 		}
@@ -128,38 +128,47 @@ public class WekaDriverSVM implements Serializable {
 		
 	}
 	
+	/**
+	 * Drops what only training needed: the training instances (keeping their
+	 * header, which scoring uses) and the fitted probabilities for them.
+	 */
+	public void freeze() {
+		if (trainingSet != null) trainingSet = new Instances(trainingSet, 0);
+		memberProbs = null;
+	}
+	
 	public double[][] getPredictions() {
 		return memberProbs;
 	}
 	
+	private synchronized InstanceAdapter adapter() {
+		if (adapter == null) {
+			if (trainingSet != null) adapter = new InstanceAdapter(trainingSet, numFeatures);
+			else adapter = new InstanceAdapter(classLabel, featureNames);
+			// A deserialized model has no dataset until recreateDataset, but it kept its attributes.
+		}
+		return adapter;
+	}
+	
+	private synchronized PerThreadClassifier scorer() {
+		if (scorer == null) scorer = new PerThreadClassifier(svm);
+		return scorer;
+	}
+	
+	/**
+	 * Safe to call from several threads at once: nothing shared is modified, and each
+	 * thread scores with its own copy of the model.
+	 */
 	public double[][] testNewInstances(ArrayList<DataPoint> pointsToTest) {
 
-		String genreToIdentify = classLabel;
 		int testSize = pointsToTest.size();
 		double[][] testProbs = new double[testSize][2];
 		
-		ArrayList<DenseInstance> testSet = new ArrayList<DenseInstance>(testSize);
-		
-		for (DataPoint aPoint : pointsToTest) {
-			DenseInstance instance = new DenseInstance(numFeatures + 1);
-			instance.setDataset(trainingSet);
-			for (int i = 0; i < numFeatures; ++i) {
-				instance.setValue(featureNames.get(i), aPoint.vector[i]);
-			}
-			if (aPoint.genre.equals(genreToIdentify)) {
-				instance.setValue(featureNames.get(numFeatures), "positive");
-			}
-			else {
-				instance.setValue(featureNames.get(numFeatures), "negative");
-			}
-			testSet.add(instance);
-		}
-		
 		try{
+			PerThreadClassifier model = scorer();
+			InstanceAdapter pages = adapter();
 			for (int i = 0; i < testSize; ++i) {
-				DenseInstance anInstance = testSet.get(i);
-				testProbs[i] = svm.distributionForInstance(anInstance);
-				System.out.println(i);
+				testProbs[i] = model.distributionForInstance(pages.wrap(pointsToTest.get(i).vector));
 			}
 		}
 		catch (Throwable t) {
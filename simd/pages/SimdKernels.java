@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package pages;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Scoring kernels written with the incubating Java Vector API, so that each loop
+ * handles as many doubles per instruction as the machine's widest vector registers
+ * hold (two with SSE or NEON, four with AVX2, eight with AVX-512). Each loop runs in
+ * full vectors and then finishes the last few elements one at a time; arrays only a
+ * few vectors long are left to the scalar loops.
+ *
+ * This is the only class in the package that uses jdk.incubator.vector, so it lives
+ * in a source directory of its own (simd/, beside pages/) and is compiled in a separate,
+ * optional step with --add-modules jdk.incubator.vector (see pages/README.md). It is
+ * only loaded by ScoringKernels.select("simd"); a build without it simply has no SIMD.
+ */
+public class SimdKernels extends ScoringKernels {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final ScalarKernels SHORT = new ScalarKernels();
+	private static final int MINIMUM = 4 * SPECIES.length();
+	// Below this length (e.g. a row of genre probabilities in smoothing) setting up vectors
+	// and reducing them costs more than it saves, so the scalar loop is used.
+
+	public String name() {
+		return "simd (" + SPECIES.length() + " doubles per vector)";
+	}
+
+	public double dot(double[] a, double[] b, int n) {
+		if (n < MINIMUM) return SHORT.dot(a, b, n);
+		int upper = SPECIES.loopBound(n);
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (; i < upper; i += SPECIES.length()) {
+			DoubleVector va = DoubleVector.fromArray(SPECIES, a, i);
+			DoubleVector vb = DoubleVector.fromArray(SPECIES, b, i);
+			sums = va.fma(vb, sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < n; ++i) {
+			sum += a[i] * b[i];
+		}
+		return sum;
+	}
+
+	public double finiteDot(double[] weights, double[] x, int n, double start) {
+		if (n < MINIMUM) return SHORT.finiteDot(weights, x, n, start);
+		int upper = SPECIES.loopBound(n);
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (; i < upper; i += SPECIES.length()) {
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, i);
+			VectorMask<Double> finite = vx.test(VectorOperators.IS_FINITE);
+			DoubleVector vw = DoubleVector.fromArray(SPECIES, weights, i);
+			sums = sums.add(vw.mul(vx), finite);
+		}
+		double sum = start + sums.reduceLanes(VectorOperators.ADD);
+		for (; i < n; ++i) {
+			double value = x[i];
+			if (value - value != 0) continue;
+			sum += weights[i] * value;
+		}
+		return sum;
+	}
+
+	public void axpy(double a, double[] x, int offset, double[] y, int n) {
+		if (n < MINIMUM) {
+			SHORT.axpy(a, x, offset, y, n);
+			return;
+		}
+		int upper = SPECIES.loopBound(n);
+		DoubleVector va = DoubleVector.broadcast(SPECIES, a);
+		int i = 0;
+		for (; i < upper; i += SPECIES.length()) {
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, offset + i);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, y, i);
+			va.fma(vx, vy).intoArray(y, i);
+		}
+		for (; i < n; ++i) {
+			y[i] += a * x[offset + i];
+		}
+	}
+
+	public void normalize(double[] x, double[] means, double[] stdevs) {
+		int n = x.length;
+		if (n < MINIMUM) {
+			SHORT.normalize(x, means, stdevs);
+			return;
+		}
+		int upper = SPECIES.loopBound(n);
+		int i = 0;
+		for (; i < upper; i += SPECIES.length()) {
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, i);
+			DoubleVector vm = DoubleVector.fromArray(SPECIES, means, i);
+			DoubleVector vs = DoubleVector.fromArray(SPECIES, stdevs, i);
+			vx.sub(vm).div(vs).intoArray(x, i);
+		}
+		for (; i < n; ++i) {
+			x[i] = (x[i] - means[i]) / stdevs[i];
+		}
+	}
+
+}